@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.util.LinkedList;
+
+/**
+ * Tests the bitmap pool and compares the allocations of a simulated scroll through the
+ * favorites grid with and without it.
+ */
+public class TestBitmapPool extends AndroidTestCase {
+
+    // Tag for logging the allocation results.
+    private static final String LOG_TAG = TestBitmapPool.class.getSimpleName();
+
+    // Size of the posters and of the grid cells.
+    private static final int POSTER_WIDTH = 185;
+    private static final int POSTER_HEIGHT = 278;
+
+    // Number of posters scrolled through and number of cells visible at once.
+    private static final int POSTER_COUNT = 60;
+    private static final int VISIBLE_COUNT = 12;
+
+    // Number of distinct poster files.
+    private static final int FILE_COUNT = 5;
+
+    // Directory holding the poster files.
+    private File mDirectory;
+
+    // Paths of the poster files.
+    private String[] mPaths = new String[FILE_COUNT];
+
+    // Writes the poster files.
+    public void setUp() throws Exception {
+        mDirectory = new File(mContext.getCacheDir(), "test-pool-posters");
+        PosterStore posterStore = new PosterStore(mContext, mDirectory);
+
+        Bitmap bitmap = Bitmap.createBitmap(POSTER_WIDTH, POSTER_HEIGHT, Bitmap.Config.ARGB_8888);
+        for(int i = 0; i < FILE_COUNT; i++) {
+            bitmap.eraseColor(0xff000000 | (i * 0x303030));
+            mPaths[i] = posterStore.getFile(posterStore.saveBitmap(i, bitmap).getName()).getPath();
+        }
+        bitmap.recycle();
+    }
+
+    // Deletes the poster files.
+    public void tearDown() throws Exception {
+        File[] files = mDirectory.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    // Tests that the pool serves bitmaps of the requested size only and stays within its size.
+    public void testPool() {
+        int byteCount = POSTER_WIDTH * POSTER_HEIGHT * 4;
+        BitmapPool pool = new BitmapPool(byteCount * 2);
+
+        pool.put(Bitmap.createBitmap(POSTER_WIDTH, POSTER_HEIGHT, Bitmap.Config.ARGB_8888));
+        assertNull("Error: Bitmap of another size was served",
+                pool.get(POSTER_WIDTH / 2, POSTER_HEIGHT / 2, Bitmap.Config.ARGB_8888));
+        assertNotNull("Error: Pooled bitmap was not served",
+                pool.get(POSTER_WIDTH, POSTER_HEIGHT, Bitmap.Config.ARGB_8888));
+
+        for(int i = 0; i < 3; i++) {
+            pool.put(Bitmap.createBitmap(POSTER_WIDTH, POSTER_HEIGHT, Bitmap.Config.ARGB_8888));
+        }
+        assertEquals("Error: Pool retained more than its size", byteCount * 2,
+                pool.getRetainedBytes());
+        assertEquals("Error: Wrong number of bitmaps evicted", 1, pool.getEvictionCount());
+        assertEquals("Error: Wrong hit rate", 0.5f, pool.getHitRate());
+    }
+
+    // Simulates a scroll through the grid, with and without the pool.
+    public void testScrollAllocations() {
+        // Warm up the decoder.
+        scroll(null);
+
+        BitmapPool pool = new BitmapPool(POSTER_WIDTH * POSTER_HEIGHT * 4 * VISIBLE_COUNT);
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocSize();
+        scroll(null);
+        long unpooledBytes = Debug.getThreadAllocSize();
+
+        Debug.resetThreadAllocSize();
+        scroll(pool);
+        long pooledBytes = Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+
+        Log.i(LOG_TAG, "Scroll through " + POSTER_COUNT + " posters without pool: "
+                + POSTER_COUNT + " bitmaps, " + unpooledBytes + " bytes allocated");
+        Log.i(LOG_TAG, "Scroll through " + POSTER_COUNT + " posters with pool: "
+                + pool.getMissCount() + " bitmaps, " + pooledBytes + " bytes allocated, "
+                + Math.round(pool.getHitRate() * 100) + "% hit rate");
+
+        // Only the visible cells and the one decoded before the first recycle need a bitmap.
+        assertTrue("Error: Too many bitmaps allocated", pool.getMissCount() <= VISIBLE_COUNT + 1);
+        assertEquals("Error: Wrong number of pooled bitmaps reused",
+                POSTER_COUNT - pool.getMissCount(), pool.getHitCount());
+
+        // Reusing the bitmaps allocates less than decoding every poster into a new one.
+        assertTrue("Error: Pool did not reduce allocations, " + pooledBytes + " bytes with pool, "
+                + unpooledBytes + " bytes without", pooledBytes < unpooledBytes);
+    }
+
+    // Decodes the posters into a window of visible cells, recycling the cells scrolled away.
+    private void scroll(BitmapPool pool) {
+        LinkedList<Bitmap> visible = new LinkedList<>();
+        for(int i = 0; i < POSTER_COUNT; i++) {
+            Bitmap bitmap = PosterDecoder.decodeSampled(mPaths[i % FILE_COUNT], POSTER_WIDTH,
+                    POSTER_HEIGHT, pool, new BitmapFactory.Options());
+            assertNotNull("Error: Poster did not decode", bitmap);
+            visible.addLast(bitmap);
+
+            // Recycle the cell scrolled out of sight.
+            if(visible.size() > VISIBLE_COUNT) {
+                Bitmap recycled = visible.removeFirst();
+                if(pool != null) {
+                    pool.put(recycled);
+                }
+            }
+        }
+
+        // Return the visible bitmaps to the pool as the grid goes away.
+        if(pool != null) {
+            for(Bitmap bitmap : visible) {
+                pool.put(bitmap);
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.content.ComponentCallbacks2;
+import android.test.AndroidTestCase;
+
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests the coalescing and caching of movie details fetches.
+ */
+public class TestDetailsFetcher extends AndroidTestCase {
+
+    // Number of concurrent callers.
+    private static final int CALLER_COUNT = 16;
+
+    // Details response served by the local server.
+    private static final String DETAILS_JSON = "{\"id\":76341,"
+            + "\"original_title\":\"Mad Max: Fury Road\",\"runtime\":120,\"vote_average\":7.5,"
+            + "\"videos\":{\"results\":[]},\"reviews\":{\"results\":[]}}";
+
+    // Local stand-in for the TMDB server.
+    private MockWebServer mServer;
+
+    // Fetcher under test.
+    private DetailsFetcher mFetcher;
+
+    // Starts the local server and creates the fetcher, without a response cache.
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+
+        TmdbClient client = new TmdbClient(mContext, new ConnectionPool(5, 60 * 1000), null);
+        mFetcher = new DetailsFetcher(mContext, client, mServer.getUrl("/3/movie/").toString());
+    }
+
+    // Stops the local server.
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    // Tests that concurrent fetches of the same movie make a single request.
+    public void testConcurrentFetchesAreCoalesced() throws Throwable {
+        // Queue a slow response for each caller, so extra requests would be answered too.
+        for(int i = 0; i < CALLER_COUNT; i++) {
+            mServer.enqueue(new MockResponse().setBody(DETAILS_JSON)
+                    .throttleBody(16, 100, TimeUnit.MILLISECONDS));
+        }
+
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(CALLER_COUNT);
+        final Movie[] results = new Movie[CALLER_COUNT];
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        // Start all the callers at once.
+        for(int i = 0; i < CALLER_COUNT; i++) {
+            final int index = i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                        results[index] = mFetcher.fetch(76341);
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        doneLatch.countDown();
+                    }
+                }
+            }).start();
+        }
+        startLatch.countDown();
+
+        assertTrue("Error: Fetches did not complete", doneLatch.await(60, TimeUnit.SECONDS));
+        if(failure.get() != null) {
+            throw failure.get();
+        }
+
+        // Verify a single request was made and every caller got the same movie.
+        assertEquals("Error: Concurrent fetches were not coalesced", 1, mServer.getRequestCount());
+        for(int i = 0; i < CALLER_COUNT; i++) {
+            assertSame("Error: Callers received different results", results[0], results[i]);
+        }
+        assertEquals("Error: Wrong movie id fetched", 76341, results[0].getId());
+    }
+
+    // Tests that a failed fetch is released and not cached, so it's retried.
+    public void testFailedFetchIsReleased() throws Throwable {
+        mServer.enqueue(new MockResponse().setResponseCode(500));
+        mServer.enqueue(new MockResponse().setBody(DETAILS_JSON));
+
+        try {
+            mFetcher.fetch(76341);
+            fail("Error: Expected an exception for the error response");
+        } catch (IOException e) {
+            // Expected.
+        }
+
+        Movie movie = mFetcher.fetch(76341);
+        assertEquals("Error: Second fetch did not reach the server", 2, mServer.getRequestCount());
+        assertSame("Error: Fetched details were not cached", movie, mFetcher.getCachedDetails(76341));
+    }
+
+    // Tests that cached details are returned without contacting the server.
+    public void testCachedDetails() throws Throwable {
+        mServer.enqueue(new MockResponse().setBody(DETAILS_JSON));
+
+        Movie first = mFetcher.fetch(76341);
+        Movie second = mFetcher.fetch(76341);
+
+        assertSame("Error: Cached details were not returned", first, second);
+        assertEquals("Error: Cached details were fetched again", 1, mServer.getRequestCount());
+    }
+
+    // Tests that trimming the details cache reports the bytes of the evicted details.
+    public void testTrimMemoryReleasesBytes() throws Throwable {
+        mServer.enqueue(new MockResponse().setBody(DETAILS_JSON));
+        Movie movie = mFetcher.fetch(76341);
+
+        long releasedBytes = mFetcher.trimMemory(ComponentCallbacks2.TRIM_MEMORY_MODERATE);
+
+        assertNull("Error: Details kept after the trim", mFetcher.getCachedDetails(76341));
+        assertTrue("Error: No bytes reported for the evicted details", releasedBytes > 0);
+        assertEquals("Error: Wrong number of bytes released",
+                DetailsFetcher.getByteCount(movie), releasedBytes);
+        assertEquals("Error: Bytes released by an empty cache", 0,
+                mFetcher.trimMemory(ComponentCallbacks2.TRIM_MEMORY_MODERATE));
+    }
+
+    // Tests that the shared download is only aborted once all its callers are cancelled.
+    public void testCancellation() throws Throwable {
+        // Response that takes several seconds to stream.
+        mServer.enqueue(new MockResponse().setBody(DETAILS_JSON)
+                .throttleBody(32, 1, TimeUnit.SECONDS));
+
+        final CancellationToken firstToken = new CancellationToken();
+        final CancellationToken secondToken = new CancellationToken();
+        final AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+        final AtomicReference<Throwable> secondFailure = new AtomicReference<>();
+
+        Thread first = startFetch(firstToken, firstFailure);
+        Thread.sleep(200);
+        Thread second = startFetch(secondToken, secondFailure);
+        Thread.sleep(200);
+
+        // Cancelling one caller leaves the download running for the other.
+        firstToken.cancel();
+        first.join(5000);
+        assertFalse("Error: Cancelled caller is still waiting", first.isAlive());
+        assertTrue("Error: Shared download was aborted", second.isAlive());
+
+        // Cancelling the last caller aborts the download.
+        long start = System.nanoTime();
+        secondToken.cancel();
+        second.join(5000);
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertFalse("Error: Download was not aborted", second.isAlive());
+        assertTrue("Error: Download was not aborted, took " + elapsedMs + " ms", elapsedMs < 2000);
+        assertTrue("Error: Cancelled callers did not fail", firstFailure.get() instanceof IOException
+                && secondFailure.get() instanceof IOException);
+        assertEquals("Error: Callers did not share the download", 1, mServer.getRequestCount());
+    }
+
+    // Tests that an interrupted caller leaves the fetch, so the download isn't kept alive.
+    public void testInterruptedCallerLeaves() throws Throwable {
+        // Response that takes several seconds to stream, then one for the next fetch.
+        mServer.enqueue(new MockResponse().setBody(DETAILS_JSON)
+                .throttleBody(32, 1, TimeUnit.SECONDS));
+        mServer.enqueue(new MockResponse().setBody(DETAILS_JSON));
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread caller = startFetch(new CancellationToken(), failure);
+        Thread.sleep(200);
+
+        // Interrupt the only caller, without cancelling its token.
+        caller.interrupt();
+        caller.join(5000);
+        assertFalse("Error: Interrupted caller is still waiting", caller.isAlive());
+        assertTrue("Error: Interrupted caller did not fail", failure.get() instanceof IOException);
+
+        // The abandoned download was aborted, so the next fetch makes a request of its own.
+        Movie movie = mFetcher.fetch(76341);
+        assertEquals("Error: Wrong movie id fetched", 76341, movie.getId());
+        assertEquals("Error: Abandoned download was joined", 2, mServer.getRequestCount());
+    }
+
+    // Starts a thread fetching the movie with the token and recording its failure.
+    private Thread startFetch(final CancellationToken token,
+                              final AtomicReference<Throwable> failure) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mFetcher.fetch(76341, TmdbRequestScheduler.PRIORITY_FOREGROUND, token);
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import com.squareup.picasso.LruCache;
+import com.squareup.picasso.OkHttpDownloader;
+import com.squareup.picasso.Picasso;
+
+import okio.Buffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that the poster prefetches of the discover grid are tagged apart from its displayed
+ * posters, and that prefetching a new range cancels the pending prefetches of the old one.
+ */
+public class TestDiscoverAdapter extends AndroidTestCase {
+
+    // Time to wait for a request to reach the server, in seconds.
+    private static final int TIMEOUT = 5;
+
+    // Size the posters are prefetched at.
+    private static final int POSTER_WIDTH = 92;
+    private static final int POSTER_HEIGHT = 138;
+
+    // Local stand-in for the poster server.
+    private MockWebServer mServer;
+
+    // Paths of the requests received by the server, in order.
+    private final BlockingQueue<String> mRequestPaths = new LinkedBlockingQueue<>();
+
+    // Holds the response to the first poster of the old range till released.
+    private final CountDownLatch mReleaseLatch = new CountDownLatch(1);
+
+    // Picasso instance prefetching from the local server, one poster at a time.
+    private Picasso mPicasso;
+
+    // Starts the local server and builds a Picasso instance with a single download thread.
+    public void setUp() throws Exception {
+        Bitmap poster = Bitmap.createBitmap(POSTER_WIDTH, POSTER_HEIGHT, Bitmap.Config.ARGB_8888);
+        final Buffer body = new Buffer();
+        poster.compress(Bitmap.CompressFormat.PNG, 100, body.outputStream());
+
+        mServer = new MockWebServer();
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                mRequestPaths.add(request.getPath());
+                if(request.getPath().equals("/old1.png")) {
+                    mReleaseLatch.await(TIMEOUT, TimeUnit.SECONDS);
+                }
+                return new MockResponse().setBody(body.clone())
+                        .addHeader("Content-Type", "image/png");
+            }
+        });
+        mServer.start();
+
+        mPicasso = new Picasso.Builder(mContext)
+                .memoryCache(new LruCache(1024 * 1024))
+                .downloader(new OkHttpDownloader(new OkHttpClient()))
+                .executor(Executors.newSingleThreadExecutor())
+                .build();
+    }
+
+    // Stops the Picasso instance and the local server.
+    public void tearDown() throws Exception {
+        mReleaseLatch.countDown();
+        mPicasso.shutdown();
+        mServer.shutdown();
+    }
+
+    // Tests that pausing the displayed posters during a fling leaves the prefetches running.
+    public void testPrefetchesAreNotPausedWithDisplayedPosters() throws Throwable {
+        mPicasso.pauseTag(DiscoverAdapter.POSTER_REQUEST_TAG);
+        prefetch("/new.png");
+
+        assertEquals("Error: Prefetch paused with the displayed posters", "/new.png",
+                mRequestPaths.poll(TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    // Tests that prefetching a new range cancels the pending prefetches of the old range.
+    public void testNewRangeCancelsPendingPrefetches() throws Throwable {
+        // Prefetch the old range, holding its first poster so that the others stay queued.
+        prefetch("/old1.png", "/old2.png", "/old3.png");
+        assertEquals("Error: First prefetch of the old range not started", "/old1.png",
+                mRequestPaths.poll(TIMEOUT, TimeUnit.SECONDS));
+
+        // Move on to the new range, then let the first poster of the old range complete once
+        // the Picasso dispatcher thread has had time to process the cancellation.
+        prefetch("/new.png");
+        Thread.sleep(500);
+        mReleaseLatch.countDown();
+
+        assertEquals("Error: Pending prefetches of the old range not cancelled", "/new.png",
+                mRequestPaths.poll(TIMEOUT, TimeUnit.SECONDS));
+        assertNull("Error: Cancelled prefetch requested",
+                mRequestPaths.poll(1, TimeUnit.SECONDS));
+    }
+
+    // Prefetches the posters at the given paths of the local server, on the main thread.
+    private void prefetch(String... paths) throws InterruptedException {
+        final List<String> posterUrls = new ArrayList<>();
+        for(String path : paths) {
+            posterUrls.add(mServer.getUrl(path).toString());
+        }
+
+        final CountDownLatch doneLatch = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                DiscoverAdapter.prefetchPosters(mPicasso, posterUrls, POSTER_WIDTH, POSTER_HEIGHT);
+                doneLatch.countDown();
+            }
+        });
+        assertTrue("Error: Prefetch not run on the main thread",
+                doneLatch.await(TIMEOUT, TimeUnit.SECONDS));
+    }
+}
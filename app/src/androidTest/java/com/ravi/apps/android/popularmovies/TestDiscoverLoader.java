@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.app.Activity;
+import android.app.LoaderManager;
+import android.content.Context;
+import android.content.Loader;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
+
+import com.ravi.apps.android.popularmovies.data.MovieContract.DiscoverEntry;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that the pages loaded by the discover loader reach the loader manager callbacks and
+ * that a failed page is backed off from, and benchmarks the time to first poster on a cold
+ * start with and without the persisted list.
+ */
+public class TestDiscoverLoader extends ActivityInstrumentationTestCase2<MainActivity> {
+
+    // Tag for logging the benchmark results.
+    private static final String LOG_TAG = TestDiscoverLoader.class.getSimpleName();
+
+    // Id of the loader started by the test, apart from the ones of the activity.
+    private static final int LOADER_ID = 1000;
+
+    // Number of movies in each page.
+    private static final int PAGE_SIZE = 20;
+
+    // Time to wait for a page to be delivered, in seconds.
+    private static final int DELIVERY_TIMEOUT = 5;
+
+    public TestDiscoverLoader() {
+        super(MainActivity.class);
+    }
+
+    /**
+     * Discover loader serving two pages of movies without the server.
+     */
+    private static class PagedDiscoverLoader extends DiscoverLoader {
+
+        // Number of pages loaded.
+        private int mLoadCount;
+
+        // Page failing to load the first time it's requested, as when offline. 0 for none.
+        private final int mFailingPage;
+        private boolean mHasFailed;
+
+        PagedDiscoverLoader(Context context, int failingPage) {
+            super(context);
+            mFailingPage = failingPage;
+        }
+
+        @Override
+        public DiscoverLoaderResult loadInBackground() {
+            DiscoverLoaderResult result = new DiscoverLoaderResult();
+
+            // Loads run one at a time, so count the successful ones as the pages.
+            if(mLoadCount + 1 == mFailingPage && !mHasFailed) {
+                mHasFailed = true;
+                result.setPage(mFailingPage);
+                result.setException(new IOException("Offline"));
+                return result;
+            }
+            int page = ++mLoadCount;
+
+            List<Movie> movieList = new ArrayList<>();
+            for(int i = 0; i < PAGE_SIZE; i++) {
+                movieList.add(new Movie(page * PAGE_SIZE + i, "Movie " + i, null, null, 0, 0,
+                        null, null, null));
+            }
+
+            result.setData(movieList);
+            result.setPage(page);
+            result.setTotalPages(2);
+            return result;
+        }
+    }
+
+    // Tests that the next page is delivered to the callbacks along with the first one.
+    public void testNextPageIsDelivered() throws Throwable {
+        BlockingQueue<DiscoverLoaderResult> results = initLoader(0);
+
+        try {
+            DiscoverLoaderResult firstPage = results.poll(DELIVERY_TIMEOUT, TimeUnit.SECONDS);
+            assertNotNull("Error: First page not delivered", firstPage);
+            assertEquals("Error: Wrong movies in the first page", PAGE_SIZE,
+                    firstPage.getData().size());
+
+            // Scroll to the end, which loads the next page.
+            assertTrue("Error: Next page load not started", loadNextPage());
+
+            DiscoverLoaderResult nextPage = results.poll(DELIVERY_TIMEOUT, TimeUnit.SECONDS);
+            assertNotNull("Error: Next page not delivered to the callbacks", nextPage);
+            assertEquals("Error: Wrong page delivered", 2, nextPage.getPage());
+            assertEquals("Error: Next page not appended", 2 * PAGE_SIZE,
+                    nextPage.getData().size());
+            assertEquals("Error: Delivered result changed", PAGE_SIZE,
+                    firstPage.getData().size());
+        } finally {
+            destroyLoader();
+        }
+    }
+
+    // Tests that a failed next page is delivered, and requested again only after a delay.
+    public void testFailedPageBacksOff() throws Throwable {
+        BlockingQueue<DiscoverLoaderResult> results = initLoader(2);
+
+        try {
+            assertNotNull("Error: First page not delivered",
+                    results.poll(DELIVERY_TIMEOUT, TimeUnit.SECONDS));
+
+            // Scroll to the end, the next page fails to load.
+            assertTrue("Error: Next page load not started", loadNextPage());
+            DiscoverLoaderResult failedPage = results.poll(DELIVERY_TIMEOUT, TimeUnit.SECONDS);
+            assertNotNull("Error: Failed page not delivered to the callbacks", failedPage);
+            assertNotNull("Error: Page failure not recorded", failedPage.getPageException());
+            assertNull("Error: Loaded movies reported as failed", failedPage.getException());
+            assertEquals("Error: Loaded movies not kept", PAGE_SIZE,
+                    failedPage.getData().size());
+
+            // Scrolling right away doesn't request the page again.
+            assertFalse("Error: Failed page requested again without a delay", loadNextPage());
+
+            // Scrolling once the retry delay has elapsed loads it.
+            Thread.sleep(DiscoverLoader.PAGE_RETRY_DELAY_MS);
+            assertTrue("Error: Failed page not requested again", loadNextPage());
+            DiscoverLoaderResult nextPage = results.poll(DELIVERY_TIMEOUT, TimeUnit.SECONDS);
+            assertNotNull("Error: Next page not delivered to the callbacks", nextPage);
+            assertNull("Error: Page failure not cleared", nextPage.getPageException());
+            assertEquals("Error: Next page not appended", 2 * PAGE_SIZE,
+                    nextPage.getData().size());
+        } finally {
+            destroyLoader();
+        }
+    }
+
+    /*
+     * Starts a paged discover loader through the loader manager of the activity and returns
+     * the queue its results are delivered to.
+     */
+    private BlockingQueue<DiscoverLoaderResult> initLoader(final int failingPage)
+            throws Throwable {
+        final Activity activity = getActivity();
+        final BlockingQueue<DiscoverLoaderResult> results = new LinkedBlockingQueue<>();
+        final LoaderManager.LoaderCallbacks<DiscoverLoaderResult> callbacks =
+                new LoaderManager.LoaderCallbacks<DiscoverLoaderResult>() {
+            @Override
+            public Loader<DiscoverLoaderResult> onCreateLoader(int id, Bundle args) {
+                return new PagedDiscoverLoader(activity, failingPage);
+            }
+
+            @Override
+            public void onLoadFinished(Loader<DiscoverLoaderResult> loader,
+                                       DiscoverLoaderResult data) {
+                results.add(data);
+            }
+
+            @Override
+            public void onLoaderReset(Loader<DiscoverLoaderResult> loader) {
+            }
+        };
+
+        // Start the loader, which loads the first page.
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                activity.getLoaderManager().initLoader(LOADER_ID, null, callbacks);
+            }
+        });
+
+        return results;
+    }
+
+    // Requests the next page on the main thread, as a scroll to the end does.
+    private boolean loadNextPage() throws Throwable {
+        final boolean[] isLoadStarted = new boolean[1];
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                isLoadStarted[0] = ((DiscoverLoader) getActivity().getLoaderManager()
+                        .<DiscoverLoaderResult>getLoader(LOADER_ID)).loadNextPage();
+            }
+        });
+        return isLoadStarted[0];
+    }
+
+    // Destroys the loader started by the test.
+    private void destroyLoader() throws Throwable {
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                getActivity().getLoaderManager().destroyLoader(LOADER_ID);
+            }
+        });
+    }
+
+    /**
+     * Benchmarks the time from a cold start of the discover loader to the delivery of the first
+     * movies, from which the grid binds its first posters, with and without the persisted
+     * discover list. The discover page is streamed slowly, as over a mobile network.
+     */
+    public void testTimeToFirstPoster() throws Throwable {
+        Context context = getInstrumentation().getTargetContext();
+
+        // Serve the discover page for the cold start without the persisted list, then again
+        // for the refresh of the persisted list.
+        MockWebServer server = new MockWebServer();
+        for(int i = 0; i < 2; i++) {
+            server.enqueue(new MockResponse().setBody(buildDiscoverJson())
+                    .throttleBody(256, 100, TimeUnit.MILLISECONDS));
+        }
+        server.start();
+
+        TmdbClient client = new TmdbClient(context, new ConnectionPool(5, 60 * 1000), null);
+        String baseUrl = server.getUrl("/discover/movie").toString();
+
+        try {
+            // Cold start without the persisted list, so the first page comes from the network.
+            context.getContentResolver().delete(DiscoverEntry.CONTENT_URI, null, null);
+            long networkMs = measureTimeToFirstList(
+                    new DiscoverLoader(context, client, baseUrl), false);
+
+            // Cold start with the list persisted by the previous load.
+            long persistedMs = measureTimeToFirstList(
+                    new DiscoverLoader(context, client, baseUrl), true);
+
+            Log.i(LOG_TAG, "Time to first poster, network: " + networkMs + " ms");
+            Log.i(LOG_TAG, "Time to first poster, persisted list: " + persistedMs + " ms");
+
+            assertTrue("Error: Persisted list not delivered sooner than the network one",
+                    persistedMs * 2 < networkMs);
+        } finally {
+            context.getContentResolver().delete(DiscoverEntry.CONTENT_URI, null, null);
+            server.shutdown();
+        }
+    }
+
+    /*
+     * Starts the loader and returns the time taken to deliver its first movies, in ms. Waits
+     * for the refresh of a persisted list too, so that it isn't persisted after the test.
+     */
+    private long measureTimeToFirstList(final DiscoverLoader loader, boolean isSnapshotExpected)
+            throws Throwable {
+        final BlockingQueue<DiscoverLoaderResult> results = new LinkedBlockingQueue<>();
+        final long[] startTime = new long[1];
+        final long[] deliveryTime = new long[1];
+        final Loader.OnLoadCompleteListener<DiscoverLoaderResult> listener =
+                new Loader.OnLoadCompleteListener<DiscoverLoaderResult>() {
+            @Override
+            public void onLoadComplete(Loader<DiscoverLoaderResult> loader,
+                                       DiscoverLoaderResult data) {
+                if(deliveryTime[0] == 0) {
+                    deliveryTime[0] = SystemClock.elapsedRealtime();
+                }
+                results.add(data);
+            }
+        };
+
+        // Start the loader on the main thread, as the loader manager would.
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                loader.registerListener(LOADER_ID, listener);
+                startTime[0] = SystemClock.elapsedRealtime();
+                loader.startLoading();
+            }
+        });
+
+        try {
+            DiscoverLoaderResult firstList = results.poll(DELIVERY_TIMEOUT, TimeUnit.SECONDS);
+            assertNotNull("Error: First movies not delivered", firstList);
+            assertNull("Error: First movies failed to load", firstList.getException());
+            assertEquals("Error: First movies delivered from the wrong source",
+                    isSnapshotExpected, firstList.isSnapshot());
+            assertEquals("Error: Wrong number of first movies", PAGE_SIZE,
+                    firstList.getData().size());
+
+            if(isSnapshotExpected) {
+                assertNotNull("Error: Persisted list not refreshed",
+                        results.poll(DELIVERY_TIMEOUT, TimeUnit.SECONDS));
+            }
+        } finally {
+            runTestOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    loader.unregisterListener(listener);
+                    loader.reset();
+                }
+            });
+        }
+
+        return deliveryTime[0] - startTime[0];
+    }
+
+    // Builds a discover response with a page of movies.
+    private static String buildDiscoverJson() {
+        StringBuilder results = new StringBuilder();
+        for(int i = 0; i < PAGE_SIZE; i++) {
+            if(i > 0) {
+                results.append(',');
+            }
+            results.append("{\"id\":").append(i + 1)
+                    .append(",\"original_title\":\"Movie ").append(i + 1)
+                    .append("\",\"poster_path\":\"/poster-").append(i + 1)
+                    .append(".jpg\",\"release_date\":\"2015-06-12\",\"vote_average\":7.5")
+                    .append(",\"overview\":\"Overview of the movie\"}");
+        }
+        return "{\"page\":1,\"results\":[" + results + "],\"total_pages\":1}";
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+
+import com.squareup.okhttp.Cache;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.picasso.NetworkPolicy;
+
+import okio.Buffer;
+
+import java.io.File;
+
+/**
+ * Tests the sizing of the image pipeline caches, and that a loaded poster is served from
+ * them when scrolled back to.
+ */
+public class TestImagePipeline extends AndroidTestCase {
+
+    // Tests that the memory cache is sized from the memory class.
+    public void testMemoryCacheSize() {
+        assertEquals("Error: Wrong memory cache size", 32 * 1024 * 1024 / 5,
+                ImagePipeline.getMemoryCacheSize(32, 20));
+        assertEquals("Error: Wrong memory cache size", 512 * 1024 * 1024 / 4,
+                ImagePipeline.getMemoryCacheSize(512, 25));
+    }
+
+    // Tests that the pipeline caches are bounded by their quotas.
+    public void testCacheQuotas() {
+        Cache diskCache = new Cache(new File(mContext.getCacheDir(), "test-posters"), 1024 * 1024);
+        ImagePipeline pipeline = new ImagePipeline(mContext, 2 * 1024 * 1024, diskCache);
+
+        assertEquals("Error: Wrong memory cache quota", 2 * 1024 * 1024,
+                pipeline.getMemoryMaxSize());
+        assertEquals("Error: Wrong disk cache quota", 1024 * 1024, pipeline.getDiskMaxSize());
+        assertEquals("Error: Memory cache is not empty", 0, pipeline.getMemorySize());
+    }
+
+    // Tests that scrolling back to a loaded poster takes it from the caches, not the network.
+    public void testLoadedPosterIsNotFetchedAgain() throws Throwable {
+        // Serve a single cacheable poster.
+        Bitmap poster = Bitmap.createBitmap(92, 138, Bitmap.Config.ARGB_8888);
+        Buffer body = new Buffer();
+        poster.compress(Bitmap.CompressFormat.PNG, 100, body.outputStream());
+
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setBody(body)
+                .addHeader("Content-Type", "image/png")
+                .addHeader("Cache-Control", "max-age=3600"));
+        server.start();
+
+        Cache diskCache = new Cache(new File(mContext.getCacheDir(), "test-posters-offline"),
+                1024 * 1024);
+        ImagePipeline pipeline = new ImagePipeline(mContext, 2 * 1024 * 1024, diskCache);
+        String url = server.getUrl("/t/p/w185/poster.png").toString();
+
+        try {
+            // Load the poster as the grid first displays it.
+            assertNotNull("Error: Poster not loaded",
+                    pipeline.getPicasso().load(url).resize(92, 138).get());
+            assertEquals("Error: Poster not fetched from the server", 1,
+                    server.getRequestCount());
+            int cacheHitCount = pipeline.getMemoryHitCount() + pipeline.getDiskHitCount();
+
+            // Scroll back to the poster, without going to the network.
+            assertNotNull("Error: Loaded poster not served from the caches",
+                    pipeline.getPicasso().load(url).resize(92, 138)
+                            .networkPolicy(NetworkPolicy.OFFLINE).get());
+            assertEquals("Error: Loaded poster fetched again", 1, server.getRequestCount());
+            assertTrue("Error: Loaded poster not counted as a cache hit",
+                    pipeline.getMemoryHitCount() + pipeline.getDiskHitCount() > cacheHitCount);
+        } finally {
+            pipeline.getPicasso().shutdown();
+            diskCache.delete();
+            server.shutdown();
+        }
+    }
+}
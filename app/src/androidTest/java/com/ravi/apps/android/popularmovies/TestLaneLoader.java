@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.app.Activity;
+import android.app.LoaderManager;
+import android.content.Context;
+import android.content.Loader;
+import android.os.Bundle;
+import android.test.ActivityInstrumentationTestCase2;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that lane loaders restarted by the loader manager while loading deliver the result
+ * of the last restart.
+ */
+public class TestLaneLoader extends ActivityInstrumentationTestCase2<MainActivity> {
+
+    // Id of the loader started by the test, apart from the ones of the activity.
+    private static final int LOADER_ID = 1001;
+
+    // Argument holding the number of the load.
+    private static final String ARG_LOAD_NUMBER = "load_number";
+
+    // Time to wait for a load to start or be delivered, in seconds.
+    private static final int TIMEOUT = 5;
+
+    public TestLaneLoader() {
+        super(MainActivity.class);
+    }
+
+    /**
+     * Lane loader returning its load number. The first load blocks till it's released.
+     */
+    private static class NumberLoader extends LaneLoader<Integer> {
+
+        // Number of the load.
+        private final int mLoadNumber;
+
+        // Counted down once the first load is running, and awaited by it till released.
+        private final CountDownLatch mStartedLatch;
+        private final CountDownLatch mReleaseLatch;
+
+        NumberLoader(Context context, int loadNumber, CountDownLatch startedLatch,
+                     CountDownLatch releaseLatch) {
+            super(context, LoaderExecutor.LANE_UI);
+            mLoadNumber = loadNumber;
+            mStartedLatch = startedLatch;
+            mReleaseLatch = releaseLatch;
+        }
+
+        @Override
+        public Integer loadInBackground() {
+            if(mLoadNumber == 1) {
+                mStartedLatch.countDown();
+                try {
+                    mReleaseLatch.await(TIMEOUT, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return mLoadNumber;
+        }
+
+        @Override
+        protected void onStartLoading() {
+            forceLoad();
+        }
+
+        @Override
+        protected void onStopLoading() {
+            cancelLoad();
+        }
+    }
+
+    // Tests that restarting the loader twice while a load is in flight delivers the last load.
+    public void testRestartWhileLoading() throws Throwable {
+        final Activity activity = getActivity();
+        final CountDownLatch startedLatch = new CountDownLatch(1);
+        final CountDownLatch releaseLatch = new CountDownLatch(1);
+        final BlockingQueue<Integer> results = new LinkedBlockingQueue<>();
+        final LoaderManager.LoaderCallbacks<Integer> callbacks =
+                new LoaderManager.LoaderCallbacks<Integer>() {
+            @Override
+            public Loader<Integer> onCreateLoader(int id, Bundle args) {
+                return new NumberLoader(activity, args.getInt(ARG_LOAD_NUMBER), startedLatch,
+                        releaseLatch);
+            }
+
+            @Override
+            public void onLoadFinished(Loader<Integer> loader, Integer data) {
+                results.add(data);
+            }
+
+            @Override
+            public void onLoaderReset(Loader<Integer> loader) {
+            }
+        };
+
+        // Start the first load and wait till it's running.
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                activity.getLoaderManager().initLoader(LOADER_ID, buildArgs(1), callbacks);
+            }
+        });
+
+        try {
+            assertTrue("Error: First load not started",
+                    startedLatch.await(TIMEOUT, TimeUnit.SECONDS));
+
+            // Restart twice, as when the sort order is changed twice in a row. The loader
+            // manager holds the restarted loader back till the first load is cancelled.
+            runTestOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    activity.getLoaderManager().restartLoader(LOADER_ID, buildArgs(2), callbacks);
+                    activity.getLoaderManager().restartLoader(LOADER_ID, buildArgs(3), callbacks);
+                }
+            });
+            releaseLatch.countDown();
+
+            Integer result = results.poll(TIMEOUT, TimeUnit.SECONDS);
+            assertNotNull("Error: Restarted loader never delivered", result);
+            assertEquals("Error: Wrong load delivered", 3, (int) result);
+        } finally {
+            releaseLatch.countDown();
+            runTestOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    activity.getLoaderManager().destroyLoader(LOADER_ID);
+                }
+            });
+        }
+    }
+
+    // Returns the loader arguments holding the load number.
+    private static Bundle buildArgs(int loadNumber) {
+        Bundle args = new Bundle();
+        args.putInt(ARG_LOAD_NUMBER, loadNumber);
+        return args;
+    }
+}
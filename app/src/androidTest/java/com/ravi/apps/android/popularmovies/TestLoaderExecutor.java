@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.os.AsyncTask;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the loader executor lanes and benchmarks the details latency while a slow discover
+ * refresh is running, against a saturated AsyncTask thread pool, the one the framework
+ * AsyncTaskLoader runs on.
+ */
+public class TestLoaderExecutor extends AndroidTestCase {
+
+    // Tag for logging the benchmark results.
+    private static final String LOG_TAG = TestLoaderExecutor.class.getSimpleName();
+
+    // Number of benchmark iterations.
+    private static final int ITERATIONS = 3;
+
+    // Local stand-in for the TMDB server.
+    private MockWebServer mServer;
+
+    // Client fetching from the local server.
+    private TmdbClient mClient;
+
+    // Starts the local server, serving a slow discover response and a fast details one.
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if(request.getPath().startsWith("/discover")) {
+                    // About a second to stream the discover page.
+                    StringBuilder body = new StringBuilder();
+                    for(int i = 0; i < 100; i++) {
+                        body.append("{\"id\":").append(i).append(",\"poster_path\":null},");
+                    }
+                    return new MockResponse().setBody("{\"results\":[" + body + "{}]}")
+                            .throttleBody(256, 100, TimeUnit.MILLISECONDS);
+                }
+                return new MockResponse().setBody("{\"id\":1}");
+            }
+        });
+        mServer.start();
+
+        mClient = new TmdbClient(mContext, new ConnectionPool(5, 60 * 1000), null,
+                new TmdbRequestScheduler(1000, 1, TimeUnit.SECONDS));
+    }
+
+    // Stops the local server.
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    // Tests that the lanes run their tasks and track the queue waits.
+    public void testLanes() throws Throwable {
+        LoaderExecutor executor = new LoaderExecutor(new int[] {1, 1, 1, 1, 1});
+        final CountDownLatch latch = new CountDownLatch(3);
+
+        // Two slow tasks on a single threaded lane, the second one has to wait.
+        Runnable slowTask = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+                latch.countDown();
+            }
+        };
+        executor.submit(LoaderExecutor.LANE_MAINTENANCE, slowTask);
+        executor.submit(LoaderExecutor.LANE_MAINTENANCE, slowTask);
+
+        // A task on another lane doesn't wait for them.
+        long start = System.nanoTime();
+        executor.submit(LoaderExecutor.LANE_UI, new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+
+        assertTrue("Error: Tasks did not complete", latch.await(5, TimeUnit.SECONDS));
+        assertEquals("Error: Wrong number of tasks started", 2,
+                executor.getStartedCount(LoaderExecutor.LANE_MAINTENANCE));
+        assertTrue("Error: Queue wait was not recorded",
+                executor.getMaxQueueWaitMs(LoaderExecutor.LANE_MAINTENANCE) >= 150);
+        assertTrue("Error: UI lane waited for the maintenance lane",
+                executor.getMaxQueueWaitMs(LoaderExecutor.LANE_UI) < 150);
+        assertTrue("Error: UI task took too long",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+    }
+
+    /*
+     * Benchmarks the details latency while a discover refresh is running, in a synthetic
+     * worst case: the test fills the AsyncTask thread pool with as many artificial slow
+     * requests as it has core threads. The application doesn't normally keep the pool that
+     * busy, so the gap measured here is an upper bound, not the latency of a real session.
+     * The framework AsyncTaskLoader runs the loads on that pool, the lane loaders on the UI
+     * lane. On an idle pool both start the details load right away.
+     */
+    public void testDetailsLatencyWithSaturatedThreadPool() throws Throwable {
+        final LoaderExecutor laneExecutor = new LoaderExecutor(new int[] {3, 2, 1, 3, 2});
+        int busyTaskCount = ((ThreadPoolExecutor) AsyncTask.THREAD_POOL_EXECUTOR).getCorePoolSize();
+
+        // AsyncTask thread pool, which the framework AsyncTaskLoader runs on.
+        long poolMs = measureDetailsLatency(AsyncTask.THREAD_POOL_EXECUTOR, busyTaskCount);
+
+        // UI lane of the loader executor.
+        long laneMs = measureDetailsLatency(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                laneExecutor.submit(LoaderExecutor.LANE_UI, command);
+            }
+        }, busyTaskCount);
+
+        Log.i(LOG_TAG, "Synthetic worst case, details latency during discover refresh, "
+                + "AsyncTask thread pool with " + busyTaskCount + " artificial busy tasks: "
+                + poolMs + " ms");
+        Log.i(LOG_TAG, "Synthetic worst case, details latency during discover refresh, "
+                + "loader executor UI lane: "
+                + laneMs + " ms, average queue wait "
+                + laneExecutor.getAverageQueueWaitMs(LoaderExecutor.LANE_UI) + " ms");
+
+        assertTrue("Error: Details waited for the busy thread pool, lane " + laneMs
+                + " ms against pool " + poolMs + " ms", laneMs * 2 < poolMs);
+    }
+
+    /*
+     * Keeps the AsyncTask thread pool busy with artificial slow tasks, starts a discover
+     * refresh and then a details load on the executor, and returns the average details
+     * latency.
+     */
+    private long measureDetailsLatency(Executor executor, int busyTaskCount) throws Throwable {
+        final String discoverUrl = mServer.getUrl("/discover/movie").toString();
+        final String detailsUrl = mServer.getUrl("/movie/1").toString();
+        long totalNanos = 0;
+
+        for(int i = 0; i < ITERATIONS; i++) {
+            final CountDownLatch busyLatch = new CountDownLatch(busyTaskCount);
+            final CountDownLatch discoverLatch = new CountDownLatch(1);
+            final CountDownLatch detailsLatch = new CountDownLatch(1);
+
+            // Keep the core threads of the AsyncTask thread pool busy with artificial requests.
+            for(int j = 0; j < busyTaskCount; j++) {
+                AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        fetch(discoverUrl);
+                        busyLatch.countDown();
+                    }
+                });
+            }
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    fetch(discoverUrl);
+                    discoverLatch.countDown();
+                }
+            });
+
+            long start = System.nanoTime();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    fetch(detailsUrl);
+                    detailsLatch.countDown();
+                }
+            });
+
+            assertTrue("Error: Details did not load", detailsLatch.await(30, TimeUnit.SECONDS));
+            totalNanos += System.nanoTime() - start;
+            assertTrue("Error: Discover did not load", discoverLatch.await(30, TimeUnit.SECONDS));
+            assertTrue("Error: Busy tasks did not complete", busyLatch.await(60, TimeUnit.SECONDS));
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis(totalNanos / ITERATIONS);
+    }
+
+    // Fetches the url and reads the whole body.
+    private void fetch(String url) {
+        try {
+            mClient.get(url).body().string();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Error: fetch(): " + e.getLocalizedMessage());
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the trim policies and the trimming of the registered caches.
+ */
+public class TestMemoryPressureManager extends AndroidTestCase {
+
+    // Tests that undeclared levels use the share of the closest lower declared level.
+    public void testTrimPolicy() {
+        MemoryPressureManager.TrimPolicy policy = new MemoryPressureManager.TrimPolicy()
+                .retain(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW, 50)
+                .retain(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND, 0);
+
+        assertEquals("Error: Cache was trimmed below its lowest level", 100,
+                policy.getRetainedPercent(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE));
+        assertEquals("Error: Wrong share kept at a declared level", 50,
+                policy.getRetainedPercent(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW));
+        assertEquals("Error: Wrong share kept at an undeclared level", 50,
+                policy.getRetainedPercent(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN));
+        assertEquals("Error: Wrong share kept above the highest level", 0,
+                policy.getRetainedPercent(ComponentCallbacks2.TRIM_MEMORY_COMPLETE));
+        assertEquals("Error: Wrong size kept", 512,
+                policy.getRetainedSize(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW, 1024));
+    }
+
+    // Tests that a trim empties the bitmap pool and reports the bytes it released.
+    public void testTrimReleasesPooledBitmaps() {
+        BitmapPool bitmapPool = new BitmapPool(1024 * 1024);
+        bitmapPool.put(Bitmap.createBitmap(100, 150, Bitmap.Config.ARGB_8888));
+        bitmapPool.put(Bitmap.createBitmap(100, 150, Bitmap.Config.ARGB_8888));
+        int pooledBytes = bitmapPool.getRetainedBytes();
+
+        MemoryPressureManager manager = new MemoryPressureManager();
+        manager.register(bitmapPool);
+        manager.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+
+        assertEquals("Error: Pool was not emptied", 0, bitmapPool.getRetainedBytes());
+        assertEquals("Error: Wrong number of bytes released", pooledBytes,
+                manager.getReleasedBytes());
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the downsampling of the favorite posters, and that a decode completing after its
+ * view was recycled for another movie isn't displayed.
+ */
+public class TestPosterDecoder extends AndroidTestCase {
+
+    // Size of the poster and of the grid cell.
+    private static final int POSTER_WIDTH = 185;
+    private static final int POSTER_HEIGHT = 278;
+
+    // Ids of the movie the view is first bound to and of the one it's recycled for.
+    private static final long MOVIE_ID = 1;
+    private static final long RECYCLED_MOVIE_ID = 2;
+
+    // Time to wait for a decode or a main thread task, in seconds.
+    private static final int TIMEOUT = 5;
+
+    // Directory holding the poster file.
+    private File mDirectory;
+
+    // Executor running the decodes, on a single decode thread.
+    private LoaderExecutor mExecutor;
+
+    // Decoder under test.
+    private PosterDecoder mDecoder;
+
+    // Name of the poster file.
+    private String mPosterFile;
+
+    // Writes the poster file and creates the decoder.
+    public void setUp() throws Exception {
+        mDirectory = new File(mContext.getCacheDir(), "test-decoder-posters");
+        PosterStore posterStore = new PosterStore(mContext, mDirectory);
+
+        Bitmap bitmap = Bitmap.createBitmap(POSTER_WIDTH, POSTER_HEIGHT, Bitmap.Config.ARGB_8888);
+        mPosterFile = posterStore.saveBitmap(MOVIE_ID, bitmap).getName();
+        bitmap.recycle();
+
+        mExecutor = new LoaderExecutor(new int[] {1, 1, 1, 1, 1});
+        mDecoder = new PosterDecoder(posterStore, mExecutor, 1024 * 1024,
+                new BitmapPool(1024 * 1024));
+    }
+
+    // Deletes the poster file.
+    public void tearDown() throws Exception {
+        File[] files = mDirectory.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    // Tests that posters are downsampled as far as they still cover the view.
+    public void testSampleSize() {
+        assertEquals("Error: Poster smaller than the view was downsampled", 1,
+                PosterDecoder.calculateSampleSize(342, 513, 360, 540));
+        assertEquals("Error: Wrong sample size for a grid cell", 2,
+                PosterDecoder.calculateSampleSize(780, 1170, 360, 540));
+        assertEquals("Error: Wrong sample size for a small grid cell", 4,
+                PosterDecoder.calculateSampleSize(780, 1170, 180, 240));
+        assertEquals("Error: Poster was downsampled for an unknown view size", 1,
+                PosterDecoder.calculateSampleSize(780, 1170, 0, 0));
+    }
+
+    // Tests that a decode is displayed by the view still bound to its movie.
+    public void testDecodeIsDisplayed() throws Throwable {
+        final ImageView imageView = new ImageView(mContext);
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mDecoder.load(MOVIE_ID, mPosterFile, imageView, POSTER_WIDTH, POSTER_HEIGHT);
+            }
+        });
+
+        // Wait for the decode, then for the main thread to display it.
+        assertTrue("Error: Poster not decoded", awaitDecodes());
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+
+        assertNotNull("Error: Decoded poster not displayed", imageView.getDrawable());
+    }
+
+    // Tests that a decode completing after its view was recycled isn't displayed.
+    public void testRecycledViewDropsStaleDecode() throws Throwable {
+        final ImageView imageView = new ImageView(mContext);
+        final boolean[] isDecoded = new boolean[1];
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mDecoder.load(MOVIE_ID, mPosterFile, imageView, POSTER_WIDTH, POSTER_HEIGHT);
+
+                // Hold the main thread till the decode completed and posted its poster, then
+                // recycle the view for a movie without a poster, as a scroll would.
+                try {
+                    isDecoded[0] = awaitDecodes();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                mDecoder.load(RECYCLED_MOVIE_ID, null, imageView, POSTER_WIDTH, POSTER_HEIGHT);
+            }
+        });
+
+        // Let the main thread handle the poster posted by the decode.
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+
+        assertTrue("Error: Poster not decoded", isDecoded[0]);
+        assertNull("Error: Stale poster displayed by the recycled view",
+                imageView.getDrawable());
+        assertNull("Error: Stale poster bound to the recycled view",
+                imageView.getTag(R.id.poster_bitmap));
+    }
+
+    // Waits for the decodes queued so far on the single decode thread to complete. Returns
+    // false if they didn't in time.
+    private boolean awaitDecodes() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mExecutor.submit(LoaderExecutor.LANE_DECODE, new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        return latch.await(TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    // Runs the task on the main thread, where the grid binds its views, and waits for it.
+    private void runOnMainThread(final Runnable task) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                task.run();
+                latch.countDown();
+            }
+        });
+        assertTrue("Error: Main thread task did not run", latch.await(TIMEOUT, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.test.AndroidTestCase;
+
+import com.ravi.apps.android.popularmovies.data.MovieContract.MovieEntry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collections;
+
+/**
+ * Tests the poster files written by the poster store, the migration of the poster blobs into
+ * them and their garbage collection.
+ */
+public class TestPosterStore extends AndroidTestCase {
+
+    // Directory of the poster store under test.
+    private File mDirectory;
+
+    // Poster store under test.
+    private PosterStore mPosterStore;
+
+    // Creates a poster store over an empty directory.
+    public void setUp() throws Exception {
+        mDirectory = new File(mContext.getCacheDir(), "test-posters");
+        deleteDirectory();
+        mPosterStore = new PosterStore(mContext, mDirectory);
+    }
+
+    // Deletes the directory of the poster store.
+    public void tearDown() throws Exception {
+        deleteDirectory();
+    }
+
+    // Tests that a saved poster decodes and passes its checksum, and fails it once damaged.
+    public void testSaveAndVerify() throws Throwable {
+        Bitmap bitmap = Bitmap.createBitmap(92, 138, Bitmap.Config.ARGB_8888);
+        PosterStore.PosterFile posterFile = mPosterStore.saveBitmap(12345, bitmap);
+
+        File file = mPosterStore.getFile(posterFile.getName());
+        assertNotNull("Error: Poster file does not decode", BitmapFactory.decodeFile(file.getPath()));
+        assertTrue("Error: Poster file failed its checksum",
+                mPosterStore.verify(posterFile.getName(), posterFile.getChecksum()));
+
+        // Damage the poster file.
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(1);
+        out.close();
+        assertFalse("Error: Damaged poster file passed its checksum",
+                mPosterStore.verify(posterFile.getName(), posterFile.getChecksum()));
+    }
+
+    // Tests that thumbnails are scaled down to their width keeping the poster aspect ratio.
+    public void testCreateThumbnail() {
+        Bitmap bitmap = Bitmap.createBitmap(342, 513, Bitmap.Config.ARGB_8888);
+        Bitmap thumbnail = PosterStore.createThumbnail(bitmap, 180);
+        assertEquals("Error: Wrong thumbnail width", 180, thumbnail.getWidth());
+        assertEquals("Error: Wrong thumbnail height", 270, thumbnail.getHeight());
+
+        assertSame("Error: Poster narrower than the thumbnail was scaled", bitmap,
+                PosterStore.createThumbnail(bitmap, 400));
+    }
+
+    // Tests that a thumbnail file is only written for a poster wider than the thumbnail.
+    public void testSaveThumbnail() throws Throwable {
+        // A poster as narrow as a grid cell is its own thumbnail.
+        Bitmap gridPoster = Bitmap.createBitmap(10, 15, Bitmap.Config.ARGB_8888);
+        PosterStore.PosterFile gridPosterFile = mPosterStore.saveBitmap(1, gridPoster);
+        assertSame("Error: Thumbnail written for a poster narrower than the thumbnail",
+                gridPosterFile, mPosterStore.saveThumbnail(1, gridPoster, gridPosterFile));
+        assertEquals("Error: Extra file written", 1, mDirectory.listFiles().length);
+
+        // A full size poster is scaled down into its own thumbnail file.
+        Bitmap fullPoster = Bitmap.createBitmap(2000, 3000, Bitmap.Config.ARGB_8888);
+        PosterStore.PosterFile fullPosterFile = mPosterStore.saveBitmap(2, fullPoster);
+        PosterStore.PosterFile thumbnailFile =
+                mPosterStore.saveThumbnail(2, fullPoster, fullPosterFile);
+        assertFalse("Error: Thumbnail not written for a full size poster",
+                thumbnailFile.getName().equals(fullPosterFile.getName()));
+        assertTrue("Error: Thumbnail file is not smaller than its poster",
+                mPosterStore.getFile(thumbnailFile.getName()).length()
+                        < mPosterStore.getFile(fullPosterFile.getName()).length());
+    }
+
+    // Tests that a poster blob is moved into a poster file and dropped from the movie table.
+    public void testMigrateBlobs() throws Throwable {
+        final long movieId = 999001;
+        String[] selectionArgs = {Long.toString(movieId)};
+
+        // Store a favorite with its poster as a blob, as before version 5.
+        Bitmap bitmap = Bitmap.createBitmap(500, 750, Bitmap.Config.ARGB_8888);
+        ByteArrayOutputStream blob = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, blob);
+        ContentValues values = new ContentValues();
+        values.put(MovieEntry.COLUMN_MOVIE_ID, movieId);
+        values.put(MovieEntry.COLUMN_ORIGINAL_TITLE, "Movie");
+        values.put(MovieEntry.COLUMN_POSTER_IMAGE, blob.toByteArray());
+        mContext.getContentResolver().insert(MovieEntry.CONTENT_URI, values);
+
+        try {
+            assertTrue("Error: Poster blob not migrated", mPosterStore.migrateBlobs() >= 1);
+
+            Cursor cursor = mContext.getContentResolver().query(MovieEntry.CONTENT_URI,
+                    new String[] {MovieEntry.COLUMN_POSTER_IMAGE, MovieEntry.COLUMN_POSTER_FILE,
+                            MovieEntry.COLUMN_POSTER_CHECKSUM, MovieEntry.COLUMN_THUMBNAIL_FILE},
+                    MovieEntry.COLUMN_MOVIE_ID + " = ?", selectionArgs, null);
+            assertTrue("Error: Migrated movie not found", cursor.moveToFirst());
+            assertTrue("Error: Poster blob not cleared", cursor.isNull(0));
+            assertFalse("Error: Poster file column not set", cursor.isNull(1));
+            assertFalse("Error: Thumbnail file column not set", cursor.isNull(3));
+
+            String posterFileName = cursor.getString(1);
+            long posterChecksum = cursor.getLong(2);
+            String thumbnailFileName = cursor.getString(3);
+            cursor.close();
+
+            assertTrue("Error: Poster file not written",
+                    mPosterStore.getFile(posterFileName).exists());
+            assertTrue("Error: Poster file failed its checksum",
+                    mPosterStore.verify(posterFileName, posterChecksum));
+            assertTrue("Error: Thumbnail file not written",
+                    mPosterStore.getFile(thumbnailFileName).exists());
+        } finally {
+            mContext.getContentResolver().delete(MovieEntry.CONTENT_URI,
+                    MovieEntry.COLUMN_MOVIE_ID + " = ?", selectionArgs);
+        }
+    }
+
+    // Tests that only the unreferenced files older than the grace period are deleted.
+    public void testDeleteOrphans() throws Throwable {
+        PosterStore.PosterFile referenced = mPosterStore.save(1, new byte[] {1, 2, 3});
+        PosterStore.PosterFile orphan = mPosterStore.save(2, new byte[] {4, 5, 6});
+
+        // Files written after the cutoff are kept even if unreferenced.
+        long cutoff = mPosterStore.getFile(orphan.getName()).lastModified();
+        assertEquals("Error: Recent orphan was deleted", 0, mPosterStore.deleteOrphans(
+                Collections.singleton(referenced.getName()), cutoff));
+
+        assertEquals("Error: Wrong number of orphans deleted", 1, mPosterStore.deleteOrphans(
+                Collections.singleton(referenced.getName()), cutoff + 1));
+        assertTrue("Error: Referenced poster was deleted",
+                mPosterStore.getFile(referenced.getName()).exists());
+        assertFalse("Error: Orphaned poster was not deleted",
+                mPosterStore.getFile(orphan.getName()).exists());
+    }
+
+    // Deletes the directory of the poster store and its files.
+    private void deleteDirectory() {
+        File[] files = mDirectory.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+}
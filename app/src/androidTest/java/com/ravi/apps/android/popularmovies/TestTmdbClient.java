@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.test.AndroidTestCase;
+
+import com.squareup.okhttp.Cache;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the shared TMDB client against a local stand-in server.
+ */
+public class TestTmdbClient extends AndroidTestCase {
+
+    // Local stand-in for the TMDB server.
+    private MockWebServer mServer;
+
+    // Response cache used by the client under test.
+    private Cache mCache;
+
+    // Client under test, with its own connection pool and cache.
+    private TmdbClient mClient;
+
+    // Starts the local server and creates the client.
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+
+        mCache = new Cache(new File(mContext.getCacheDir(), "test-tmdb-http"), 1024 * 1024);
+        mClient = new TmdbClient(mContext, new ConnectionPool(5, 60 * 1000), mCache);
+    }
+
+    // Stops the local server and deletes the cache.
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+        mCache.delete();
+    }
+
+    // Tests that consecutive requests reuse the same pooled connection.
+    public void testConnectionReuse() throws Throwable {
+        final int requestCount = 5;
+
+        // Queue the responses.
+        for(int i = 0; i < requestCount; i++) {
+            mServer.enqueue(new MockResponse().setBody("{\"results\":[]}"));
+        }
+
+        // Make the requests, consuming each body fully so the connection is released.
+        for(int i = 0; i < requestCount; i++) {
+            Response response = mClient.get(mServer.getUrl("/discover/movie?page=" + i).toString());
+            response.body().string();
+        }
+
+        // Every request after the first must have been made on the same connection.
+        for(int i = 0; i < requestCount; i++) {
+            RecordedRequest request = mServer.takeRequest();
+            assertEquals("Error: Request was not made on the pooled connection",
+                    i, request.getSequenceNumber());
+        }
+
+        // Verify the connection is still held in the pool.
+        assertEquals("Error: Connection was not returned to the pool",
+                1, mClient.getConnectionPool().getConnectionCount());
+    }
+
+    // Tests that fresh responses are served from the cache and stale ones are revalidated.
+    public void testResponseCache() throws Throwable {
+        String body = "{\"results\":[]}";
+
+        // Fresh response, then a stale one with an ETag followed by a 304 for it.
+        mServer.enqueue(new MockResponse().setBody(body).setHeader("Cache-Control", "max-age=60"));
+        mServer.enqueue(new MockResponse().setBody(body).setHeader("ETag", "\"v1\"")
+                .setHeader("Cache-Control", "no-cache"));
+        mServer.enqueue(new MockResponse().setResponseCode(304).setHeader("ETag", "\"v1\""));
+
+        // First request is a miss, the second is served from the cache.
+        String freshUrl = mServer.getUrl("/discover/movie").toString();
+        assertEquals(body, mClient.get(freshUrl).body().string());
+        assertEquals(body, mClient.get(freshUrl).body().string());
+
+        // Stale response is downloaded, then revalidated without downloading it again.
+        String staleUrl = mServer.getUrl("/movie/1").toString();
+        assertEquals(body, mClient.get(staleUrl).body().string());
+        assertEquals(body, mClient.get(staleUrl).body().string());
+
+        assertEquals("Error: Wrong cache hit count", 1, mClient.getCacheHitCount());
+        assertEquals("Error: Wrong cache miss count", 2, mClient.getCacheMissCount());
+        assertEquals("Error: Wrong cache revalidation count", 1, mClient.getCacheRevalidationCount());
+
+        // Verify the conditional request and that the api key was sent but not cached.
+        assertEquals("Error: Server was contacted for a fresh response", 3, mServer.getRequestCount());
+        mServer.takeRequest();
+        mServer.takeRequest();
+        RecordedRequest conditional = mServer.takeRequest();
+        assertEquals("Error: Request was not conditional", "\"v1\"",
+                conditional.getHeader("If-None-Match"));
+        assertTrue("Error: Api key was not sent", conditional.getPath().contains("api_key="));
+    }
+
+    // Tests that a fresh cached response is served without waiting for the scheduler.
+    public void testCacheHitSkipsRateLimit() throws Throwable {
+        // Client allowed a single request every thirty seconds.
+        TmdbClient client = new TmdbClient(mContext, new ConnectionPool(5, 60 * 1000), mCache,
+                new TmdbRequestScheduler(1, 30, TimeUnit.SECONDS));
+        mServer.enqueue(new MockResponse().setBody("{\"results\":[]}")
+                .setHeader("Cache-Control", "max-age=60"));
+
+        // The first request takes the only token, the second is served from the cache.
+        String url = mServer.getUrl("/discover/movie").toString();
+        client.get(url).body().string();
+        long start = System.nanoTime();
+        client.get(url).body().string();
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals("Error: Cached response was fetched again", 1, mServer.getRequestCount());
+        assertEquals("Error: Wrong cache hit count", 1, client.getCacheHitCount());
+        assertTrue("Error: Cached response waited for the scheduler for " + elapsedMs + " ms",
+                elapsedMs < 1000);
+    }
+
+    // Tests that an error response is surfaced as an exception.
+    public void testErrorResponse() throws Throwable {
+        mServer.enqueue(new MockResponse().setResponseCode(401));
+
+        try {
+            mClient.get(mServer.getUrl("/movie/1").toString());
+            fail("Error: Expected an exception for the error response");
+        } catch (IOException e) {
+            assertTrue("Error: Unexpected error message", e.getMessage()
+                    .contains(mContext.getString(R.string.err_authentication_failed)));
+        }
+    }
+
+    // Tests that cancelling the token aborts the download of the response body.
+    public void testCancellation() throws Throwable {
+        // Body that takes about ten seconds to stream.
+        StringBuilder body = new StringBuilder();
+        for(int i = 0; i < 100; i++) {
+            body.append("{\"results\":[]}");
+        }
+        mServer.enqueue(new MockResponse().setBody(body.toString())
+                .throttleBody(150, 1, TimeUnit.SECONDS));
+
+        final CancellationToken token = new CancellationToken();
+        Response response = mClient.get(mServer.getUrl("/discover/movie").toString(),
+                TmdbRequestScheduler.PRIORITY_FOREGROUND, token);
+
+        // Cancel while the body is being read.
+        token.setDeadline(500, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        try {
+            response.body().string();
+            fail("Error: Expected an exception for the cancelled download");
+        } catch (IOException e) {
+            // Expected.
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("Error: Deadline was not reported", token.isDeadlineExceeded());
+        assertTrue("Error: Download was not aborted, took " + elapsedMs + " ms", elapsedMs < 5000);
+    }
+}
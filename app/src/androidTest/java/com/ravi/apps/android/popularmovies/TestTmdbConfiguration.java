@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests the poster size selection and poster url building.
+ */
+public class TestTmdbConfiguration extends AndroidTestCase {
+
+    // Poster sizes offered by the server.
+    private static final List<String> POSTER_SIZES =
+            Arrays.asList("w92", "w154", "w185", "w342", "w500", "w780", "original");
+
+    // Tests that the smallest poster size covering the width is selected.
+    public void testSelectPosterSize() {
+        assertEquals("Error: Wrong size for a small cell", "w92",
+                TmdbConfiguration.selectPosterSize(POSTER_SIZES, 80));
+        assertEquals("Error: Wrong size for an exact width", "w185",
+                TmdbConfiguration.selectPosterSize(POSTER_SIZES, 185));
+        assertEquals("Error: Wrong size for a phone cell", "w342",
+                TmdbConfiguration.selectPosterSize(POSTER_SIZES, 270));
+        assertEquals("Error: Original size was not used for a huge view", "original",
+                TmdbConfiguration.selectPosterSize(POSTER_SIZES, 1200));
+        assertEquals("Error: Widest size was not used without original", "w500",
+                TmdbConfiguration.selectPosterSize(Arrays.asList("w92", "w500"), 1200));
+    }
+
+    // Tests that the poster url is built from the poster path and covers the view height.
+    public void testGetPosterUrl() {
+        TmdbConfiguration configuration = TmdbConfiguration.getInstance(mContext);
+
+        assertNull("Error: Url built without a poster", configuration.getPosterUrl(null, 100, 100));
+
+        // A 100 x 300 view needs a poster 200 pixels wide to cover its height.
+        String posterUrl = configuration.getPosterUrl("/poster.jpg", 100, 300);
+        assertTrue("Error: Wrong poster url built " + posterUrl,
+                posterUrl.endsWith("/w342/poster.jpg"));
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.List;
+
+/**
+ * Tests the streaming TMDB parser and benchmarks it against the JSON tree parsing.
+ */
+public class TestTmdbJsonParser extends AndroidTestCase {
+
+    // Tag for logging the benchmark results.
+    private static final String LOG_TAG = TestTmdbJsonParser.class.getSimpleName();
+
+    // Number of benchmark iterations.
+    private static final int ITERATIONS = 20;
+
+    // Tests parsing of the discover response.
+    public void testParseMovieList() throws Throwable {
+        DiscoverLoaderResult result = new DiscoverLoaderResult();
+        TmdbJsonParser.parseMovieList(mContext, toReader(buildDiscoverJson(20)), result);
+        List<Movie> movieList = result.getData();
+
+        assertEquals("Error: Wrong number of pages parsed", 500, result.getTotalPages());
+        assertEquals("Error: Wrong number of movies parsed", 20, movieList.size());
+        assertEquals("Error: Wrong movie id parsed", 1000, movieList.get(0).getId());
+        assertTrue("Error: Wrong poster path parsed",
+                movieList.get(0).getPosterPath().endsWith("/poster0.jpg"));
+        assertEquals("Error: Wrong title parsed", "Movie 0", movieList.get(0).getOriginalTitle());
+        assertEquals("Error: Wrong vote average parsed", 7.1, movieList.get(0).getVoteAverage());
+    }
+
+    // Tests parsing of the details response, including the unused and null fields.
+    public void testParseMovieDetails() throws Throwable {
+        Movie movie = TmdbJsonParser.parseMovieDetails(mContext,
+                toReader(buildDetailsJson(3, 5)));
+
+        assertEquals("Error: Wrong movie id parsed", 76341, movie.getId());
+        assertEquals("Error: Wrong title parsed", "Mad Max: Fury Road", movie.getOriginalTitle());
+        assertEquals("Error: Wrong runtime parsed", 0, movie.getRuntime());
+        assertEquals("Error: Wrong vote average parsed", 7.5, movie.getVoteAverage());
+        assertEquals("Error: Non YouTube trailers were not skipped", 2, movie.getTrailerList().size());
+        assertEquals("Error: Wrong number of reviews parsed", 5, movie.getReviewList().size());
+    }
+
+    // Tests parsing of the configuration response.
+    public void testParseConfiguration() throws Throwable {
+        String json = "{\"images\":{\"base_url\":\"http://image.tmdb.org/t/p/\","
+                + "\"secure_base_url\":\"https://image.tmdb.org/t/p/\","
+                + "\"backdrop_sizes\":[\"w300\",\"original\"],"
+                + "\"poster_sizes\":[\"w92\",\"w154\",\"w185\",\"original\"]},"
+                + "\"change_keys\":[\"adult\",\"images\"]}";
+
+        TmdbConfiguration.Images images = TmdbJsonParser.parseConfiguration(toReader(json));
+
+        assertEquals("Error: Wrong base url parsed", "http://image.tmdb.org/t/p/",
+                images.getBaseUrl());
+        assertEquals("Error: Wrong poster sizes parsed", 4, images.getPosterSizes().size());
+        assertEquals("Error: Wrong poster size parsed", "w154", images.getPosterSizes().get(1));
+    }
+
+    // Benchmarks parse time and total allocations of the streaming parser against the tree
+    // parser. The thread allocation counter adds up every byte allocated during the parses,
+    // including the garbage collected along the way, so it doesn't measure the peak heap.
+    public void testParseBenchmark() throws Throwable {
+        String json = buildDetailsJson(20, 200);
+
+        // Warm up both paths.
+        parseWithTree(json);
+        TmdbJsonParser.parseMovieDetails(mContext, toReader(json));
+
+        // Measure the JSON tree path: read into a string buffer, then build the object tree.
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocSize();
+        long start = System.nanoTime();
+        for(int i = 0; i < ITERATIONS; i++) {
+            parseWithTree(json);
+        }
+        long treeNanos = System.nanoTime() - start;
+        long treeAllocatedBytes = Debug.getThreadAllocSize();
+
+        // Measure the streaming path.
+        Debug.resetThreadAllocSize();
+        start = System.nanoTime();
+        for(int i = 0; i < ITERATIONS; i++) {
+            TmdbJsonParser.parseMovieDetails(mContext, toReader(json));
+        }
+        long streamNanos = System.nanoTime() - start;
+        long streamAllocatedBytes = Debug.getThreadAllocSize();
+        Debug.stopAllocCounting();
+
+        Log.i(LOG_TAG, "Payload: " + json.length() + " chars, " + ITERATIONS + " iterations");
+        Log.i(LOG_TAG, "Tree parser: " + treeNanos / ITERATIONS / 1000 + " us, "
+                + treeAllocatedBytes / ITERATIONS + " bytes allocated in total per parse");
+        Log.i(LOG_TAG, "Streaming parser: " + streamNanos / ITERATIONS / 1000 + " us, "
+                + streamAllocatedBytes / ITERATIONS + " bytes allocated in total per parse");
+
+        assertTrue("Error: Streaming parser allocated more in total than the tree parser",
+                streamAllocatedBytes < treeAllocatedBytes);
+    }
+
+    // Parses the details the way the loaders used to: buffer the body, then build the tree.
+    private void parseWithTree(String json) throws Throwable {
+        BufferedReader bufferedReader = new BufferedReader(toReader(json));
+        StringBuffer stringBuffer = new StringBuffer();
+        String line;
+        while((line = bufferedReader.readLine()) != null) {
+            stringBuffer.append(line);
+        }
+
+        JSONObject movieJson = new JSONObject(stringBuffer.toString());
+        movieJson.getInt("id");
+        movieJson.getString("original_title");
+        movieJson.getString("overview");
+
+        JSONArray trailers = movieJson.getJSONObject("videos").getJSONArray("results");
+        for(int i = 0; i < trailers.length(); i++) {
+            JSONObject trailer = trailers.getJSONObject(i);
+            new Movie.Trailer(trailer.getString("id"), trailer.getString("key"),
+                    trailer.getString("name"));
+        }
+
+        JSONArray reviews = movieJson.getJSONObject("reviews").getJSONArray("results");
+        for(int i = 0; i < reviews.length(); i++) {
+            JSONObject review = reviews.getJSONObject(i);
+            new Movie.Review(review.getString("id"), review.getString("author"),
+                    review.getString("content"));
+        }
+    }
+
+    // Returns a reader over the bytes of the json string, like a response body stream.
+    private Reader toReader(String json) throws Throwable {
+        return new InputStreamReader(new ByteArrayInputStream(json.getBytes("UTF-8")), "UTF-8");
+    }
+
+    // Builds a discover response with the given number of results.
+    private String buildDiscoverJson(int results) {
+        StringBuilder json = new StringBuilder("{\"page\":1,\"results\":[");
+        for(int i = 0; i < results; i++) {
+            if(i > 0) json.append(',');
+            json.append("{\"adult\":false,\"backdrop_path\":\"/backdrop.jpg\",\"genre_ids\":[28,12],")
+                    .append("\"id\":").append(1000 + i).append(',')
+                    .append("\"original_title\":\"Movie ").append(i).append("\",")
+                    .append("\"poster_path\":\"/poster").append(i).append(".jpg\",")
+                    .append("\"popularity\":50.5,\"vote_average\":7.1,\"vote_count\":1200}");
+        }
+        json.append("],\"total_pages\":500,\"total_results\":10000}");
+        return json.toString();
+    }
+
+    // Builds a details response with the given number of trailers and reviews.
+    private String buildDetailsJson(int trailers, int reviews) {
+        StringBuilder json = new StringBuilder("{\"adult\":false,\"budget\":150000000,")
+                .append("\"genres\":[{\"id\":28,\"name\":\"Action\"}],\"id\":76341,")
+                .append("\"original_title\":\"Mad Max: Fury Road\",")
+                .append("\"overview\":\"An apocalyptic story set in the furthest reaches of our planet.\",")
+                .append("\"poster_path\":\"/kqjL17yufvn9OVLyXYpvtyrFfak.jpg\",")
+                .append("\"production_companies\":[{\"name\":\"Village Roadshow Pictures\",\"id\":79}],")
+                .append("\"release_date\":\"2015-05-13\",\"runtime\":null,\"vote_average\":7.5,")
+                .append("\"videos\":{\"results\":[");
+        for(int i = 0; i < trailers; i++) {
+            if(i > 0) json.append(',');
+            json.append("{\"id\":\"trailer").append(i).append("\",\"iso_639_1\":\"en\",")
+                    .append("\"key\":\"key").append(i).append("\",\"name\":\"Trailer ").append(i)
+                    .append("\",\"site\":\"").append(i % 3 == 2 ? "Vimeo" : "YouTube")
+                    .append("\",\"size\":1080,\"type\":\"Trailer\"}");
+        }
+        json.append("]},\"reviews\":{\"page\":1,\"results\":[");
+        for(int i = 0; i < reviews; i++) {
+            if(i > 0) json.append(',');
+            json.append("{\"id\":\"review").append(i).append("\",\"author\":\"Author ").append(i)
+                    .append("\",\"content\":\"");
+            for(int j = 0; j < 20; j++) {
+                json.append("A long review paragraph about the movie. ");
+            }
+            json.append("\",\"url\":\"http://j.mp/review").append(i).append("\"}");
+        }
+        json.append("],\"total_pages\":1,\"total_results\":").append(reviews).append("}}");
+        return json.toString();
+    }
+}
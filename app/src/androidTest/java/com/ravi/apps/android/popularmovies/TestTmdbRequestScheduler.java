@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.test.AndroidTestCase;
+
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests the pacing and prioritization of the TMDB requests.
+ */
+public class TestTmdbRequestScheduler extends AndroidTestCase {
+
+    // Tests that requests beyond the bucket capacity are queued till tokens are refilled.
+    public void testTokenBucket() throws Throwable {
+        TmdbRequestScheduler scheduler = new TmdbRequestScheduler(2, 1, TimeUnit.SECONDS);
+
+        // Two requests are allowed right away, the next two wait half a second each.
+        long start = System.nanoTime();
+        for(int i = 0; i < 4; i++) {
+            scheduler.acquire(TmdbRequestScheduler.PRIORITY_FOREGROUND);
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("Error: Requests were not paced, took " + elapsedMs + " ms", elapsedMs >= 900);
+    }
+
+    // Tests that a cancelled request stops waiting for a token.
+    public void testCancelledAcquire() throws Throwable {
+        final TmdbRequestScheduler scheduler = new TmdbRequestScheduler(1, 30, TimeUnit.SECONDS);
+        scheduler.acquire(TmdbRequestScheduler.PRIORITY_FOREGROUND);
+
+        // The next request waits for the token refilled in thirty seconds.
+        final CancellationToken token = new CancellationToken();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread waiting = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scheduler.acquire(TmdbRequestScheduler.PRIORITY_FOREGROUND, token);
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        });
+        waiting.start();
+        Thread.sleep(200);
+
+        long start = System.nanoTime();
+        token.cancel();
+        waiting.join(5000);
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertFalse("Error: Cancelled request is still waiting", waiting.isAlive());
+        assertTrue("Error: Cancelled request kept waiting for " + elapsedMs + " ms",
+                elapsedMs < 1000);
+        assertTrue("Error: Cancelled request did not fail",
+                failure.get() instanceof InterruptedIOException);
+    }
+
+    // Tests that waiting foreground requests are served before background ones.
+    public void testForegroundPriority() throws Throwable {
+        final TmdbRequestScheduler scheduler = new TmdbRequestScheduler(1, 1, TimeUnit.SECONDS);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+
+        // Drain the bucket.
+        scheduler.acquire(TmdbRequestScheduler.PRIORITY_FOREGROUND);
+
+        // Queue a background request, then a foreground one.
+        Thread background = startAcquire(scheduler, TmdbRequestScheduler.PRIORITY_BACKGROUND, order);
+        Thread.sleep(100);
+        Thread foreground = startAcquire(scheduler, TmdbRequestScheduler.PRIORITY_FOREGROUND, order);
+
+        background.join(5000);
+        foreground.join(5000);
+
+        assertEquals("Error: Requests did not complete", 2, order.size());
+        assertEquals("Error: Foreground request was not served first",
+                TmdbRequestScheduler.PRIORITY_FOREGROUND, (int) order.get(0));
+    }
+
+    // Tests that a rate limited request is retried once the server allows it.
+    public void testRetryAfter() throws Throwable {
+        MockWebServer server = new MockWebServer();
+        server.start();
+
+        try {
+            TmdbRequestScheduler scheduler = new TmdbRequestScheduler(40, 10, TimeUnit.SECONDS);
+            TmdbClient client = new TmdbClient(mContext, new ConnectionPool(5, 60 * 1000), null,
+                    scheduler);
+
+            server.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "1"));
+            server.enqueue(new MockResponse().setBody("{\"results\":[]}"));
+
+            long start = System.nanoTime();
+            String body = client.get(server.getUrl("/discover/movie").toString()).body().string();
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertEquals("Error: Retried response was not returned", "{\"results\":[]}", body);
+            assertEquals("Error: Request was not retried", 2, server.getRequestCount());
+            assertEquals("Error: Rate limited response was not counted",
+                    1, scheduler.getRateLimitedCount());
+            assertTrue("Error: Retry-After was not honored, took " + elapsedMs + " ms",
+                    elapsedMs >= 900);
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    // Starts a thread acquiring a token and recording its priority once it gets one.
+    private Thread startAcquire(final TmdbRequestScheduler scheduler, final int priority,
+                                final List<Integer> order) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scheduler.acquire(priority);
+                    order.add(priority);
+                } catch (Exception e) {
+                    // Order is left incomplete and the test fails.
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
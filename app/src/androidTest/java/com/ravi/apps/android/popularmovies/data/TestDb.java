@@ -21,15 +21,39 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.test.AndroidTestCase;
 
+import java.io.File;
 import java.util.HashSet;
 
 /**
  * Tests the movie database.
  */
 public class TestDb extends AndroidTestCase {
+    // Name of the database upgraded by the tests.
+    private static final String UPGRADE_DATABASE_NAME = "test-upgrade-movie.db";
+
+    // SQL statements creating the movie, trailer and review tables of version 6, the columns
+    // added by the upgrades following the others.
+    private static final String SQL_CREATE_VERSION_6_MOVIE_TABLE =
+            "CREATE TABLE movie (_id INTEGER PRIMARY KEY, movie_id INTEGER NOT NULL, " +
+            "original_title TEXT, poster_image BLOB, release_date TEXT, runtime INTEGER, " +
+            "vote_average REAL, overview TEXT, poster_file TEXT, poster_checksum INTEGER, " +
+            "thumbnail_file TEXT, thumbnail_checksum INTEGER, " +
+            "UNIQUE (movie_id) ON CONFLICT REPLACE);";
+    private static final String SQL_CREATE_VERSION_6_TRAILER_TABLE =
+            "CREATE TABLE trailer (_id INTEGER PRIMARY KEY, movie_key INTEGER NOT NULL, " +
+            "trailer_id TEXT NOT NULL, uri TEXT, name TEXT, " +
+            " FOREIGN KEY (movie_key) REFERENCES movie (movie_id) " +
+            "UNIQUE (trailer_id) ON CONFLICT REPLACE);";
+    private static final String SQL_CREATE_VERSION_6_REVIEW_TABLE =
+            "CREATE TABLE review (_id INTEGER PRIMARY KEY, movie_key INTEGER NOT NULL, " +
+            "review_id TEXT NOT NULL, author TEXT, content TEXT, " +
+            " FOREIGN KEY (movie_key) REFERENCES movie (movie_id) " +
+            "UNIQUE (review_id) ON CONFLICT REPLACE);";
+
     // Deletes the database.
     void deleteDatabase() {
         mContext.deleteDatabase(MovieDbHelper.DATABASE_NAME);
+        mContext.deleteDatabase(UPGRADE_DATABASE_NAME);
     }
 
     // Starts afresh every time.
@@ -75,7 +99,12 @@ public class TestDb extends AndroidTestCase {
         movieColumnHashSet.add(MovieContract.MovieEntry.COLUMN_MOVIE_ID);
         movieColumnHashSet.add(MovieContract.MovieEntry.COLUMN_ORIGINAL_TITLE);
         movieColumnHashSet.add(MovieContract.MovieEntry.COLUMN_POSTER_IMAGE);
+        movieColumnHashSet.add(MovieContract.MovieEntry.COLUMN_POSTER_FILE);
+        movieColumnHashSet.add(MovieContract.MovieEntry.COLUMN_POSTER_CHECKSUM);
+        movieColumnHashSet.add(MovieContract.MovieEntry.COLUMN_THUMBNAIL_FILE);
+        movieColumnHashSet.add(MovieContract.MovieEntry.COLUMN_THUMBNAIL_CHECKSUM);
         movieColumnHashSet.add(MovieContract.MovieEntry.COLUMN_RELEASE_DATE);
+        movieColumnHashSet.add(MovieContract.MovieEntry.COLUMN_RELEASE_DAY);
         movieColumnHashSet.add(MovieContract.MovieEntry.COLUMN_RUNTIME);
         movieColumnHashSet.add(MovieContract.MovieEntry.COLUMN_VOTE_AVERAGE);
         movieColumnHashSet.add(MovieContract.MovieEntry.COLUMN_OVERVIEW);
@@ -150,8 +179,12 @@ public class TestDb extends AndroidTestCase {
 
         movieContent.put(MovieContract.MovieEntry.COLUMN_MOVIE_ID, 12345);
         movieContent.put(MovieContract.MovieEntry.COLUMN_ORIGINAL_TITLE, "Mad Max");
-        movieContent.put(MovieContract.MovieEntry.COLUMN_POSTER_IMAGE, new byte[]{1, 2});
+        movieContent.put(MovieContract.MovieEntry.COLUMN_POSTER_FILE, "12345.jpg");
+        movieContent.put(MovieContract.MovieEntry.COLUMN_POSTER_CHECKSUM, 3632233996L);
+        movieContent.put(MovieContract.MovieEntry.COLUMN_THUMBNAIL_FILE, "12345_thumb.jpg");
+        movieContent.put(MovieContract.MovieEntry.COLUMN_THUMBNAIL_CHECKSUM, 1208963127L);
         movieContent.put(MovieContract.MovieEntry.COLUMN_RELEASE_DATE, "2015-4-10");
+        movieContent.put(MovieContract.MovieEntry.COLUMN_RELEASE_DAY, 20150410);
         movieContent.put(MovieContract.MovieEntry.COLUMN_RUNTIME, 90);
         movieContent.put(MovieContract.MovieEntry.COLUMN_VOTE_AVERAGE, 7.5);
         movieContent.put(MovieContract.MovieEntry.COLUMN_OVERVIEW, "Good movie");
@@ -232,4 +265,195 @@ public class TestDb extends AndroidTestCase {
         reviewCursor.close();
         db.close();
     }
+
+    // Tests that the favorites queries are served by the indexes.
+    public void testQueryPlans() throws Throwable {
+        SQLiteDatabase db = new MovieDbHelper(this.mContext).getWritableDatabase();
+        assertEquals(true, db.isOpen());
+
+        // The trailers and reviews of a favorite are looked up by movie key.
+        String trailerPlan = getQueryPlan(db, "SELECT * FROM "
+                + MovieContract.TrailerEntry.TABLE_NAME + " WHERE "
+                + MovieContract.TrailerEntry.COLUMN_MOVIE_KEY + " = 12345");
+        assertTrue("Error: Trailers not looked up by index: " + trailerPlan,
+                trailerPlan.contains("trailer_movie_key_index"));
+
+        String reviewPlan = getQueryPlan(db, "SELECT * FROM "
+                + MovieContract.ReviewEntry.TABLE_NAME + " WHERE "
+                + MovieContract.ReviewEntry.COLUMN_MOVIE_KEY + " = 12345");
+        assertTrue("Error: Reviews not looked up by index: " + reviewPlan,
+                reviewPlan.contains("review_movie_key_index"));
+
+        // The favorites grid is sorted by release day without a temporary b-tree.
+        String favoritesPlan = getQueryPlan(db, "SELECT * FROM "
+                + MovieContract.MovieEntry.TABLE_NAME + " ORDER BY "
+                + MovieContract.MovieEntry.COLUMN_RELEASE_DAY + " DESC");
+        assertTrue("Error: Favorites not sorted by index: " + favoritesPlan,
+                favoritesPlan.contains("movie_release_day_index"));
+        assertFalse("Error: Favorites sorted in a temporary b-tree: " + favoritesPlan,
+                favoritesPlan.contains("TEMP B-TREE"));
+
+        db.close();
+    }
+
+    // Tests deriving the release day from the release date.
+    public void testReleaseDay() throws Throwable {
+        assertEquals("Error: Wrong release day", Integer.valueOf(20150410),
+                MovieContract.MovieEntry.getReleaseDayFromDate("2015-04-10"));
+        assertEquals("Error: Wrong release day of an unpadded date", Integer.valueOf(20150410),
+                MovieContract.MovieEntry.getReleaseDayFromDate("2015-4-10"));
+        assertNull("Error: Release day of a malformed date",
+                MovieContract.MovieEntry.getReleaseDayFromDate("2015-13-10"));
+        assertNull("Error: Release day of a missing date",
+                MovieContract.MovieEntry.getReleaseDayFromDate(null));
+    }
+
+    // Returns the details of the query plan of the query, one step per line.
+    private String getQueryPlan(SQLiteDatabase db, String query) {
+        Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + query, null);
+        StringBuilder plan = new StringBuilder();
+        int detailIndex = c.getColumnIndex("detail");
+        while(c.moveToNext()) {
+            plan.append(c.getString(detailIndex)).append('\n');
+        }
+        c.close();
+        return plan.toString();
+    }
+
+    // Tests that the upgrade derives the release day of the stored movies, padded or not.
+    public void testUpgradeBackfillsReleaseDay() throws Throwable {
+        SQLiteDatabase oldDb = createVersion6Database();
+        insertVersion6Movie(oldDb, 1, "2015-4-10");
+        insertVersion6Movie(oldDb, 2, "2015-05-15");
+        insertVersion6Movie(oldDb, 3, "unknown");
+        oldDb.close();
+
+        SQLiteDatabase db = new MovieDbHelper(mContext, UPGRADE_DATABASE_NAME, false)
+                .getWritableDatabase();
+        Cursor c = db.query(MovieContract.MovieEntry.TABLE_NAME,
+                new String[] {MovieContract.MovieEntry.COLUMN_RELEASE_DAY},
+                null, null, null, null, MovieContract.MovieEntry.COLUMN_MOVIE_ID);
+
+        assertEquals("Error: Movies lost in the upgrade", 3, c.getCount());
+        c.moveToNext();
+        assertEquals("Error: Wrong release day of an unpadded date", 20150410, c.getInt(0));
+        c.moveToNext();
+        assertEquals("Error: Wrong release day of a padded date", 20150515, c.getInt(0));
+        c.moveToNext();
+        assertTrue("Error: Release day set for an invalid date", c.isNull(0));
+
+        c.close();
+        db.close();
+    }
+
+    // Tests that rebuilding the tables in version 8 keeps their rows, row ids and foreign keys.
+    public void testUpgradeRebuildsTables() throws Throwable {
+        SQLiteDatabase oldDb = createVersion6Database();
+        long movieRowId = insertVersion6Movie(oldDb, 7, "2015-06-12");
+
+        ContentValues trailerValues = new ContentValues();
+        trailerValues.put("movie_key", 7);
+        trailerValues.put("trailer_id", "trailer-7");
+        trailerValues.put("name", "Trailer");
+        long trailerRowId = oldDb.insert("trailer", null, trailerValues);
+        assertTrue("Error: Failed to insert values into trailer table", trailerRowId != -1);
+
+        ContentValues reviewValues = new ContentValues();
+        reviewValues.put("movie_key", 7);
+        reviewValues.put("review_id", "review-7");
+        reviewValues.put("author", "Author");
+        long reviewRowId = oldDb.insert("review", null, reviewValues);
+        assertTrue("Error: Failed to insert values into review table", reviewRowId != -1);
+        oldDb.close();
+
+        SQLiteDatabase db = new MovieDbHelper(mContext, UPGRADE_DATABASE_NAME, false)
+                .getWritableDatabase();
+
+        // Check the rows kept their row ids and values.
+        Cursor c = db.query(MovieContract.MovieEntry.TABLE_NAME,
+                new String[] {MovieContract.MovieEntry._ID,
+                        MovieContract.MovieEntry.COLUMN_ORIGINAL_TITLE},
+                null, null, null, null, null);
+        assertTrue("Error: Movie lost in the upgrade", c.moveToFirst());
+        assertEquals("Error: Movie row id changed", movieRowId, c.getLong(0));
+        assertEquals("Error: Movie title changed", "Movie 7", c.getString(1));
+        c.close();
+
+        c = db.query(MovieContract.TrailerEntry.TABLE_NAME,
+                new String[] {MovieContract.TrailerEntry._ID,
+                        MovieContract.TrailerEntry.COLUMN_MOVIE_KEY,
+                        MovieContract.TrailerEntry.COLUMN_TRAILER_ID},
+                null, null, null, null, null);
+        assertTrue("Error: Trailer lost in the upgrade", c.moveToFirst());
+        assertEquals("Error: Trailer row id changed", trailerRowId, c.getLong(0));
+        assertEquals("Error: Trailer movie key changed", 7, c.getInt(1));
+        assertEquals("Error: Trailer id changed", "trailer-7", c.getString(2));
+        c.close();
+
+        c = db.query(MovieContract.ReviewEntry.TABLE_NAME,
+                new String[] {MovieContract.ReviewEntry._ID,
+                        MovieContract.ReviewEntry.COLUMN_MOVIE_KEY,
+                        MovieContract.ReviewEntry.COLUMN_REVIEW_ID},
+                null, null, null, null, null);
+        assertTrue("Error: Review lost in the upgrade", c.moveToFirst());
+        assertEquals("Error: Review row id changed", reviewRowId, c.getLong(0));
+        assertEquals("Error: Review movie key changed", 7, c.getInt(1));
+        assertEquals("Error: Review id changed", "review-7", c.getString(2));
+        c.close();
+
+        // Check the foreign keys point to the rebuilt movie table.
+        assertEquals("Error: Trailer foreign key not pointing to the movie table",
+                MovieContract.MovieEntry.TABLE_NAME,
+                getForeignKeyTable(db, MovieContract.TrailerEntry.TABLE_NAME));
+        assertEquals("Error: Review foreign key not pointing to the movie table",
+                MovieContract.MovieEntry.TABLE_NAME,
+                getForeignKeyTable(db, MovieContract.ReviewEntry.TABLE_NAME));
+
+        // Check the old tables are gone and the conflicting rows are no longer replaced.
+        c = db.rawQuery("SELECT name, sql FROM sqlite_master WHERE type='table'", null);
+        while(c.moveToNext()) {
+            assertFalse("Error: Old table left behind: " + c.getString(0),
+                    c.getString(0).endsWith("_old"));
+            assertFalse("Error: Table still replaces conflicting rows: " + c.getString(0),
+                    c.getString(1).toUpperCase().contains("ON CONFLICT REPLACE"));
+        }
+        c.close();
+
+        db.close();
+    }
+
+    // Returns the table referenced by the foreign key of the passed in table.
+    private String getForeignKeyTable(SQLiteDatabase db, String tableName) {
+        Cursor c = db.rawQuery("PRAGMA foreign_key_list(" + tableName + ")", null);
+        try {
+            assertTrue("Error: No foreign key in table " + tableName, c.moveToFirst());
+            return c.getString(c.getColumnIndex("table"));
+        } finally {
+            c.close();
+        }
+    }
+
+    // Creates the upgrade database with the schema of version 6.
+    private SQLiteDatabase createVersion6Database() {
+        File file = mContext.getDatabasePath(UPGRADE_DATABASE_NAME);
+        file.getParentFile().mkdirs();
+
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        db.execSQL(SQL_CREATE_VERSION_6_MOVIE_TABLE);
+        db.execSQL(SQL_CREATE_VERSION_6_TRAILER_TABLE);
+        db.execSQL(SQL_CREATE_VERSION_6_REVIEW_TABLE);
+        db.setVersion(6);
+        return db;
+    }
+
+    // Inserts a movie into the version 6 schema and returns its row id.
+    private long insertVersion6Movie(SQLiteDatabase db, int movieId, String releaseDate) {
+        ContentValues values = new ContentValues();
+        values.put("movie_id", movieId);
+        values.put("original_title", "Movie " + movieId);
+        values.put("release_date", releaseDate);
+        long rowId = db.insert("movie", null, values);
+        assertTrue("Error: Failed to insert values into movie table", rowId != -1);
+        return rowId;
+    }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.ravi.apps.android.popularmovies.data.MovieContract.MovieEntry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the database access of the movie provider, reopening the database after every
+ * write as it used to against holding a single write-ahead logging connection.
+ */
+public class TestMovieDbBenchmark extends AndroidTestCase {
+
+    // Tag for logging messages.
+    private static final String LOG_TAG = TestMovieDbBenchmark.class.getSimpleName();
+
+    // Name of the database used by the benchmark.
+    private static final String DATABASE_NAME = "test-benchmark-movie.db";
+
+    // Number of reads and writes made, half of each.
+    private static final int OPERATION_COUNT = 1000;
+
+    // Number of distinct movies written.
+    private static final int MOVIE_COUNT = 100;
+
+    // Starts afresh every time.
+    public void setUp() {
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    // Deletes the database.
+    public void tearDown() {
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    // Benchmarks mixed reads and writes against an on-disk database.
+    public void testMixedReadsAndWrites() {
+        MovieDbHelper reopeningHelper = new MovieDbHelper(mContext, DATABASE_NAME, false);
+        long reopeningMs = runMixed(reopeningHelper, true);
+        reopeningHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+
+        MovieDbHelper persistentHelper = new MovieDbHelper(mContext, DATABASE_NAME, true);
+        long persistentMs = runMixed(persistentHelper, false);
+        persistentHelper.close();
+
+        Log.i(LOG_TAG, OPERATION_COUNT + " mixed reads and writes, reopening after every write: "
+                + reopeningMs + " ms");
+        Log.i(LOG_TAG, OPERATION_COUNT + " mixed reads and writes, persistent WAL connection: "
+                + persistentMs + " ms");
+
+        assertTrue("Error: Persistent WAL connection not faster than reopening the database",
+                persistentMs < reopeningMs);
+    }
+
+    /*
+     * Alternately writes a movie and reads one back, closing the database after each write
+     * if required. Returns the time taken, in ms.
+     */
+    private long runMixed(MovieDbHelper helper, boolean isClosingAfterWrite) {
+        long start = System.nanoTime();
+        for(int i = 0; i < OPERATION_COUNT; i++) {
+            long movieId = i / 2 % MOVIE_COUNT;
+            if(i % 2 == 0) {
+                // Write the movie, replacing its previous row.
+                SQLiteDatabase writeDb = helper.getWritableDatabase();
+                ContentValues values = new ContentValues();
+                values.put(MovieEntry.COLUMN_MOVIE_ID, movieId);
+                values.put(MovieEntry.COLUMN_ORIGINAL_TITLE, "Movie " + i);
+                values.put(MovieEntry.COLUMN_OVERVIEW, "Overview " + i);
+                assertTrue("Error: Insert failed", writeDb.insertWithOnConflict(
+                        MovieEntry.TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE) != -1);
+
+                if(isClosingAfterWrite) {
+                    helper.close();
+                }
+            } else {
+                // Read the movie back.
+                Cursor cursor = helper.getReadableDatabase().query(MovieEntry.TABLE_NAME,
+                        new String[] {MovieEntry.COLUMN_ORIGINAL_TITLE},
+                        MovieEntry.COLUMN_MOVIE_ID + " = ?",
+                        new String[] {Long.toString(movieId)}, null, null, null);
+                assertTrue("Error: Written movie not found", cursor.moveToFirst());
+                assertEquals("Error: Wrong movie read", "Movie " + (i - 1), cursor.getString(0));
+                cursor.close();
+            }
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.net.Uri;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.ravi.apps.android.popularmovies.DetailsFragment;
+import com.ravi.apps.android.popularmovies.data.MovieContract.MovieEntry;
+import com.ravi.apps.android.popularmovies.data.MovieContract.ReviewEntry;
+import com.ravi.apps.android.popularmovies.data.MovieContract.TrailerEntry;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the batches applied by the movie provider, its inserts of stored rows and the rows
+ * of its favorite details query.
+ */
+public class TestMovieProvider extends AndroidTestCase {
+
+    // Tag for logging messages.
+    private static final String LOG_TAG = TestMovieProvider.class.getSimpleName();
+
+    // Movie ids used by the tests, above the ids of the TMDB movies.
+    private static final int FIRST_MOVIE_ID = 900000000;
+
+    // Number of favorites saved by the benchmark.
+    private static final int FAVORITE_COUNT = 20;
+
+    // Number of trailers and reviews of each favorite.
+    private static final int TRAILER_COUNT = 5;
+    private static final int REVIEW_COUNT = 10;
+
+    // Content resolver.
+    private ContentResolver mContentResolver;
+
+    // Starts afresh every time.
+    public void setUp() {
+        mContentResolver = mContext.getContentResolver();
+        deleteTestMovies();
+    }
+
+    // Deletes the movies stored by the tests.
+    public void tearDown() {
+        deleteTestMovies();
+    }
+
+    // Tests that a batch failing partway stores none of its rows.
+    public void testBatchIsAtomic() throws Throwable {
+        ArrayList<ContentProviderOperation> operations = buildFavorite(FIRST_MOVIE_ID);
+
+        // A trailer without its id violates the not null constraint.
+        ContentValues trailerValues = new ContentValues();
+        trailerValues.put(TrailerEntry.COLUMN_MOVIE_KEY, FIRST_MOVIE_ID);
+        operations.add(ContentProviderOperation.newInsert(TrailerEntry.CONTENT_URI)
+                .withValues(trailerValues)
+                .build());
+
+        try {
+            mContentResolver.applyBatch(MovieContract.CONTENT_AUTHORITY, operations);
+            fail("Error: Batch with a failing insert was applied");
+        } catch (SQLException e) {
+            // Expected, the failing insert aborts the batch.
+        }
+
+        assertEquals("Error: Movie of the failed batch was stored", 0,
+                count(MovieEntry.CONTENT_URI, MovieEntry.COLUMN_MOVIE_ID));
+        assertEquals("Error: Trailers of the failed batch were stored", 0,
+                count(TrailerEntry.CONTENT_URI, TrailerEntry.COLUMN_MOVIE_KEY));
+        assertEquals("Error: Reviews of the failed batch were stored", 0,
+                count(ReviewEntry.CONTENT_URI, ReviewEntry.COLUMN_MOVIE_KEY));
+
+        // The same batch without the failing insert is stored whole.
+        mContentResolver.applyBatch(MovieContract.CONTENT_AUTHORITY,
+                buildFavorite(FIRST_MOVIE_ID));
+        assertEquals("Error: Movie was not stored", 1,
+                count(MovieEntry.CONTENT_URI, MovieEntry.COLUMN_MOVIE_ID));
+        assertEquals("Error: Trailers were not stored", TRAILER_COUNT,
+                count(TrailerEntry.CONTENT_URI, TrailerEntry.COLUMN_MOVIE_KEY));
+        assertEquals("Error: Reviews were not stored", REVIEW_COUNT,
+                count(ReviewEntry.CONTENT_URI, ReviewEntry.COLUMN_MOVIE_KEY));
+    }
+
+    // Tests that inserting a stored movie updates only its changed columns in place.
+    public void testInsertUpdatesStoredRow() throws Throwable {
+        Uri movieUri = mContentResolver.insert(MovieEntry.CONTENT_URI,
+                buildMovieValues(FIRST_MOVIE_ID));
+        Bundle countsBefore = getWriteCounts();
+
+        // Inserting the same values leaves the row untouched.
+        Uri unchangedUri = mContentResolver.insert(MovieEntry.CONTENT_URI,
+                buildMovieValues(FIRST_MOVIE_ID));
+        assertEquals("Error: Unchanged movie moved to another row", movieUri, unchangedUri);
+
+        // Inserting a changed title updates the row in place.
+        ContentValues changedValues = buildMovieValues(FIRST_MOVIE_ID);
+        changedValues.put(MovieEntry.COLUMN_ORIGINAL_TITLE, "Mad Max: Fury Road");
+        Uri changedUri = mContentResolver.insert(MovieEntry.CONTENT_URI, changedValues);
+        assertEquals("Error: Changed movie moved to another row", movieUri, changedUri);
+
+        Cursor cursor = mContentResolver.query(MovieEntry.CONTENT_URI,
+                new String[] {MovieEntry.COLUMN_ORIGINAL_TITLE},
+                MovieEntry.COLUMN_MOVIE_ID + " = ?",
+                new String[] {Integer.toString(FIRST_MOVIE_ID)}, null);
+        try {
+            assertEquals("Error: Movie stored more than once", 1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("Error: Changed title not stored", "Mad Max: Fury Road",
+                    cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+
+        Bundle countsAfter = getWriteCounts();
+        assertEquals("Error: Wrong number of rows inserted", 0,
+                getCountChange(countsBefore, countsAfter, MovieContract.KEY_INSERTED_COUNT));
+        assertEquals("Error: Wrong number of rows updated", 1,
+                getCountChange(countsBefore, countsAfter, MovieContract.KEY_UPDATED_COUNT));
+        assertEquals("Error: Wrong number of rows unchanged", 1,
+                getCountChange(countsBefore, countsAfter, MovieContract.KEY_UNCHANGED_COUNT));
+    }
+
+    // Tests that a favorite is queried as its movie row followed by a row per trailer and per
+    // review, each filling only its own columns, as the details screen reads it.
+    public void testQueryMovieWithTrailersAndReviews() throws Throwable {
+        // Store the favorite and another one, whose trailers and reviews mustn't be returned.
+        mContentResolver.applyBatch(MovieContract.CONTENT_AUTHORITY,
+                buildFavorite(FIRST_MOVIE_ID));
+        mContentResolver.applyBatch(MovieContract.CONTENT_AUTHORITY,
+                buildFavorite(FIRST_MOVIE_ID + 1));
+
+        Cursor cursor = mContentResolver.query(MovieEntry.appendMovieIdToUri(FIRST_MOVIE_ID),
+                DetailsFragment.FAVORITE_DETAILS_PROJECTION, null, null, null);
+        assertNotNull("Error: Favorite details query returned no cursor", cursor);
+
+        try {
+            assertEquals("Error: Wrong number of rows", 1 + TRAILER_COUNT + REVIEW_COUNT,
+                    cursor.getCount());
+
+            // The movie row comes first, without trailer or review data.
+            assertTrue("Error: Movie row missing", cursor.moveToFirst());
+            assertEquals("Error: Wrong movie", FIRST_MOVIE_ID,
+                    cursor.getInt(DetailsFragment.COL_MOVIE_ID));
+            assertEquals("Error: Wrong movie title", "Mad Max",
+                    cursor.getString(DetailsFragment.COL_ORIGINAL_TITLE));
+            assertTrue("Error: Movie row has a trailer id",
+                    cursor.isNull(DetailsFragment.COL_TRAILER_ID));
+            assertTrue("Error: Movie row has a review id",
+                    cursor.isNull(DetailsFragment.COL_REVIEW_ID));
+
+            // The trailer rows follow, in the order they were inserted.
+            for(int i = 0; i < TRAILER_COUNT; i++) {
+                assertTrue("Error: Trailer row missing", cursor.moveToNext());
+                assertEquals("Error: Wrong trailer row", FIRST_MOVIE_ID + "-t" + i,
+                        cursor.getString(DetailsFragment.COL_TRAILER_ID));
+                assertEquals("Error: Wrong trailer name", "Trailer " + i,
+                        cursor.getString(DetailsFragment.COL_NAME));
+                assertTrue("Error: Trailer row has a review id",
+                        cursor.isNull(DetailsFragment.COL_REVIEW_ID));
+                assertTrue("Error: Trailer row has movie data",
+                        cursor.isNull(DetailsFragment.COL_MOVIE_ID));
+            }
+
+            // The review rows come last, in the order they were inserted.
+            for(int i = 0; i < REVIEW_COUNT; i++) {
+                assertTrue("Error: Review row missing", cursor.moveToNext());
+                assertEquals("Error: Wrong review row", FIRST_MOVIE_ID + "-r" + i,
+                        cursor.getString(DetailsFragment.COL_REVIEW_ID));
+                assertEquals("Error: Wrong review author", "Author " + i,
+                        cursor.getString(DetailsFragment.COL_AUTHOR));
+                assertTrue("Error: Review row has a trailer id",
+                        cursor.isNull(DetailsFragment.COL_TRAILER_ID));
+                assertTrue("Error: Review row has movie data",
+                        cursor.isNull(DetailsFragment.COL_MOVIE_ID));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Benchmarks saving favorites through separate calls against a single batch.
+    public void testSaveLatency() throws Throwable {
+        // Save each favorite through an insert and two bulk inserts, as it used to be.
+        long start = System.nanoTime();
+        for(int i = 0; i < FAVORITE_COUNT; i++) {
+            int movieId = FIRST_MOVIE_ID + i;
+            mContentResolver.insert(MovieEntry.CONTENT_URI, buildMovieValues(movieId));
+            mContentResolver.bulkInsert(TrailerEntry.CONTENT_URI, buildTrailerValues(movieId));
+            mContentResolver.bulkInsert(ReviewEntry.CONTENT_URI, buildReviewValues(movieId));
+        }
+        long separateMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        deleteTestMovies();
+
+        // Save each favorite as a single batch.
+        start = System.nanoTime();
+        for(int i = 0; i < FAVORITE_COUNT; i++) {
+            mContentResolver.applyBatch(MovieContract.CONTENT_AUTHORITY,
+                    buildFavorite(FIRST_MOVIE_ID + i));
+        }
+        long batchMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals("Error: Favorites were not stored", FAVORITE_COUNT,
+                count(MovieEntry.CONTENT_URI, MovieEntry.COLUMN_MOVIE_ID));
+
+        Log.i(LOG_TAG, "Save latency of a favorite, separate calls: "
+                + (float) separateMs / FAVORITE_COUNT + " ms");
+        Log.i(LOG_TAG, "Save latency of a favorite, single batch: "
+                + (float) batchMs / FAVORITE_COUNT + " ms");
+
+        assertTrue("Error: Single batch not faster than the separate calls",
+                batchMs < separateMs);
+    }
+
+    // Builds the batch storing a favorite with its trailers and reviews.
+    private ArrayList<ContentProviderOperation> buildFavorite(int movieId) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(MovieEntry.CONTENT_URI)
+                .withValues(buildMovieValues(movieId))
+                .build());
+        for(ContentValues values : buildTrailerValues(movieId)) {
+            operations.add(ContentProviderOperation.newInsert(TrailerEntry.CONTENT_URI)
+                    .withValues(values)
+                    .build());
+        }
+        for(ContentValues values : buildReviewValues(movieId)) {
+            operations.add(ContentProviderOperation.newInsert(ReviewEntry.CONTENT_URI)
+                    .withValues(values)
+                    .build());
+        }
+        return operations;
+    }
+
+    // Builds the values of a movie.
+    private ContentValues buildMovieValues(int movieId) {
+        ContentValues values = new ContentValues();
+        values.put(MovieEntry.COLUMN_MOVIE_ID, movieId);
+        values.put(MovieEntry.COLUMN_ORIGINAL_TITLE, "Mad Max");
+        values.put(MovieEntry.COLUMN_RELEASE_DATE, "2015-05-15");
+        values.put(MovieEntry.COLUMN_RUNTIME, 120);
+        values.put(MovieEntry.COLUMN_VOTE_AVERAGE, 7.5);
+        values.put(MovieEntry.COLUMN_OVERVIEW, "Good movie");
+        return values;
+    }
+
+    // Builds the values of the trailers of a movie.
+    private ContentValues[] buildTrailerValues(int movieId) {
+        ContentValues[] trailers = new ContentValues[TRAILER_COUNT];
+        for(int i = 0; i < TRAILER_COUNT; i++) {
+            trailers[i] = new ContentValues();
+            trailers[i].put(TrailerEntry.COLUMN_MOVIE_KEY, movieId);
+            trailers[i].put(TrailerEntry.COLUMN_TRAILER_ID, movieId + "-t" + i);
+            trailers[i].put(TrailerEntry.COLUMN_URI, "https://www.youtube.com/watch?v=" + i);
+            trailers[i].put(TrailerEntry.COLUMN_NAME, "Trailer " + i);
+        }
+        return trailers;
+    }
+
+    // Builds the values of the reviews of a movie.
+    private ContentValues[] buildReviewValues(int movieId) {
+        ContentValues[] reviews = new ContentValues[REVIEW_COUNT];
+        for(int i = 0; i < REVIEW_COUNT; i++) {
+            reviews[i] = new ContentValues();
+            reviews[i].put(ReviewEntry.COLUMN_MOVIE_KEY, movieId);
+            reviews[i].put(ReviewEntry.COLUMN_REVIEW_ID, movieId + "-r" + i);
+            reviews[i].put(ReviewEntry.COLUMN_AUTHOR, "Author " + i);
+            reviews[i].put(ReviewEntry.COLUMN_CONTENT, "Review " + i);
+        }
+        return reviews;
+    }
+
+    // Returns the write counts of the provider.
+    private Bundle getWriteCounts() {
+        return mContentResolver.call(MovieContract.BASE_CONTENT_URI,
+                MovieContract.METHOD_GET_WRITE_COUNTS, null, null);
+    }
+
+    // Returns the change of a write count between two calls.
+    private static long getCountChange(Bundle countsBefore, Bundle countsAfter, String key) {
+        return countsAfter.getLong(key) - countsBefore.getLong(key);
+    }
+
+    // Returns the number of rows of the test movies in the table of the uri.
+    private int count(Uri uri, String movieIdColumn) {
+        Cursor cursor = mContentResolver.query(uri, new String[] {movieIdColumn},
+                movieIdColumn + " >= ?", new String[] {Integer.toString(FIRST_MOVIE_ID)}, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Deletes the rows of the test movies.
+    private void deleteTestMovies() {
+        String[] selectionArgs = {Integer.toString(FIRST_MOVIE_ID)};
+        mContentResolver.delete(MovieEntry.CONTENT_URI,
+                MovieEntry.COLUMN_MOVIE_ID + " >= ?", selectionArgs);
+        mContentResolver.delete(TrailerEntry.CONTENT_URI,
+                TrailerEntry.COLUMN_MOVIE_KEY + " >= ?", selectionArgs);
+        mContentResolver.delete(ReviewEntry.CONTENT_URI,
+                ReviewEntry.COLUMN_MOVIE_KEY + " >= ?", selectionArgs);
+    }
+}
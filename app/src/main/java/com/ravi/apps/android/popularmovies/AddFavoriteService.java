@@ -17,25 +17,49 @@
 package com.ravi.apps.android.popularmovies;
 
 import android.app.IntentService;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Intent;
+import android.content.OperationApplicationException;
+import android.database.SQLException;
+import android.graphics.Bitmap;
+import android.os.RemoteException;
+import android.util.Log;
 
 import com.ravi.apps.android.popularmovies.data.MovieContract;
+import com.squareup.picasso.NetworkPolicy;
+import com.squareup.picasso.RequestCreator;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Adds a favorite movie into the database through a content provider.
+ *
+ * The poster is taken from the image caches, where the grid or the details screen put it,
+ * and encoded into the poster store on the worker thread of the service. The movie, its
+ * trailers and its reviews are then stored as a single batch, which the content provider
+ * applies in one transaction.
  */
 public class AddFavoriteService extends IntentService {
 
+    // Tag for logging messages.
+    private static final String LOG_TAG = AddFavoriteService.class.getSimpleName();
+
     // Favorite movie to store in the database.
     private Movie mMovie;
 
+    // Url of the poster displayed by the details screen, may be null.
+    private String mPosterUrl;
+
     // Content resolver.
     private ContentResolver mContentResolver;
 
+    // Operations storing the favorite movie, applied as a single batch.
+    private ArrayList<ContentProviderOperation> mOperations;
+
     public AddFavoriteService() {
         super("AddFavoriteService");
     }
@@ -44,14 +68,24 @@ public class AddFavoriteService extends IntentService {
     protected void onHandleIntent(Intent intent) {
         // Get the movie from the parcel.
         mMovie = intent.getParcelableExtra(DetailsFragment.FAVORITE_MOVIE);
+        mPosterUrl = intent.getStringExtra(DetailsFragment.FAVORITE_POSTER_URL);
 
         // Get the content resolver.
         mContentResolver = getContentResolver();
 
-        // Insert movie, trailers and reviews into database.
+        // Insert movie, trailers and reviews into database in a single batch.
+        mOperations = new ArrayList<>();
         insertMovie();
         insertTrailers();
         insertReviews();
+
+        try {
+            mContentResolver.applyBatch(MovieContract.CONTENT_AUTHORITY, mOperations);
+        } catch (RemoteException | OperationApplicationException | SQLException e) {
+            // Nothing was stored, as a failed insert rolls the whole batch back. The poster
+            // files are collected as orphans.
+            Log.e(LOG_TAG, "Error: onHandleIntent(): " + e.getLocalizedMessage());
+        }
     }
 
     private void insertMovie() {
@@ -61,14 +95,86 @@ public class AddFavoriteService extends IntentService {
         // Add movie details into content values.
         movieValues.put(MovieContract.MovieEntry.COLUMN_MOVIE_ID, mMovie.getId());
         movieValues.put(MovieContract.MovieEntry.COLUMN_ORIGINAL_TITLE, mMovie.getOriginalTitle());
-        movieValues.put(MovieContract.MovieEntry.COLUMN_POSTER_IMAGE, mMovie.getPosterByteArray());
+        putPosterFile(movieValues);
         movieValues.put(MovieContract.MovieEntry.COLUMN_RELEASE_DATE, mMovie.getReleaseDate());
+        movieValues.put(MovieContract.MovieEntry.COLUMN_RELEASE_DAY,
+                MovieContract.MovieEntry.getReleaseDayFromDate(mMovie.getReleaseDate()));
         movieValues.put(MovieContract.MovieEntry.COLUMN_RUNTIME, mMovie.getRuntime());
         movieValues.put(MovieContract.MovieEntry.COLUMN_VOTE_AVERAGE, mMovie.getVoteAverage());
         movieValues.put(MovieContract.MovieEntry.COLUMN_OVERVIEW, mMovie.getOverview());
 
-        // Insert into database through content provider.
-        mContentResolver.insert(MovieContract.MovieEntry.CONTENT_URI, movieValues);
+        // Add the insert into the batch.
+        mOperations.add(ContentProviderOperation.newInsert(MovieContract.MovieEntry.CONTENT_URI)
+                .withValues(movieValues)
+                .build());
+    }
+
+    private void putPosterFile(ContentValues movieValues) {
+        // Check if the poster could be loaded.
+        Bitmap poster = loadPoster();
+        if(poster == null) {
+            return;
+        }
+
+        try {
+            // Store the poster in a file and keep its name and checksum in the database.
+            PosterStore.PosterFile posterFile = PosterStore.getInstance(this)
+                    .saveBitmap(mMovie.getId(), poster);
+            movieValues.put(MovieContract.MovieEntry.COLUMN_POSTER_FILE, posterFile.getName());
+            movieValues.put(MovieContract.MovieEntry.COLUMN_POSTER_CHECKSUM,
+                    posterFile.getChecksum());
+
+            // Store its thumbnail for the favorites grid the same way.
+            PosterStore.PosterFile thumbnailFile = PosterStore.getInstance(this)
+                    .saveThumbnail(mMovie.getId(), poster, posterFile);
+            movieValues.put(MovieContract.MovieEntry.COLUMN_THUMBNAIL_FILE,
+                    thumbnailFile.getName());
+            movieValues.put(MovieContract.MovieEntry.COLUMN_THUMBNAIL_CHECKSUM,
+                    thumbnailFile.getChecksum());
+        } catch (IOException e) {
+            // Store the movie without its poster.
+            Log.e(LOG_TAG, "Error: putPosterFile(): " + e.getLocalizedMessage());
+        }
+    }
+
+    private Bitmap loadPoster() {
+        ImagePipeline imagePipeline = ImagePipeline.getInstance(this);
+
+        // Take the poster the details screen displayed from the image caches, without the
+        // network. It's the full size poster if the details screen loaded it, which the
+        // favorite is stored with and its thumbnail is scaled down from.
+        if(mPosterUrl != null) {
+            Bitmap poster = getPoster(imagePipeline.getPicasso().load(mPosterUrl)
+                    .networkPolicy(NetworkPolicy.OFFLINE));
+            if(poster != null) {
+                return poster;
+            }
+        }
+
+        // Otherwise the details screen displayed the poster the grid displayed, take it from
+        // the image caches the same way.
+        RequestCreator displayedPoster = imagePipeline.loadDisplayedPoster(mMovie.getPosterPath());
+        if(displayedPoster != null) {
+            Bitmap poster = getPoster(displayedPoster);
+            if(poster != null) {
+                return poster;
+            }
+        }
+
+        // Only go to the network once the poster is in none of the image caches.
+        return mPosterUrl != null ? getPoster(imagePipeline.getPicasso().load(mPosterUrl)) : null;
+    }
+
+    /*
+     * Loads the requested poster on the worker thread. Returns null if it couldn't be loaded.
+     */
+    private Bitmap getPoster(RequestCreator request) {
+        try {
+            return request.get();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error: getPoster(): " + e.getLocalizedMessage());
+            return null;
+        }
     }
 
     private void insertTrailers() {
@@ -80,17 +186,8 @@ public class AddFavoriteService extends IntentService {
             return;
         }
 
-        // Get number of trailers in list.
-        int numTrailers = trailerList.size();
-
-        // Create content values array for bulk insert of trailers.
-        ContentValues[] trailers = new ContentValues[numTrailers];
-
-        // Extract each trailer and add into content values array.
-        for(int i = 0; i < numTrailers; i++) {
-            // Extract trailer from list.
-            Movie.Trailer trailer = trailerList.get(i);
-
+        // Extract each trailer and add its insert into the batch.
+        for(Movie.Trailer trailer : trailerList) {
             // Create content values.
             ContentValues trailerValues = new ContentValues();
 
@@ -100,12 +197,12 @@ public class AddFavoriteService extends IntentService {
             trailerValues.put(MovieContract.TrailerEntry.COLUMN_URI, trailer.getUrl());
             trailerValues.put(MovieContract.TrailerEntry.COLUMN_NAME, trailer.getName());
 
-            // Add content values into array
-            trailers[i] = trailerValues;
+            // Add the insert into the batch.
+            mOperations.add(ContentProviderOperation
+                    .newInsert(MovieContract.TrailerEntry.CONTENT_URI)
+                    .withValues(trailerValues)
+                    .build());
         }
-
-        // Bulk insert trailers into database through content provider.
-        mContentResolver.bulkInsert(MovieContract.TrailerEntry.CONTENT_URI, trailers);
     }
 
     private void insertReviews() {
@@ -117,17 +214,8 @@ public class AddFavoriteService extends IntentService {
             return;
         }
 
-        // Get number of reviews in list.
-        int numReviews = reviewList.size();
-
-        // Create content values array for bulk insert of reviews.
-        ContentValues[] reviews = new ContentValues[numReviews];
-
-        // Extract each trailer and add into content values array.
-        for(int i = 0; i < numReviews; i++) {
-            // Extract review from list.
-            Movie.Review review = reviewList.get(i);
-
+        // Extract each review and add its insert into the batch.
+        for(Movie.Review review : reviewList) {
             // Create content values.
             ContentValues reviewValues = new ContentValues();
 
@@ -137,11 +225,11 @@ public class AddFavoriteService extends IntentService {
             reviewValues.put(MovieContract.ReviewEntry.COLUMN_AUTHOR, review.getAuthor());
             reviewValues.put(MovieContract.ReviewEntry.COLUMN_CONTENT, review.getContent());
 
-            // Add content values into array
-            reviews[i] = reviewValues;
+            // Add the insert into the batch.
+            mOperations.add(ContentProviderOperation
+                    .newInsert(MovieContract.ReviewEntry.CONTENT_URI)
+                    .withValues(reviewValues)
+                    .build());
         }
-
-        // Bulk insert reviews into database through content provider.
-        mContentResolver.bulkInsert(MovieContract.ReviewEntry.CONTENT_URI, reviews);
     }
 }
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pool of bitmaps no longer displayed, which the poster decodes draw from through
+ * BitmapFactory.Options.inBitmap instead of allocating a new bitmap for every poster.
+ *
+ * Bitmaps are bucketed by their dimensions and configuration, as a decode can only reuse a
+ * bitmap of the exact size it decodes before KitKat. The pool retains a bounded number of
+ * bytes and drops the bitmaps of the least recently used buckets beyond it.
+ *
+ * The pooled bitmaps only save allocations, so the pool is the first to be emptied under
+ * memory pressure.
+ */
+public class BitmapPool implements MemoryPressureManager.Trimmable {
+
+    // Share of the pool kept under memory pressure.
+    private static final MemoryPressureManager.TrimPolicy TRIM_POLICY =
+            new MemoryPressureManager.TrimPolicy()
+                    .retain(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE, 50)
+                    .retain(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW, 0);
+
+    // Maximum number of bytes retained by the pool.
+    private final int mMaxSize;
+
+    // Number of bytes retained by the pool.
+    private int mSize;
+
+    // Pooled bitmaps by bucket, in access order.
+    private final LinkedHashMap<String, ArrayDeque<Bitmap>> mBuckets =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    // Number of requests served from the pool and number that had to allocate.
+    private long mHitCount;
+    private long mMissCount;
+
+    // Number of bitmaps dropped to stay within the retained bytes.
+    private long mEvictionCount;
+
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Takes a bitmap of the given size and configuration out of the pool.
+     *
+     * @param width  width of the bitmap, in pixels
+     * @param height height of the bitmap, in pixels
+     * @param config configuration of the bitmap
+     * @return       a pooled bitmap, or null if there's none of that size
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        String key = getKey(width, height, config);
+        ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+        Bitmap bitmap = bucket != null ? bucket.pollLast() : null;
+
+        if(bitmap == null) {
+            mMissCount++;
+            return null;
+        }
+
+        if(bucket.isEmpty()) {
+            mBuckets.remove(key);
+        }
+        mSize -= getByteCount(bitmap);
+        mHitCount++;
+        return bitmap;
+    }
+
+    /**
+     * Returns a bitmap to the pool. The caller must no longer use or display it. Bitmaps
+     * that can't be reused are ignored.
+     *
+     * @param bitmap the bitmap
+     */
+    public synchronized void put(Bitmap bitmap) {
+        int byteCount = getByteCount(bitmap);
+        if(bitmap.isRecycled() || !bitmap.isMutable() || byteCount > mMaxSize) {
+            return;
+        }
+
+        String key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+        if(bucket == null) {
+            bucket = new ArrayDeque<>();
+            mBuckets.put(key, bucket);
+        }
+        bucket.addLast(bitmap);
+        mSize += byteCount;
+
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Drops the pooled bitmaps till the pool retains at most the given number of bytes.
+     *
+     * @param maxSize number of bytes to retain
+     */
+    public synchronized void trimToSize(int maxSize) {
+        Iterator<Map.Entry<String, ArrayDeque<Bitmap>>> iterator = mBuckets.entrySet().iterator();
+        while(mSize > maxSize && iterator.hasNext()) {
+            // Drop the oldest bitmaps of the least recently used bucket first.
+            ArrayDeque<Bitmap> bucket = iterator.next().getValue();
+            while(mSize > maxSize && !bucket.isEmpty()) {
+                Bitmap bitmap = bucket.pollFirst();
+                mSize -= getByteCount(bitmap);
+                mEvictionCount++;
+                bitmap.recycle();
+            }
+            if(bucket.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public synchronized long trimMemory(int level) {
+        int size = mSize;
+        trimToSize(TRIM_POLICY.getRetainedSize(level, mMaxSize));
+        return size - mSize;
+    }
+
+    // Returns the share of the requests served from the pool, between 0 and 1.
+    public synchronized float getHitRate() {
+        long requestCount = mHitCount + mMissCount;
+        return requestCount == 0 ? 0 : (float) mHitCount / requestCount;
+    }
+
+    // Returns the number of requests served from the pool.
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    // Returns the number of requests that found no bitmap of their size.
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    // Returns the number of bitmaps dropped to stay within the retained bytes.
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    // Returns the number of bytes retained by the pool.
+    public synchronized int getRetainedBytes() {
+        return mSize;
+    }
+
+    /*
+     * Returns the key of the bucket holding the bitmaps of the given size and configuration.
+     */
+    private static String getKey(int width, int height, Bitmap.Config config) {
+        return width + "x" + height + ":" + config;
+    }
+
+    /*
+     * Returns the number of bytes used by the pixels of the bitmap.
+     */
+    private static int getByteCount(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signals the cancellation of a background operation, either on request or once its
+ * deadline has passed, to the network calls made on its behalf.
+ *
+ * The cancellation listeners run on a dedicated thread, never on the thread cancelling the
+ * operation, since aborting a network call may write to the socket and cancellation is
+ * usually requested from the main thread.
+ */
+public class CancellationToken {
+
+    // Thread running the cancellation listeners and the deadlines.
+    private static final ScheduledExecutorService sExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "cancellation");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    // Whether the operation was cancelled.
+    private boolean mIsCancelled;
+
+    // Whether the operation was cancelled because its deadline passed.
+    private boolean mIsDeadlineExceeded;
+
+    // Listeners to run on cancellation.
+    private final List<Runnable> mListeners = new ArrayList<>();
+
+    // Pending deadline, if any.
+    private ScheduledFuture<?> mDeadline;
+
+    /**
+     * Cancels the operation and runs the cancellation listeners. Does nothing if it's
+     * already cancelled.
+     */
+    public void cancel() {
+        cancel(false);
+    }
+
+    // Returns true if the operation was cancelled.
+    public synchronized boolean isCancelled() {
+        return mIsCancelled;
+    }
+
+    // Returns true if the operation was cancelled because its deadline passed.
+    public synchronized boolean isDeadlineExceeded() {
+        return mIsDeadlineExceeded;
+    }
+
+    /**
+     * Adds a listener to run on cancellation. Runs it right away if already cancelled.
+     *
+     * @param listener the listener
+     */
+    public void addOnCancelListener(Runnable listener) {
+        synchronized(this) {
+            if(!mIsCancelled) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        sExecutor.execute(listener);
+    }
+
+    /**
+     * Removes a listener added earlier.
+     *
+     * @param listener the listener
+     */
+    public synchronized void removeOnCancelListener(Runnable listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Cancels the operation once the delay has passed, unless the deadline is cleared or
+     * the operation is cancelled before.
+     *
+     * @param delay the delay
+     * @param unit  unit of the delay
+     */
+    public synchronized void setDeadline(long delay, TimeUnit unit) {
+        clearDeadline();
+        if(!mIsCancelled) {
+            mDeadline = sExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    cancel(true);
+                }
+            }, delay, unit);
+        }
+    }
+
+    /**
+     * Clears the pending deadline.
+     */
+    public synchronized void clearDeadline() {
+        if(mDeadline != null) {
+            mDeadline.cancel(false);
+            mDeadline = null;
+        }
+    }
+
+    /*
+     * Marks the operation cancelled and runs the listeners on the cancellation thread.
+     */
+    private void cancel(boolean isDeadlineExceeded) {
+        final List<Runnable> listeners;
+        synchronized(this) {
+            if(mIsCancelled) {
+                return;
+            }
+            mIsCancelled = true;
+            mIsDeadlineExceeded = isDeadlineExceeded;
+            clearDeadline();
+
+            listeners = new ArrayList<>(mListeners);
+            mListeners.clear();
+        }
+
+        if(!listeners.isEmpty()) {
+            sExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for(Runnable listener : listeners) {
+                        listener.run();
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.net.Uri;
+import android.util.LruCache;
+
+import com.squareup.okhttp.Response;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fetches the movie details, including trailers and reviews, from the TMDB server.
+ *
+ * Concurrent fetches of the same movie, as from the loaders of a two pane layout, of a
+ * rotation or of repeated taps, are coalesced into a single request: the details are
+ * downloaded and parsed once on the fetch lane of the loader executor while every caller
+ * waits for them, and all of them receive the same immutable movie object. A cancelled caller stops waiting right
+ * away, whether or not it started the fetch. The in-flight entry is removed once the fetch completes,
+ * and the parsed details are kept in a small in-memory details cache, which is checked
+ * first and is also filled by the details prefetcher. The details cache is trimmed under
+ * memory pressure once the application is in the background.
+ */
+public class DetailsFetcher implements MemoryPressureManager.Trimmable {
+
+    // Base URL for the query.
+    private static final String TMDB_MOVIE_DETAILS_BASE_URL = "http://api.themoviedb.org/3/movie/";
+
+    // Query parameters.
+    private static final String TMDB_APPEND_TO_RESPONSE_PARAM = "append_to_response";
+
+    // Query parameter values.
+    private static final String TMDB_APPEND_TO_RESPONSE = "videos,reviews";
+
+    // Message of the exception thrown to a cancelled caller.
+    private static final String CANCELED_MESSAGE = "Canceled";
+
+    // Maximum number of movie details kept in memory.
+    private static final int DETAILS_CACHE_SIZE = 60;
+
+    // Estimated size of an object or string header on the heap, in bytes.
+    private static final int OBJECT_OVERHEAD_BYTES = 40;
+
+    // Share of the details cache kept under memory pressure.
+    private static final MemoryPressureManager.TrimPolicy TRIM_POLICY =
+            new MemoryPressureManager.TrimPolicy()
+                    .retain(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND, 50)
+                    .retain(ComponentCallbacks2.TRIM_MEMORY_MODERATE, 0);
+
+    // Single instance shared across the application.
+    private static DetailsFetcher sInstance;
+
+    // Application context.
+    private final Context mContext;
+
+    // Client used to fetch the details.
+    private final TmdbClient mClient;
+
+    // Base URL the movie id is appended to.
+    private final String mBaseUrl;
+
+    // Fetches in flight, keyed by movie id.
+    private final ConcurrentHashMap<Long, InFlightFetch> mInFlightFetches =
+            new ConcurrentHashMap<>();
+
+    // Details fetched recently, keyed by movie id.
+    private final LruCache<Long, Movie> mDetailsCache = new LruCache<>(DETAILS_CACHE_SIZE);
+
+    /**
+     * Returns the single instance of the details fetcher, creating it if required.
+     *
+     * @param context the context
+     * @return        the shared details fetcher
+     */
+    public static synchronized DetailsFetcher getInstance(Context context) {
+        if(sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new DetailsFetcher(appContext, TmdbClient.getInstance(appContext),
+                    TMDB_MOVIE_DETAILS_BASE_URL);
+            MemoryPressureManager.getInstance(appContext).register(sInstance);
+        }
+        return sInstance;
+    }
+
+    // Package private constructor, also used by the tests to fetch from a local server.
+    DetailsFetcher(Context context, TmdbClient client, String baseUrl) {
+        mContext = context;
+        mClient = client;
+        mBaseUrl = baseUrl;
+    }
+
+    @Override
+    public long trimMemory(int level) {
+        // The details cache is sized in movies rather than bytes, so add up the estimated
+        // size of the movies it no longer holds after the trim.
+        Map<Long, Movie> cachedDetails = mDetailsCache.snapshot();
+        mDetailsCache.trimToSize(TRIM_POLICY.getRetainedSize(level, DETAILS_CACHE_SIZE));
+        Map<Long, Movie> retainedDetails = mDetailsCache.snapshot();
+
+        long releasedBytes = 0;
+        for(Map.Entry<Long, Movie> entry : cachedDetails.entrySet()) {
+            if(retainedDetails.get(entry.getKey()) != entry.getValue()) {
+                releasedBytes += getByteCount(entry.getValue());
+            }
+        }
+        return releasedBytes;
+    }
+
+    /**
+     * Returns the estimated size of the movie details on the heap, counting two bytes per
+     * character of its strings and a fixed overhead per object.
+     *
+     * @param movie the movie data
+     * @return      estimated size of the movie, in bytes
+     */
+    static long getByteCount(Movie movie) {
+        long byteCount = OBJECT_OVERHEAD_BYTES + getByteCount(movie.getOriginalTitle())
+                + getByteCount(movie.getPosterPath()) + getByteCount(movie.getReleaseDate())
+                + getByteCount(movie.getOverview());
+
+        if(movie.getTrailerList() != null) {
+            for(Movie.Trailer trailer : movie.getTrailerList()) {
+                byteCount += OBJECT_OVERHEAD_BYTES + getByteCount(trailer.getId())
+                        + getByteCount(trailer.getUrl()) + getByteCount(trailer.getName());
+            }
+        }
+        if(movie.getReviewList() != null) {
+            for(Movie.Review review : movie.getReviewList()) {
+                byteCount += OBJECT_OVERHEAD_BYTES + getByteCount(review.getId())
+                        + getByteCount(review.getAuthor()) + getByteCount(review.getContent());
+            }
+        }
+        return byteCount;
+    }
+
+    // Returns the estimated size of the string on the heap, in bytes.
+    private static long getByteCount(String string) {
+        return string == null ? 0 : OBJECT_OVERHEAD_BYTES + 2L * string.length();
+    }
+
+    /**
+     * Returns the cached details of the movie, or null if they aren't cached.
+     *
+     * @param movieId the movie id
+     * @return        the movie data, or null
+     */
+    public Movie getCachedDetails(long movieId) {
+        return mDetailsCache.get(movieId);
+    }
+
+    /**
+     * Fetches the details of the movie at foreground priority, without cancellation. See
+     * fetch(long, int, CancellationToken).
+     *
+     * @param movieId the movie id
+     * @return        the movie data, shared with the other callers of the same fetch
+     * @throws IOException   if the request failed or the calling thread was interrupted
+     * @throws JSONException if the response couldn't be parsed
+     */
+    public Movie fetch(long movieId) throws IOException, JSONException {
+        return fetch(movieId, TmdbRequestScheduler.PRIORITY_FOREGROUND, null);
+    }
+
+    /**
+     * Fetches the details of the movie, from the details cache if available, otherwise
+     * joining the fetch in flight for the same movie if there's one. Blocks till the
+     * details are available. A fetch started at background priority keeps that priority
+     * even if foreground callers join it.
+     *
+     * Cancelling the token makes this caller give up waiting. The shared download is only
+     * aborted once every caller waiting for it has been cancelled.
+     *
+     * @param movieId  the movie id
+     * @param priority the request priority, one of the TmdbRequestScheduler priorities
+     * @param token    the cancellation token of the caller, may be null
+     * @return         the movie data, shared with the other callers of the same fetch
+     * @throws IOException   if the request failed, was cancelled or the calling thread was
+     *                       interrupted
+     * @throws JSONException if the response couldn't be parsed
+     */
+    public Movie fetch(long movieId, int priority, CancellationToken token)
+            throws IOException, JSONException {
+        // Return the cached details if available.
+        Movie cachedMovie = mDetailsCache.get(movieId);
+        if(cachedMovie != null) {
+            return cachedMovie;
+        }
+
+        // Join the fetch in flight, or register a new one.
+        InFlightFetch fetch;
+        boolean isNew = false;
+        while(true) {
+            fetch = mInFlightFetches.get(movieId);
+            if(fetch == null) {
+                InFlightFetch newFetch = new InFlightFetch(movieId, priority);
+                fetch = mInFlightFetches.putIfAbsent(movieId, newFetch);
+                if(fetch == null) {
+                    fetch = newFetch;
+                    isNew = true;
+                }
+            }
+
+            if(fetch.join()) {
+                break;
+            }
+
+            // Fetch was abandoned by all its callers and is being aborted, replace it.
+            mInFlightFetches.remove(movieId, fetch);
+        }
+
+        // Leave the fetch once this caller is cancelled or interrupted, only once either way.
+        final InFlightFetch joinedFetch = fetch;
+        final AtomicBoolean hasLeft = new AtomicBoolean();
+        Runnable leaveListener = new Runnable() {
+            @Override
+            public void run() {
+                if(hasLeft.compareAndSet(false, true)) {
+                    joinedFetch.leave();
+                }
+            }
+        };
+        if(token != null) {
+            token.addOnCancelListener(leaveListener);
+        }
+
+        try {
+            // Start a new fetch on the fetch lane, every caller waits for it alike.
+            if(isNew) {
+                LoaderExecutor.getInstance(mContext).submit(LoaderExecutor.LANE_FETCH, fetch.mTask);
+            }
+
+            return fetch.await(token);
+        } catch (InterruptedIOException e) {
+            // Caller gave up waiting, so that the download isn't kept alive for it.
+            leaveListener.run();
+            throw e;
+        } finally {
+            if(token != null) {
+                token.removeOnCancelListener(leaveListener);
+            }
+        }
+    }
+
+    /*
+     * Downloads and parses the details of the movie.
+     */
+    private Movie download(long movieId, int priority, CancellationToken token)
+            throws IOException, JSONException {
+        // Build the uri for querying data from TMDb api.
+        Uri uri = Uri.parse(mBaseUrl + movieId + "?").buildUpon()
+                .appendQueryParameter(TMDB_APPEND_TO_RESPONSE_PARAM, TMDB_APPEND_TO_RESPONSE)
+                .build();
+
+        // Fetch the data through the client, which adds the api key and caches it.
+        Response response = mClient.get(uri.toString(), priority, token);
+
+        try {
+            // Parse the response as it streams in and extract the movie data.
+            return TmdbJsonParser.parseMovieDetails(mContext, response.body().charStream());
+        } finally {
+            // Close the response body, which releases the connection back to the pool.
+            response.body().close();
+        }
+    }
+
+    /**
+     * Fetch in flight, shared by all the callers fetching the same movie.
+     */
+    private final class InFlightFetch {
+
+        // Cancellation token of the download, cancelled once all the callers have left.
+        private final CancellationToken mToken = new CancellationToken();
+
+        // Task downloading and parsing the details.
+        private final FutureTask<Movie> mTask;
+
+        // Number of callers waiting for the fetch.
+        private int mCallerCount;
+
+        InFlightFetch(final long movieId, final int priority) {
+            mTask = new FutureTask<Movie>(new Callable<Movie>() {
+                @Override
+                public Movie call() throws Exception {
+                    try {
+                        // Cache the details before the in-flight entry is released.
+                        Movie movie = download(movieId, priority, mToken);
+                        mDetailsCache.put(movieId, movie);
+                        return movie;
+                    } finally {
+                        // Release the entry, the waiting callers hold the fetch itself.
+                        mInFlightFetches.remove(movieId, InFlightFetch.this);
+                    }
+                }
+            }) {
+                @Override
+                protected void done() {
+                    // Wake up the waiting callers.
+                    synchronized(InFlightFetch.this) {
+                        InFlightFetch.this.notifyAll();
+                    }
+                }
+            };
+        }
+
+        /*
+         * Adds a caller to the fetch. Returns false if the fetch is being aborted.
+         */
+        synchronized boolean join() {
+            if(mToken.isCancelled()) {
+                return false;
+            }
+            mCallerCount++;
+            return true;
+        }
+
+        /*
+         * Removes a cancelled caller from the fetch, aborting it if no caller is left, and
+         * wakes up the waiting callers so that the cancelled one stops waiting.
+         */
+        synchronized void leave() {
+            mCallerCount--;
+            if(mCallerCount == 0) {
+                mToken.cancel();
+            }
+            notifyAll();
+        }
+
+        /*
+         * Waits for the result of the fetch, giving up as soon as the caller is cancelled,
+         * which wakes it up through leave().
+         */
+        Movie await(CancellationToken token) throws IOException, JSONException {
+            try {
+                synchronized(this) {
+                    while(!mTask.isDone()) {
+                        if(token != null && token.isCancelled()) {
+                            throw new InterruptedIOException(CANCELED_MESSAGE);
+                        }
+                        wait();
+                    }
+                }
+
+                return mTask.get();
+            } catch (InterruptedException e) {
+                // Preserve the interrupt and give up waiting.
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(e.getMessage());
+            } catch (ExecutionException e) {
+                // Rethrow the failure of the shared fetch to every caller.
+                Throwable cause = e.getCause();
+                if(cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if(cause instanceof JSONException) {
+                    throw (JSONException) cause;
+                } else if(cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if(cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+}
@@ -22,9 +22,6 @@ import android.content.CursorLoader;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.view.MenuItemCompat;
@@ -45,14 +42,12 @@ import android.widget.TextView;
 import com.ravi.apps.android.popularmovies.data.MovieContract.MovieEntry;
 import com.ravi.apps.android.popularmovies.data.MovieContract.ReviewEntry;
 import com.ravi.apps.android.popularmovies.data.MovieContract.TrailerEntry;
+import com.squareup.picasso.Callback;
 import com.squareup.picasso.Picasso;
-import com.squareup.picasso.Target;
+import com.squareup.picasso.RequestCreator;
 
-import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
 /**
  * Displays detailed information about the movie.
@@ -66,6 +61,9 @@ public class DetailsFragment extends Fragment
     // Key used to pass the favorite movie data to the intent service.
     public static final String FAVORITE_MOVIE = "Favorite Movie";
 
+    // Key used to pass the url of the poster displayed by the details to the intent service.
+    public static final String FAVORITE_POSTER_URL = "Favorite Poster Url";
+
     // Loader to fetch movie details from the TMDB server.
     private static final int LOADER_DETAILS_ID = 1;
 
@@ -83,7 +81,7 @@ public class DetailsFragment extends Fragment
             MovieEntry.TABLE_NAME + "." + MovieEntry._ID,
             MovieEntry.COLUMN_MOVIE_ID,
             MovieEntry.COLUMN_ORIGINAL_TITLE,
-            MovieEntry.COLUMN_POSTER_IMAGE,
+            MovieEntry.COLUMN_POSTER_FILE,
             MovieEntry.COLUMN_RELEASE_DATE,
             MovieEntry.COLUMN_RUNTIME,
             MovieEntry.COLUMN_VOTE_AVERAGE,
@@ -100,7 +98,7 @@ public class DetailsFragment extends Fragment
     public static final int COL_ID = 0;
     public static final int COL_MOVIE_ID = 1;
     public static final int COL_ORIGINAL_TITLE = 2;
-    public static final int COL_POSTER_IMAGE = 3;
+    public static final int COL_POSTER_FILE = 3;
     public static final int COL_RELEASE_DATE = 4;
     public static final int COL_RUNTIME = 5;
     public static final int COL_VOTE_AVERAGE = 6;
@@ -118,6 +116,12 @@ public class DetailsFragment extends Fragment
     // Detailed data for the movie.
     private Movie mMovie;
 
+    // Name of the poster file of the favorite movie in the poster store.
+    private String mPosterFile;
+
+    // Url of the poster sized for the poster view.
+    private String mPosterUrl;
+
     // Trailers and reviews adapters.
     private TrailersAdapter mTrailersAdapter;
     private ReviewsAdapter mReviewsAdapter;
@@ -146,15 +150,15 @@ public class DetailsFragment extends Fragment
     // Reference to the load status text view.
     private TextView mLoadStatusView;
 
-    // Reference to load target for picasso.
-    private PicassoTarget mPicassoTarget = new PicassoTarget();
-
     // Reference to share action provider for sharing first trailer.
     private ShareActionProvider mShareActionProvider;
 
     // Trailer url to be shared using share action provider.
     String mTrailerUrl;
 
+    // Whether the header was rendered from the discover list data, before the details loaded.
+    private boolean mIsHeaderSeeded;
+
     public DetailsFragment() {
         setHasOptionsMenu(true);
     }
@@ -167,9 +171,11 @@ public class DetailsFragment extends Fragment
 
         // Get the arguments set for this fragment.
         Bundle arguments = getArguments();
+        Movie discoverMovie = null;
         if(arguments != null) {
-            // Extract the movie id.
-            mMovieId = ((Movie) arguments.getParcelable(DISCOVER_MOVIE)).getId();
+            // Extract the movie passed in from the discover list and its id.
+            discoverMovie = arguments.getParcelable(DISCOVER_MOVIE);
+            mMovieId = discoverMovie.getId();
         }
 
         // Set references for all the views.
@@ -205,6 +211,13 @@ public class DetailsFragment extends Fragment
         // Hide all views except load status till data is loaded.
         hideViews();
 
+        // Render the header right away from the discover list data, the details loader only
+        // has to fill in the runtime, trailers and reviews.
+        if(discoverMovie != null && discoverMovie.getOriginalTitle() != null
+                && !mSortOrderPreference.equals(getString(R.string.pref_sort_order_favorites))) {
+            seedHeader(discoverMovie);
+        }
+
         return rootView;
     }
 
@@ -259,6 +272,17 @@ public class DetailsFragment extends Fragment
         }
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+
+        // Let the decoded favorite poster return to the bitmap pool.
+        PosterDecoder.getInstance(getActivity()).release(mPosterView);
+
+        // Cancel the poster request of the destroyed view.
+        ImagePipeline.getInstance(getActivity()).getPicasso().cancelRequest(mPosterView);
+    }
+
     @Override
     public void onSaveInstanceState(Bundle outState) {
         // Save the current sort order preference and button state.
@@ -294,6 +318,7 @@ public class DetailsFragment extends Fragment
             // Create intent to add movie into database.
             Intent intent = new Intent(getActivity(), AddFavoriteService.class);
             intent.putExtra(FAVORITE_MOVIE, mMovie);
+            intent.putExtra(FAVORITE_POSTER_URL, mPosterUrl);
 
             // Send intent to start add favorite intent service.
             getActivity().startService(intent);
@@ -349,7 +374,20 @@ public class DetailsFragment extends Fragment
             Exception exception = data.getException();
 
             // Data load successful.
-            if(exception == null) {
+            if(exception == null && mIsHeaderSeeded) {
+                // Extract and hold the detailed movie data, the header already shows it.
+                mMovie = data.getData();
+
+                // Remove the load status text view.
+                mLoadStatusView.setVisibility(View.GONE);
+
+                // Unhide all the remaining views.
+                unhideViews();
+
+                // Validate and set the missing data onto the remaining views.
+                setDetailViews();
+
+            } else if(exception == null) {
                 // Extract and hold the detailed movie data.
                 mMovie = data.getData();
 
@@ -415,73 +453,38 @@ public class DetailsFragment extends Fragment
                 // Extract and hold the detailed movie data.
                 int movieId = data.getInt(COL_MOVIE_ID);
                 String title = data.getString(COL_ORIGINAL_TITLE);
-                byte[] posterByteArray = data.getBlob(COL_POSTER_IMAGE);
+                mPosterFile = data.getString(COL_POSTER_FILE);
                 String releaseDate = data.getString(COL_RELEASE_DATE);
                 int runtime = data.getInt(COL_RUNTIME);
                 double rating = data.getDouble(COL_VOTE_AVERAGE);
                 String overview = data.getString(COL_OVERVIEW);
 
-                // Store trailers into a list.
+                // Store trailers and reviews into lists.
                 List<Movie.Trailer> trailerList = new ArrayList<>();
-
-                // Temporarily hold the unique trailer ids.
-                Set<String> uniqueTrailerId = new HashSet<>();
-
-                // Iterate through the cursor and extract all the trailers.
-                do {
-                    // Extract trailer id.
-                    String trailerId = data.getString(COL_TRAILER_ID);
-
-                    if(trailerId == null)
-                        continue;
-
-                    // Check if it's already added.
-                    if(!uniqueTrailerId.add(trailerId)) {
-                        // This trailer id has already been extracted, move to next row.
-                        continue;
-                    }
-
-                    // Extract other trailer data.
-                    String uri = data.getString(COL_URI);
-                    String name = data.getString(COL_NAME);
-
-                    // Add trailer object to list.
-                    trailerList.add(new Movie.Trailer(trailerId, uri, name));
-                } while(data.moveToNext());
-
-                // Store reviews into a list.
                 List<Movie.Review> reviewList = new ArrayList<>();
 
-                // Temporarily hold the unique trailer ids.
-                Set<String> uniqueReviewId = new HashSet<>();
-
-                // Move to first row.
-                data.moveToFirst();
-
-                // Iterate through the cursor and extract all the reviews.
-                do {
-                    // Extract review id.
+                // The movie row is followed by a row per trailer and per review, each
+                // filling only its own columns.
+                while(data.moveToNext()) {
+                    // Extract trailer id or review id.
+                    String trailerId = data.getString(COL_TRAILER_ID);
                     String reviewId = data.getString(COL_REVIEW_ID);
 
-                    if(reviewId == null)
-                        continue;
-
-                    // Check if it's unique.
-                    if(!uniqueReviewId.add(reviewId)) {
-                        // This trailer id has already been extracted, move to next row.
-                        continue;
+                    if(trailerId != null) {
+                        // Extract other trailer data and add trailer object to list.
+                        String uri = data.getString(COL_URI);
+                        String name = data.getString(COL_NAME);
+                        trailerList.add(new Movie.Trailer(trailerId, uri, name));
+                    } else if(reviewId != null) {
+                        // Extract other review data and add review object to list.
+                        String author = data.getString(COL_AUTHOR);
+                        String content = data.getString(COL_CONTENT);
+                        reviewList.add(new Movie.Review(reviewId, author, content));
                     }
-
-                    // Extract other review data.
-                    String author = data.getString(COL_AUTHOR);
-                    String content = data.getString(COL_CONTENT);
-
-                    // Add review object to list.
-                    reviewList.add(new Movie.Review(reviewId, author, content));
-                } while(data.moveToNext());
+                }
 
                 // Create movie object with extracted data.
-                mMovie = new Movie(movieId, title, null, posterByteArray, releaseDate,
+                mMovie = new Movie(movieId, title, null, releaseDate,
                         runtime, rating, overview, trailerList, reviewList);
 
                 // Remove the load status text view.
@@ -506,34 +509,6 @@ public class DetailsFragment extends Fragment
         }
     }
 
-    /**
-     * Provides target for Picasso that loads the poster image from the url
-     * and extracts and stores the poster image byte array.
-     */
-    private final class PicassoTarget implements Target {
-
-        @Override
-        public void onBitmapLoaded(Bitmap bitmap, Picasso.LoadedFrom from) {
-            // Set poster bitmap onto the image view.
-            mPosterView.setImageBitmap(bitmap);
-
-            // Get byte array from poster bitmap.
-            ByteArrayOutputStream stream = new ByteArrayOutputStream();
-            bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
-
-            // Set the poster byte array in the movie object.
-            mMovie.setPosterByteArray(stream.toByteArray());
-        }
-
-        @Override
-        public void onPrepareLoad(Drawable placeHolderDrawable) {
-        }
-
-        @Override
-        public void onBitmapFailed(Drawable errorDrawable) {
-        }
-    }
-
     /**
      * Sets the references to all the views.
      */
@@ -572,6 +547,29 @@ public class DetailsFragment extends Fragment
         mReviewsView.setVisibility(View.INVISIBLE);
     }
 
+    /**
+     * Renders the header from the movie passed in from the discover list, while the load
+     * status shrinks to a line above it till the details are loaded.
+     */
+    private void seedHeader(Movie discoverMovie) {
+        // Hold the discover list data till the detailed movie data is loaded.
+        mMovie = discoverMovie;
+        mIsHeaderSeeded = true;
+
+        // Shrink the load status so that it doesn't push the header out of view.
+        mLoadStatusView.getLayoutParams().height = ViewGroup.LayoutParams.WRAP_CONTENT;
+
+        // Unhide the header views.
+        mOriginalTitleView.setVisibility(View.VISIBLE);
+        mPosterView.setVisibility(View.VISIBLE);
+        mReleaseDateView.setVisibility(View.VISIBLE);
+        mVoteAverageView.setVisibility(View.VISIBLE);
+        mOverviewView.setVisibility(View.VISIBLE);
+
+        // Validate and set the data onto the header views.
+        setHeaderViews();
+    }
+
     /**
      * Unhides all the views except load status.
      */
@@ -593,6 +591,15 @@ public class DetailsFragment extends Fragment
      * Validates and sets the appropriate movie data onto all the views.
      */
     private void setViews() {
+        setHeaderViews();
+        setDetailViews();
+    }
+
+    /**
+     * Validates and sets the header data, which the discover list already has, onto the
+     * title, poster, release date, rating and overview views.
+     */
+    private void setHeaderViews() {
         // Check for errors or invalid original title data.
         if(mMovie.getOriginalTitle() != null
                 && !mMovie.getOriginalTitle().isEmpty()
@@ -606,14 +613,10 @@ public class DetailsFragment extends Fragment
 
         // Check for errors or invalid poster image data based on sort order.
         if(mSortOrderPreference.equals(getString(R.string.pref_sort_order_favorites))) {
-            if(mMovie.getPosterByteArray() != null && mMovie.getPosterByteArray().length != 0) {
-                // Get the poster image bitmap from byte array.
-                Bitmap posterBitmap = BitmapFactory.decodeByteArray(
-                        mMovie.getPosterByteArray(), 0, mMovie.getPosterByteArray().length);
-
-                // Set the poster image bitmap into the image view.
-                mPosterView.setImageBitmap(posterBitmap);
-            }
+            // Decode the poster file in the background, downsampled to the poster view.
+            ViewGroup.LayoutParams posterParams = mPosterView.getLayoutParams();
+            PosterDecoder.getInstance(getActivity()).load(mMovie.getId(), mPosterFile,
+                    mPosterView, posterParams.width, posterParams.height);
         } else {
             // Check for errors or invalid poster path data.
             if(mMovie.getPosterPath() != null
@@ -635,15 +638,6 @@ public class DetailsFragment extends Fragment
             bindErrorTextToView(mReleaseDateView);
         }
 
-        // Check for errors or invalid runtime data.
-        if(mMovie.getRuntime() != 0) {
-            // Set data for runtime view.
-            bindDataToView(mRuntimeView);
-        } else {
-            // Set error message.
-            bindErrorTextToView(mRuntimeView);
-        }
-
         // Set data for average rating view.
         bindDataToView(mVoteAverageView);
 
@@ -657,6 +651,21 @@ public class DetailsFragment extends Fragment
             // Set error message.
             bindErrorTextToView(mOverviewView);
         }
+    }
+
+    /**
+     * Validates and sets the data only the movie details have onto the runtime, trailers
+     * and reviews views.
+     */
+    private void setDetailViews() {
+        // Check for errors or invalid runtime data.
+        if(mMovie.getRuntime() != 0) {
+            // Set data for runtime view.
+            bindDataToView(mRuntimeView);
+        } else {
+            // Set error message.
+            bindErrorTextToView(mRuntimeView);
+        }
 
         // Check for errors or invalid trailer data.
         if(mMovie.getTrailerList() != null && mMovie.getTrailerList().size() != 0) {
@@ -698,10 +707,34 @@ public class DetailsFragment extends Fragment
             // Bind the original title.
             mOriginalTitleView.setText(mMovie.getOriginalTitle());
         } else if(view == mPosterView) {
-            // Load the poster image using Picasso.
-            Picasso.with(getActivity())
-                    .load(mMovie.getPosterPath())
-                    .into(mPicassoTarget);
+            // Build the url of the smallest poster covering the poster view.
+            ViewGroup.LayoutParams posterParams = mPosterView.getLayoutParams();
+            mPosterUrl = TmdbConfiguration.getInstance(getActivity()).getPosterUrl(
+                    mMovie.getPosterPath(), posterParams.width, posterParams.height);
+
+            // Take the poster the grid displayed from the image caches, without the network.
+            ImagePipeline imagePipeline = ImagePipeline.getInstance(getActivity());
+            final Picasso picasso = imagePipeline.getPicasso();
+            RequestCreator displayedPoster = imagePipeline.loadDisplayedPoster(mMovie.getPosterPath());
+            if(displayedPoster != null) {
+                final String posterUrl = mPosterUrl;
+                displayedPoster.into(mPosterView, new Callback() {
+                    @Override
+                    public void onSuccess() {
+                    }
+
+                    @Override
+                    public void onError() {
+                        // The poster is no longer cached, load the one sized for the poster view.
+                        if(isAdded()) {
+                            picasso.load(posterUrl).into(mPosterView);
+                        }
+                    }
+                });
+            } else {
+                // Load the poster sized for the poster view through the image pipeline.
+                picasso.load(mPosterUrl).into(mPosterView);
+            }
         } else if(view == mReleaseDateView) {
             // Bind the release date.
             mReleaseDateView.setText(mMovie.getReleaseDate().substring(0, 4));
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Speculatively fetches the details of the movies visible in the discover grid, so that
+ * tapping a poster renders its details from the details cache without a network wait.
+ *
+ * Prefetches run on the prefetch lane of the loader executor, which caps how many run at a
+ * time, and only a small number are queued. The visible movies that don't fit in the queue
+ * are kept pending and queued as the prefetches complete. Prefetches of movies that scroll
+ * off screen are cancelled, which also aborts their download unless a details loader is
+ * sharing it.
+ * Must be used from the main thread.
+ */
+public class DetailsPrefetcher {
+
+    // Tag for logging messages.
+    private static final String LOG_TAG = DetailsPrefetcher.class.getSimpleName();
+
+    // Maximum number of prefetches waiting to run.
+    private static final int MAX_QUEUED_PREFETCHES = 8;
+
+    // Single instance shared across the application.
+    private static DetailsPrefetcher sInstance;
+
+    // Fetcher that fills the details cache.
+    private final DetailsFetcher mFetcher;
+
+    // Executor running the prefetches.
+    private final LoaderExecutor mExecutor;
+
+    // Prefetches queued or running, keyed by movie id.
+    private final Map<Long, PrefetchTask> mPrefetches = new HashMap<>();
+
+    // Visible movies waiting for room in the queue, in order.
+    private final List<Long> mPendingMovieIds = new ArrayList<>();
+
+    // Handler queueing the pending prefetches on the main thread once a prefetch completes.
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Queues the pending prefetches.
+    private final Runnable mQueuePendingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            queuePending();
+        }
+    };
+
+    /**
+     * Returns the single instance of the details prefetcher, creating it if required.
+     *
+     * @param context the context
+     * @return        the shared details prefetcher
+     */
+    public static synchronized DetailsPrefetcher getInstance(Context context) {
+        if(sInstance == null) {
+            sInstance = new DetailsPrefetcher(DetailsFetcher.getInstance(context),
+                    LoaderExecutor.getInstance(context));
+        }
+        return sInstance;
+    }
+
+    // Private constructor.
+    private DetailsPrefetcher(DetailsFetcher fetcher, LoaderExecutor executor) {
+        mFetcher = fetcher;
+        mExecutor = executor;
+    }
+
+    /**
+     * Prefetches the details of the visible movies, in order, as there's room in the queue,
+     * and cancels the prefetches of the movies no longer visible.
+     *
+     * @param movieIds ids of the movies currently visible
+     */
+    public void prefetch(List<Long> movieIds) {
+        // Cancel the prefetches of the movies that scrolled off screen.
+        Iterator<Map.Entry<Long, PrefetchTask>> iterator = mPrefetches.entrySet().iterator();
+        while(iterator.hasNext()) {
+            Map.Entry<Long, PrefetchTask> entry = iterator.next();
+            if(entry.getValue().mFuture.isDone()) {
+                iterator.remove();
+            } else if(!movieIds.contains(entry.getKey())) {
+                entry.getValue().cancel();
+                iterator.remove();
+            }
+        }
+
+        // Free the queue slots held by the cancelled prefetches.
+        mExecutor.purge(LoaderExecutor.LANE_PREFETCH);
+
+        // Queue the prefetches of the visible movies, replacing the ones pending.
+        mPendingMovieIds.clear();
+        mPendingMovieIds.addAll(movieIds);
+        queuePending();
+    }
+
+    /*
+     * Queues the prefetches of the pending movies not fetched yet, in order, till the queue
+     * is full. The rest stay pending till a prefetch completes.
+     */
+    private void queuePending() {
+        Iterator<Long> iterator = mPendingMovieIds.iterator();
+        while(iterator.hasNext()) {
+            Long movieId = iterator.next();
+            if(mPrefetches.containsKey(movieId) || mFetcher.getCachedDetails(movieId) != null) {
+                iterator.remove();
+                continue;
+            }
+
+            // Stop once the queue is full.
+            if(mExecutor.getQueuedCount(LoaderExecutor.LANE_PREFETCH) >= MAX_QUEUED_PREFETCHES) {
+                break;
+            }
+
+            PrefetchTask prefetch = new PrefetchTask(movieId);
+            prefetch.mFuture = mExecutor.submit(LoaderExecutor.LANE_PREFETCH, prefetch);
+            mPrefetches.put(movieId, prefetch);
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Cancels all the prefetches.
+     */
+    public void cancelAll() {
+        for(PrefetchTask prefetch : mPrefetches.values()) {
+            prefetch.cancel();
+        }
+        mPrefetches.clear();
+        mPendingMovieIds.clear();
+        mExecutor.purge(LoaderExecutor.LANE_PREFETCH);
+    }
+
+    /**
+     * Fetches the details of a movie into the details cache.
+     */
+    private final class PrefetchTask implements Runnable {
+
+        // Movie to prefetch.
+        private final long mMovieId;
+
+        // Cancellation token of the prefetch.
+        private final CancellationToken mToken = new CancellationToken();
+
+        // Future of the prefetch once queued.
+        private Future<?> mFuture;
+
+        PrefetchTask(long movieId) {
+            mMovieId = movieId;
+        }
+
+        /*
+         * Cancels the prefetch, removing it from the queue or aborting it if it's running.
+         */
+        void cancel() {
+            mFuture.cancel(false);
+            mToken.cancel();
+        }
+
+        @Override
+        public void run() {
+            try {
+                // Fetch at background priority, behind the requests the user is waiting for.
+                mFetcher.fetch(mMovieId, TmdbRequestScheduler.PRIORITY_BACKGROUND, mToken);
+            } catch (IOException | JSONException e) {
+                // The details are fetched again when the movie is opened.
+                Log.d(LOG_TAG, "Prefetch failed for movie " + mMovieId + ": "
+                        + e.getLocalizedMessage());
+            } finally {
+                // Queue the pending prefetches now that there's room.
+                mHandler.post(mQueuePendingRunnable);
+            }
+        }
+    }
+}
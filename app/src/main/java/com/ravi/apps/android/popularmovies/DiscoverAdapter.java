@@ -21,10 +21,13 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
+import android.widget.GridView;
 import android.widget.ImageView;
 
+import com.squareup.picasso.Callback;
 import com.squareup.picasso.Picasso;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -32,12 +35,22 @@ import java.util.List;
  */
 public class DiscoverAdapter extends ArrayAdapter<Movie> {
 
+    // Tag of the poster requests of the grid, used to pause them while the grid is flung.
+    public static final Object POSTER_REQUEST_TAG = new Object();
+
+    // Tag of the poster prefetches, used to cancel them once the grid moves away from them.
+    static final Object POSTER_PREFETCH_TAG = new Object();
+
     // List of movie data.
     private List<Movie> mMovieList;
 
+    // Width of the grid columns till the grid is laid out, in pixels.
+    private final int mColumnWidth;
+
     public DiscoverAdapter(Context context, List<Movie> movieList) {
         super(context, 0, movieList);
         mMovieList = movieList;
+        mColumnWidth = context.getResources().getDimensionPixelSize(R.dimen.discover_column_width);
     }
 
     @Override
@@ -57,7 +70,7 @@ public class DiscoverAdapter extends ArrayAdapter<Movie> {
 
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
-        ImageView imageView;
+        final ImageView imageView;
 
         // Check if it's a recycled view.
         if(convertView == null) {
@@ -69,15 +82,96 @@ public class DiscoverAdapter extends ArrayAdapter<Movie> {
             imageView = (ImageView) convertView;
         }
 
-        // Extract the movie poster path url.
-        String posterUrl = mMovieList.get(position).getPosterPath();
+        // Build the url of the smallest poster covering the grid cell.
+        final String posterPath = mMovieList.get(position).getPosterPath();
+        final String posterUrl = getPosterUrl(position, parent, imageView.getLayoutParams().height);
 
-        // Load the movie poster into image view using Picasso.
-        Picasso.with(getContext())
+        // Load the movie poster into image view through the image pipeline.
+        final ImagePipeline imagePipeline = ImagePipeline.getInstance(getContext());
+        imagePipeline.getPicasso()
                 .load(posterUrl)
                 .fit()
-                .into(imageView);
+                .tag(POSTER_REQUEST_TAG)
+                .into(imageView, new Callback() {
+                    @Override
+                    public void onSuccess() {
+                        // Remember the poster, fit() resized it to the size of the view.
+                        imagePipeline.putDisplayedPoster(posterPath, posterUrl,
+                                imageView.getWidth(), imageView.getHeight());
+                    }
+
+                    @Override
+                    public void onError() {
+                    }
+                });
 
         return imageView;
     }
+
+    /**
+     * Fetches the posters of a range of movies into the image caches at low priority, sized
+     * the way the grid cells will request them. The prefetches of the previous range are
+     * cancelled.
+     *
+     * @param gridView the grid view displaying the movies
+     * @param first    position of the first movie of the range
+     * @param last     position after the last movie of the range
+     */
+    public void prefetchPosters(GridView gridView, int first, int last) {
+        Picasso picasso = ImagePipeline.getInstance(getContext()).getPicasso();
+
+        // The cells are needed to know the size the posters are displayed at.
+        View cell = gridView.getChildAt(0);
+        if(cell == null || cell.getWidth() == 0 || cell.getHeight() == 0) {
+            picasso.cancelTag(POSTER_PREFETCH_TAG);
+            return;
+        }
+
+        List<String> posterUrls = new ArrayList<>();
+        for(int position = Math.max(first, 0); position < Math.min(last, getCount()); position++) {
+            posterUrls.add(getPosterUrl(position, gridView, cell.getLayoutParams().height));
+        }
+
+        // Resize the way fit() does, so that the cells find the posters in the memory cache.
+        prefetchPosters(picasso, posterUrls, cell.getWidth(), cell.getHeight());
+    }
+
+    /**
+     * Cancels the pending poster prefetches, as when the grid is flung past them.
+     */
+    public void cancelPrefetches() {
+        ImagePipeline.getInstance(getContext()).getPicasso().cancelTag(POSTER_PREFETCH_TAG);
+    }
+
+    /*
+     * Cancels the pending poster prefetches and fetches the given posters at low priority,
+     * resized to the given size. Must be called on the main thread.
+     */
+    static void prefetchPosters(Picasso picasso, List<String> posterUrls, int width, int height) {
+        // Cancel the prefetches of the previous range, the grid moved away from it.
+        picasso.cancelTag(POSTER_PREFETCH_TAG);
+
+        for(String posterUrl : posterUrls) {
+            picasso.load(posterUrl)
+                    .resize(width, height)
+                    .priority(Picasso.Priority.LOW)
+                    .tag(POSTER_PREFETCH_TAG)
+                    .fetch();
+        }
+    }
+
+    /*
+     * Returns the url of the smallest poster of the movie covering its grid cell.
+     */
+    private String getPosterUrl(int position, ViewGroup parent, int cellHeight) {
+        // Determine the width of the grid cell, the columns stretch to fill the grid.
+        int cellWidth = mColumnWidth;
+        if(parent instanceof GridView && parent.getWidth() > 0
+                && ((GridView) parent).getNumColumns() > 0) {
+            cellWidth = parent.getWidth() / ((GridView) parent).getNumColumns();
+        }
+
+        return TmdbConfiguration.getInstance(getContext()).getPosterUrl(
+                mMovieList.get(position).getPosterPath(), cellWidth, cellHeight);
+    }
 }
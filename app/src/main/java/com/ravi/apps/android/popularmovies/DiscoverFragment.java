@@ -22,22 +22,34 @@ import android.content.CursorLoader;
 import android.content.Loader;
 import android.database.Cursor;
 import android.os.Bundle;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.GridView;
+import android.widget.ImageView;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.ravi.apps.android.popularmovies.data.MovieContract;
+import com.squareup.picasso.Picasso;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Displays a grid of movie poster thumbnails retrieved from the TMDB server. It allows the
  * user to view details of any movie by clicking on it.
  */
-public class DiscoverFragment extends Fragment implements GridView.OnItemClickListener {
+public class DiscoverFragment extends Fragment
+        implements GridView.OnItemClickListener, AbsListView.OnScrollListener {
+
+    // Tag for logging messages.
+    private static final String LOG_TAG = DiscoverFragment.class.getSimpleName();
 
     // Loader to fetch the list of movies from the TMDB server.
     private static final int LOADER_DISCOVER_ID = 1;
@@ -51,17 +63,18 @@ public class DiscoverFragment extends Fragment implements GridView.OnItemClickLi
     // Favorite loader callback handler.
     FavoriteLoaderHandler mFavoriteLoaderHandler;
 
-    // Projection for favorite cursor loader.
+    // Projection for favorite cursor loader. The grid only reads the poster thumbnails, the
+    // full size posters are read by the details screen.
     public static final String[] FAVORITE_PROJECTION = {
             MovieContract.MovieEntry._ID,
             MovieContract.MovieEntry.COLUMN_MOVIE_ID,
-            MovieContract.MovieEntry.COLUMN_POSTER_IMAGE
+            MovieContract.MovieEntry.COLUMN_THUMBNAIL_FILE
     };
 
     // Column indices tied to the favorite cursor loader projection.
     public static final int COL_ID = 0;
     public static final int COL_MOVIE_ID = 1;
-    public static final int COL_POSTER_IMAGE = 2;
+    public static final int COL_THUMBNAIL_FILE = 2;
 
     // Grid view item index key.
     private static String GRID_INDEX_KEY = "Grid index key";
@@ -84,6 +97,32 @@ public class DiscoverFragment extends Fragment implements GridView.OnItemClickLi
     // Index of selected item or first visible item in the grid view.
     private int mGridIndex;
 
+    // Number of items from the end of the grid at which the next page is loaded.
+    private int mNextPageDistance;
+
+    // Time at which the fragment started loading the grid, used to log time to first poster.
+    private long mLoadStartTime;
+
+    // Visible range of the grid for which details were last prefetched.
+    private int mPrefetchFirstItem = GridView.INVALID_POSITION;
+    private int mPrefetchItemCount;
+
+    // Number of rows ahead of the visible ones whose posters are prefetched.
+    private int mPosterPrefetchRows;
+
+    // Range of the grid whose posters were last prefetched.
+    private int mPosterPrefetchFirst = GridView.INVALID_POSITION;
+    private int mPosterPrefetchLast;
+
+    // First visible item at the previous scroll, giving the scroll direction.
+    private int mLastFirstVisibleItem;
+
+    // Whether the grid is being flung.
+    private boolean mIsFlinging;
+
+    // Error of the failed next page last shown to the user, so that it's shown only once.
+    private Exception mShownPageException;
+
     public DiscoverFragment() {
     }
 
@@ -92,6 +131,9 @@ public class DiscoverFragment extends Fragment implements GridView.OnItemClickLi
                              Bundle savedInstanceState) {
         View rootView = inflater.inflate(R.layout.fragment_discover, container, false);
 
+        // Note the time to measure how long it takes to display the first posters.
+        mLoadStartTime = SystemClock.elapsedRealtime();
+
         // Create the loader callback handlers.
         mDiscoverLoaderHandler = new DiscoverLoaderHandler();
         mFavoriteLoaderHandler = new FavoriteLoaderHandler();
@@ -103,8 +145,25 @@ public class DiscoverFragment extends Fragment implements GridView.OnItemClickLi
         // Get the grid view.
         mGridView = (GridView) rootView.findViewById(R.id.discover_gridview);
 
-        // Set item click event handler for grid view.
+        // Set item click and scroll event handlers for grid view.
         mGridView.setOnItemClickListener(this);
+        mGridView.setOnScrollListener(this);
+
+        // Return the bitmaps of the recycled favorite poster views to the bitmap pool.
+        mGridView.setRecyclerListener(new AbsListView.RecyclerListener() {
+            @Override
+            public void onMovedToScrapHeap(View view) {
+                if(view instanceof ImageView) {
+                    PosterDecoder.getInstance(getActivity()).release((ImageView) view);
+                }
+            }
+        });
+
+        // Get the distance from the end of the grid at which the next page is loaded.
+        mNextPageDistance = getResources().getInteger(R.integer.discover_next_page_distance);
+
+        // Get the number of rows whose posters are prefetched ahead of the scroll.
+        mPosterPrefetchRows = getResources().getInteger(R.integer.discover_poster_prefetch_rows);
 
         // Get the text view for empty grid view message and set the text.
         mEmptyGridMessage = (TextView) rootView.findViewById(R.id.status_gridview);
@@ -168,6 +227,9 @@ public class DiscoverFragment extends Fragment implements GridView.OnItemClickLi
                 // Reset the discover movies loader.
                 mDiscoverLoaderHandler.onLoaderReset(null);
 
+                // Destroy the discover movies loader, cancelling any page load in flight.
+                getLoaderManager().destroyLoader(LOADER_DISCOVER_ID);
+
                 // Start the favorite movies loader.
                 getLoaderManager().initLoader(LOADER_FAVORITE_ID, null, mFavoriteLoaderHandler);
             } else {
@@ -209,6 +271,128 @@ public class DiscoverFragment extends Fragment implements GridView.OnItemClickLi
         ((OnMovieSelectedListener) getActivity()).onMovieSelected(movie);
     }
 
+    @Override
+    public void onStop() {
+        super.onStop();
+
+        // Cancel the pending details prefetches.
+        DetailsPrefetcher.getInstance(getActivity()).cancelAll();
+        mPrefetchFirstItem = GridView.INVALID_POSITION;
+
+        // Resume the poster requests in case the grid was stopped in the middle of a fling.
+        ImagePipeline.getInstance(getActivity()).getPicasso()
+                .resumeTag(DiscoverAdapter.POSTER_REQUEST_TAG);
+        mIsFlinging = false;
+
+        // Cancel the pending poster prefetches.
+        mDiscoverAdapter.cancelPrefetches();
+        mPosterPrefetchFirst = GridView.INVALID_POSITION;
+
+        // Log the poster cache and bitmap pool statistics of the session so far.
+        Log.d(LOG_TAG, ImagePipeline.getInstance(getActivity()).getStatsSummary());
+        BitmapPool bitmapPool = PosterDecoder.getInstance(getActivity()).getBitmapPool();
+        Log.d(LOG_TAG, "Bitmap pool: " + Math.round(bitmapPool.getHitRate() * 100) + "% hit rate, "
+                + bitmapPool.getRetainedBytes() / 1024 + " KB retained");
+    }
+
+    /*
+     * Prefetches the details of the movies in the visible range of the grid, if it changed.
+     */
+    private void prefetchDetails(int firstVisibleItem, int visibleItemCount) {
+        if(firstVisibleItem == mPrefetchFirstItem && visibleItemCount == mPrefetchItemCount) {
+            return;
+        }
+        mPrefetchFirstItem = firstVisibleItem;
+        mPrefetchItemCount = visibleItemCount;
+
+        // Collect the ids of the visible movies.
+        int lastVisibleItem = Math.min(firstVisibleItem + visibleItemCount, mDiscoverAdapter.getCount());
+        List<Long> movieIds = new ArrayList<>(visibleItemCount);
+        for(int i = firstVisibleItem; i < lastVisibleItem; i++) {
+            movieIds.add((long) mDiscoverAdapter.getItem(i).getId());
+        }
+
+        DetailsPrefetcher.getInstance(getActivity()).prefetch(movieIds);
+    }
+
+    /*
+     * Prefetches the posters of the rows following the visible ones in the scroll direction,
+     * if that range changed.
+     */
+    private void prefetchPosters(int firstVisibleItem, int visibleItemCount) {
+        int prefetchCount = mPosterPrefetchRows * Math.max(mGridView.getNumColumns(), 1);
+
+        // Determine the range ahead of the visible rows in the scroll direction.
+        int first;
+        int last;
+        if(firstVisibleItem < mLastFirstVisibleItem) {
+            first = Math.max(firstVisibleItem - prefetchCount, 0);
+            last = firstVisibleItem;
+        } else {
+            first = firstVisibleItem + visibleItemCount;
+            last = first + prefetchCount;
+        }
+        mLastFirstVisibleItem = firstVisibleItem;
+
+        if(first == mPosterPrefetchFirst && last == mPosterPrefetchLast) {
+            return;
+        }
+        mPosterPrefetchFirst = first;
+        mPosterPrefetchLast = last;
+
+        mDiscoverAdapter.prefetchPosters(mGridView, first, last);
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        Picasso picasso = ImagePipeline.getInstance(getActivity()).getPicasso();
+
+        // Pause the poster requests while the grid is flung, the cells scroll by too fast for
+        // their posters to be seen. Resume them once the grid slows down to a scroll.
+        mIsFlinging = scrollState == SCROLL_STATE_FLING;
+        if(mIsFlinging) {
+            picasso.pauseTag(DiscoverAdapter.POSTER_REQUEST_TAG);
+
+            // Cancel the prefetches, the fling carries the grid past the range they were for.
+            mDiscoverAdapter.cancelPrefetches();
+            mPosterPrefetchFirst = GridView.INVALID_POSITION;
+        } else {
+            picasso.resumeTag(DiscoverAdapter.POSTER_REQUEST_TAG);
+
+            // Prefetch ahead of where the grid came to rest.
+            if(mGridView.getAdapter() == mDiscoverAdapter && mDiscoverAdapter.getCount() > 0) {
+                prefetchPosters(view.getFirstVisiblePosition(), view.getChildCount());
+            }
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                         int totalItemCount) {
+        // Check if the discover movies are being displayed.
+        if(totalItemCount == 0 || mGridView.getAdapter() != mDiscoverAdapter) {
+            return;
+        }
+
+        // Prefetch the details of the visible movies.
+        prefetchDetails(firstVisibleItem, visibleItemCount);
+
+        // Prefetch the posters ahead of the visible movies, unless the grid is being flung.
+        if(!mIsFlinging) {
+            prefetchPosters(firstVisibleItem, visibleItemCount);
+        }
+
+        // Load the next page once the grid is scrolled close enough to the end.
+        if(firstVisibleItem + visibleItemCount >= totalItemCount - mNextPageDistance) {
+            Loader<DiscoverLoaderResult> loader = getLoaderManager().getLoader(LOADER_DISCOVER_ID);
+            if(loader != null) {
+                // The loader ignores the request if the page is already being loaded, or if it
+                // failed to load less than its retry delay ago.
+                ((DiscoverLoader) loader).loadNextPage();
+            }
+        }
+    }
+
     /**
      * Public interface that needs to be implemented by the hosting activity to receive
      * notifications from fragment whenever the user selects/clicks on a movie.
@@ -236,23 +420,59 @@ public class DiscoverFragment extends Fragment implements GridView.OnItemClickLi
                 return;
             }
 
-            // Set the discover adapter onto the grid view.
-            mGridView.setAdapter(mDiscoverAdapter);
-
-            // Clear the adapter.
-            mDiscoverAdapter.clear();
+            // Set the discover adapter onto the grid view, unless it's already set.
+            if(mGridView.getAdapter() != mDiscoverAdapter) {
+                mGridView.setAdapter(mDiscoverAdapter);
+            }
 
             // Check if an error occurred while loading data.
             Exception exception = data.getException();
             if(exception == null) {
-                // Data load successful. Add the loaded data into adapter.
-                mDiscoverAdapter.addAll(data.getData());
+                // Data load successful. The result holds the movies of all the pages loaded.
+                List<Movie> movieList = data.getData();
 
-                // Move to appropriate grid index.
-                if(mGridIndex != GridView.INVALID_POSITION) {
-                    mGridView.setSelection(mGridIndex);
+                // Clear the adapter if it holds movies that aren't part of the result, as when
+                // a refreshed discover list differs from the persisted one.
+                if(!isPrefixOf(movieList)) {
+                    mDiscoverAdapter.clear();
                 }
+
+                // Prefetch again for the visible range once the new movies are laid out.
+                mPrefetchFirstItem = GridView.INVALID_POSITION;
+                mPosterPrefetchFirst = GridView.INVALID_POSITION;
+
+                // Append the newly loaded movies into adapter, without clearing it.
+                boolean isFirstPage = mDiscoverAdapter.getCount() == 0;
+                mDiscoverAdapter.addAll(movieList.subList(mDiscoverAdapter.getCount(), movieList.size()));
+
+                if(isFirstPage) {
+                    // Log the time taken to display the first posters.
+                    if(mLoadStartTime != 0) {
+                        Log.d(LOG_TAG, "Time to first poster: "
+                                + (SystemClock.elapsedRealtime() - mLoadStartTime) + " ms"
+                                + (data.isSnapshot() ? " (persisted list)" : " (network)"));
+                        mLoadStartTime = 0;
+                    }
+
+                    // Move to appropriate grid index.
+                    if(mGridIndex != GridView.INVALID_POSITION) {
+                        mGridView.setSelection(mGridIndex);
+                    }
+                }
+
+                // Tell the user the next page failed to load. The loader requests it again on
+                // a scroll once its retry delay has elapsed.
+                Exception pageException = data.getPageException();
+                if(pageException != null && pageException != mShownPageException) {
+                    Toast.makeText(getActivity(),
+                            Utility.getErrorMessage(getActivity(), pageException),
+                            Toast.LENGTH_SHORT).show();
+                }
+                mShownPageException = pageException;
             } else {
+                // Clear the adapter.
+                mDiscoverAdapter.clear();
+
                 // Data load failed. Display appropriate error message to user.
                 mEmptyGridMessage.setText(Utility.getErrorMessage(getActivity(), exception));
             }
@@ -263,6 +483,30 @@ public class DiscoverFragment extends Fragment implements GridView.OnItemClickLi
             // Loader was reset. Clear the adapter.
             mDiscoverAdapter.clear();
         }
+
+        /*
+         * Returns true if the movies in the adapter are the same, in the same order, as the
+         * first movies in the list.
+         */
+        private boolean isPrefixOf(List<Movie> movieList) {
+            int count = mDiscoverAdapter.getCount();
+            if(count > movieList.size()) {
+                return false;
+            }
+
+            for(int i = 0; i < count; i++) {
+                Movie adapterMovie = mDiscoverAdapter.getItem(i);
+                Movie movie = movieList.get(i);
+
+                // Compare the movie id and poster displayed in the grid.
+                if(adapterMovie.getId() != movie.getId()
+                        || !TextUtils.equals(adapterMovie.getPosterPath(), movie.getPosterPath())) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
     }
 
     /**
@@ -273,8 +517,8 @@ public class DiscoverFragment extends Fragment implements GridView.OnItemClickLi
 
         @Override
         public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-            // Sort order for the query.
-            String sortOrder = MovieContract.MovieEntry.COLUMN_RELEASE_DATE + " DESC";
+            // Sort order for the query, served by the release day index.
+            String sortOrder = MovieContract.MovieEntry.COLUMN_RELEASE_DAY + " DESC";
 
             // Create loader to retrieve favorite movies from database through content provider.
             return new CursorLoader(
@@ -16,191 +16,291 @@
 
 package com.ravi.apps.android.popularmovies;
 
-import android.content.AsyncTaskLoader;
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.util.Log;
 
-import org.json.JSONArray;
+import com.ravi.apps.android.popularmovies.data.MovieContract.DiscoverEntry;
+import com.squareup.okhttp.Response;
+
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Asynchronously loads the discover movies data from the TMDB server.
+ * Asynchronously loads the discover movies data from the TMDB server. The first page of
+ * each sort order is persisted, so on a cold start the last list loaded is delivered right
+ * away while it's refreshed from the server in the background.
  */
-public class DiscoverLoader extends AsyncTaskLoader<DiscoverLoaderResult> {
+public class DiscoverLoader extends LaneLoader<DiscoverLoaderResult> {
 
     // Tag for logging messages.
     public final String LOG_TAG = DiscoverLoader.class.getSimpleName();
 
-    // Store the result from the asynchronous load.
+    // Store the result from the asynchronous load, holding the movies of all the pages loaded.
     private DiscoverLoaderResult mLoaderResult;
 
+    // Sort order query param value, fixed for the lifetime of the loader.
+    private final String mSortBy;
+
+    // Client used to fetch the pages.
+    private final TmdbClient mClient;
+
+    // Base URL the query params are appended to.
+    private final String mBaseUrl;
+
+    // Page being requested from the TMDB server.
+    private volatile int mRequestedPage;
+
+    // Whether a page load is in flight, used to ignore duplicate page requests.
+    private boolean mIsLoadingPage;
+
+    // Whether the persisted discover list is yet to be loaded.
+    private volatile boolean mShouldLoadSnapshot = true;
+
+    // Delay before a failed page is requested again, doubled on each consecutive failure.
+    static final long PAGE_RETRY_DELAY_MS = 2000;
+    private static final long PAGE_RETRY_MAX_DELAY_MS = 32000;
+
+    // Number of consecutive failed loads of the next page.
+    private int mPageFailureCount;
+
+    // Time before which the failed page isn't requested again, in elapsed realtime ms.
+    private long mPageRetryTime;
+
+    // Projection for the persisted discover list.
+    private static final String[] SNAPSHOT_PROJECTION = {
+            DiscoverEntry.COLUMN_MOVIE_ID,
+            DiscoverEntry.COLUMN_POSTER_PATH,
+            DiscoverEntry.COLUMN_ORIGINAL_TITLE,
+            DiscoverEntry.COLUMN_RELEASE_DATE,
+            DiscoverEntry.COLUMN_VOTE_AVERAGE,
+            DiscoverEntry.COLUMN_OVERVIEW
+    };
+
+    // Column indices tied to the persisted discover list projection.
+    private static final int COL_MOVIE_ID = 0;
+    private static final int COL_POSTER_PATH = 1;
+    private static final int COL_ORIGINAL_TITLE = 2;
+    private static final int COL_RELEASE_DATE = 3;
+    private static final int COL_VOTE_AVERAGE = 4;
+    private static final int COL_OVERVIEW = 5;
+
     // Base URL for the query.
-    private final String TMDB_DISCOVER_MOVIES_BASE_URL = "http://api.themoviedb.org/3/discover/movie?";
+    private static final String TMDB_DISCOVER_MOVIES_BASE_URL = "http://api.themoviedb.org/3/discover/movie?";
 
     // Query parameters.
-    private final String TMDB_API_KEY_PARAM = "api_key";
     private final String TMDB_SORT_BY_PARAM = "sort_by";
+    private final String TMDB_PAGE_PARAM = "page";
 
     // Query parameter values.
-    private final String TMDB_API_KEY = getContext().getString(R.string.tmdb_api_key);
     private final String TMDB_SORT_BY_POPULARITY = "popularity.desc";
     private final String TMDB_SORT_BY_VOTE_AVERAGE = "vote_average.desc";
 
-    // JSON fields in the query response.
-    private final String TMDB_RESULTS = "results";
-    private final String TMDB_ID = "id";
-    private final String TMDB_POSTER_PATH = "poster_path";
+    public DiscoverLoader(Context context) {
+        this(context, TmdbClient.getInstance(context), TMDB_DISCOVER_MOVIES_BASE_URL);
+    }
 
-    // Base URL and size for movie poster image.
-    private final String TMDB_POSTER_BASE_URL = "http://image.tmdb.org/t/p/";
-    private final String TMDB_POSTER_SIZE = "w185/";
+    // Package private constructor, also used by the tests to fetch from a local server.
+    DiscoverLoader(Context context, TmdbClient client, String baseUrl) {
+        super(context, LoaderExecutor.LANE_UI);
+        mClient = client;
+        mBaseUrl = baseUrl;
 
-    public DiscoverLoader(Context context) {
-        super(context);
+        // Get the sort order preference from shared preferences.
+        String sortOrderPreference = Utility.getSortOrderPreference(getContext());
+        String sortByMostPopular = getContext().getString(R.string.pref_sort_order_most_popular);
+
+        // Set the query param value based on preference.
+        if(sortOrderPreference.equals(sortByMostPopular)) {
+            mSortBy = TMDB_SORT_BY_POPULARITY;
+        } else {
+            mSortBy = TMDB_SORT_BY_VOTE_AVERAGE;
+        }
     }
 
     /**
-     * Asynchronously loads the discover movies data from the TMDB server and returns the result.
+     * Asynchronously loads the requested page of discover movies data from the TMDB server
+     * and returns the result.
      *
      * @return result of the data load operation
      */
     @Override
     public DiscoverLoaderResult loadInBackground() {
 
+        // Load the persisted discover list first, if nothing has been loaded yet.
+        if(mShouldLoadSnapshot) {
+            mShouldLoadSnapshot = false;
+
+            DiscoverLoaderResult snapshotResult = loadSnapshot();
+            if(snapshotResult != null) {
+                return snapshotResult;
+            }
+        }
+
         // Create discover loader result object.
         DiscoverLoaderResult loaderResult = new DiscoverLoaderResult();
-        List<Movie> movieList = null;
-
-        HttpURLConnection httpURLConnection = null;
-        BufferedReader bufferedReader = null;
+        loaderResult.setPage(mRequestedPage);
 
         try {
-            String movieListJsonStr = null;
-
-            // Get the sort order preference from shared preferences.
-            String sortOrderPreference = Utility.getSortOrderPreference(getContext());
-            String sortByMostPopular = getContext().getString(R.string.pref_sort_order_most_popular);
-
-            // Set the query param value based on preference.
-            String sortBy = null;
-            if(sortOrderPreference.equals(sortByMostPopular)) {
-                sortBy = TMDB_SORT_BY_POPULARITY;
-            } else {
-                sortBy = TMDB_SORT_BY_VOTE_AVERAGE;
-            }
-
             // Build the uri for querying data from TMDb api.
-            Uri uri = Uri.parse(TMDB_DISCOVER_MOVIES_BASE_URL).buildUpon()
-                    .appendQueryParameter(TMDB_API_KEY_PARAM, TMDB_API_KEY)
-                    .appendQueryParameter(TMDB_SORT_BY_PARAM, sortBy)
+            Uri uri = Uri.parse(mBaseUrl).buildUpon()
+                    .appendQueryParameter(TMDB_SORT_BY_PARAM, mSortBy)
+                    .appendQueryParameter(TMDB_PAGE_PARAM, Integer.toString(mRequestedPage))
                     .build();
 
-            // Create the url for connecting to TMDb server.
-            URL url = new URL(uri.toString());
-
-            // Create the request to TMDB server and open the connection.
-            httpURLConnection = (HttpURLConnection) url.openConnection();
-            httpURLConnection.setRequestMethod("GET");
-            httpURLConnection.connect();
-
-            // Read the response input stream into a string buffer.
-            InputStream inputStream = httpURLConnection.getInputStream();
-            bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
-
-            StringBuffer stringBuffer = new StringBuffer();
-            String line = null;
-            while ((line = bufferedReader.readLine()) != null) {
-                stringBuffer.append(line);
+            // Fetch the data through the shared client, which adds the api key and caches it.
+            // Cancelling the load aborts the download and the parsing along with it.
+            Response response = mClient.get(uri.toString(),
+                    TmdbRequestScheduler.PRIORITY_FOREGROUND, getCancellationToken());
+
+            try {
+                // Parse the response as it streams in and store the movie data into the result.
+                TmdbJsonParser.parseMovieList(getContext(), response.body().charStream(), loaderResult);
+            } finally {
+                // Close the response body, which releases the connection back to the pool.
+                response.body().close();
             }
 
-            // Convert the string buffer to string.
-            movieListJsonStr = stringBuffer.toString();
-
-            // Parse the JSON string and extract the movie data.
-            movieList = getMovieListFromJson(movieListJsonStr);
+            // Persist the first page for the next cold start.
+            if(mRequestedPage == 1) {
+                saveSnapshot(loaderResult.getData());
+            }
 
         } catch (IOException | JSONException e) {
             Log.e(LOG_TAG, "Error: loadInBackground(): " + e.getLocalizedMessage());
 
             // Store the exception into the load result.
-            loaderResult.setException(e);
-        } finally {
-            // Close url connection, if open.
-            if (httpURLConnection != null) {
-                httpURLConnection.disconnect();
-            }
-
-            // Close the buffered reader, if open.
-            if (bufferedReader != null) {
-                try {
-                    bufferedReader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error: loadInBackground(): " + e.getLocalizedMessage());
-                }
-            }
+            loaderResult.setException(getLoadException(e));
         }
 
-        // Store the list of movie data into the load result.
-        loaderResult.setData(movieList);
-
         return loaderResult;
     }
 
     /*
-     * Parses the input JSON string and returns a list of movie data. Throws a
-     * JSON exception in case of any error.
+     * Loads the persisted discover list of the sort order. Returns null if there's none.
      */
-    private List<Movie> getMovieListFromJson(String jsonResponseString)
-            throws JSONException {
-
-        // Create the JSON object from the input string.
-        JSONObject moviesJson = new JSONObject(jsonResponseString);
-
-        // Get the JSON array containing the results.
-        JSONArray resultsJsonArray = moviesJson.getJSONArray(TMDB_RESULTS);
+    private DiscoverLoaderResult loadSnapshot() {
+        // Query the persisted discover list through the content provider.
+        Cursor cursor = getContext().getContentResolver().query(
+                DiscoverEntry.appendSortOrderToUri(mSortBy),
+                SNAPSHOT_PROJECTION,
+                null,
+                null,
+                DiscoverEntry.COLUMN_POSITION + " ASC");
+
+        if(cursor == null) {
+            return null;
+        }
 
-        // Get length of the results array.
-        int resultsLength = resultsJsonArray.length();
+        try {
+            // Check if the cursor is empty.
+            if(!cursor.moveToFirst()) {
+                return null;
+            }
 
-        // Parse the results array only if it's not empty.
-        if(resultsLength != 0) {
-            // Create the list to store the movie data objects.
+            // Extract the movie data from the cursor.
             List<Movie> movieList = new ArrayList<>();
+            do {
+                movieList.add(new Movie(cursor.getInt(COL_MOVIE_ID),
+                        cursor.getString(COL_ORIGINAL_TITLE),
+                        cursor.getString(COL_POSTER_PATH),
+                        cursor.getString(COL_RELEASE_DATE),
+                        0,
+                        cursor.getDouble(COL_VOTE_AVERAGE),
+                        cursor.getString(COL_OVERVIEW),
+                        null,
+                        null));
+            } while(cursor.moveToNext());
+
+            // Create the result, which doesn't allow loading further pages till refreshed.
+            DiscoverLoaderResult snapshotResult = new DiscoverLoaderResult();
+            snapshotResult.setData(movieList);
+            snapshotResult.setPage(1);
+            snapshotResult.setTotalPages(1);
+            snapshotResult.setSnapshot(true);
+
+            return snapshotResult;
+        } finally {
+            cursor.close();
+        }
+    }
 
-            // Traverse each result.
-            for(int i = 0; i < resultsLength; i++) {
-                // Get the JSON object containing a movie.
-                JSONObject jsonMovie = resultsJsonArray.getJSONObject(i);
+    /*
+     * Persists the discover list of the sort order, replacing the previous one.
+     */
+    private void saveSnapshot(List<Movie> movieList) {
+        // Create content values array for bulk insert of the discover list.
+        ContentValues[] discoverValues = new ContentValues[movieList.size()];
+
+        for(int i = 0; i < movieList.size(); i++) {
+            Movie movie = movieList.get(i);
+
+            // Add movie data into content values.
+            ContentValues values = new ContentValues();
+            values.put(DiscoverEntry.COLUMN_SORT_ORDER, mSortBy);
+            values.put(DiscoverEntry.COLUMN_POSITION, i);
+            values.put(DiscoverEntry.COLUMN_MOVIE_ID, movie.getId());
+            values.put(DiscoverEntry.COLUMN_POSTER_PATH, movie.getPosterPath());
+            values.put(DiscoverEntry.COLUMN_ORIGINAL_TITLE, movie.getOriginalTitle());
+            values.put(DiscoverEntry.COLUMN_RELEASE_DATE, movie.getReleaseDate());
+            values.put(DiscoverEntry.COLUMN_VOTE_AVERAGE, movie.getVoteAverage());
+            values.put(DiscoverEntry.COLUMN_OVERVIEW, movie.getOverview());
+
+            discoverValues[i] = values;
+        }
 
-                // Extract and store the movie id and poster path from the JSON object.
-                int id = jsonMovie.getInt(TMDB_ID);
-                String poster = TMDB_POSTER_BASE_URL
-                        + TMDB_POSTER_SIZE
-                        + jsonMovie.getString(TMDB_POSTER_PATH);
+        try {
+            // Bulk insert the discover list into database through content provider.
+            getContext().getContentResolver().bulkInsert(
+                    DiscoverEntry.appendSortOrderToUri(mSortBy), discoverValues);
+        } catch (SQLException e) {
+            // The list is only a cache, so the load still succeeds.
+            Log.e(LOG_TAG, "Error: saveSnapshot(): " + e.getLocalizedMessage());
+        }
+    }
 
-                // Create the movie data object.
-                Movie movie = new Movie(id, null, poster, null, null, 0, 0, null, null, null);
+    /**
+     * Starts loading the next page of discover movies data, unless a page is already being
+     * loaded, all the pages have been loaded or the next page failed to load less than the
+     * retry delay ago. Must be called on the main thread.
+     *
+     * @return true if the load of the next page was started
+     */
+    public boolean loadNextPage() {
+        // Ignore the request if a page is in flight or the first page isn't loaded yet.
+        if(mIsLoadingPage || mLoaderResult == null || !isStarted()) {
+            return false;
+        }
 
-                // Add the movie data object to the list.
-                movieList.add(movie);
-            }
+        // Ignore the request if the last load failed or there are no more pages.
+        if(mLoaderResult.getException() != null || !mLoaderResult.hasMorePages()) {
+            return false;
+        }
 
-            return movieList;
-        } else {
-            // No results found in the JSON response string.
-            throw new JSONException(getContext().getString(R.string.err_zero_results));
+        // Back off from a failing page, as when offline, rather than request it on each scroll.
+        if(mLoaderResult.getPageException() != null
+                && SystemClock.elapsedRealtime() < mPageRetryTime) {
+            return false;
         }
+
+        loadPage(mLoaderResult.getPage() + 1);
+        return true;
+    }
+
+    /*
+     * Starts loading the specified page.
+     */
+    private void loadPage(int page) {
+        mRequestedPage = page;
+        mIsLoadingPage = true;
+        forceLoad();
     }
 
     @Override
@@ -210,13 +310,42 @@ public class DiscoverLoader extends AsyncTaskLoader<DiscoverLoaderResult> {
             return;
         }
 
-        // Hold the old data till result has been delivered.
-        DiscoverLoaderResult oldResult = mLoaderResult;
-        mLoaderResult = data;
+        // Page load has completed.
+        mIsLoadingPage = false;
+
+        // Append the movies to the ones loaded so far if it's a subsequent page.
+        if(data != mLoaderResult && data.getPage() > 1 && mLoaderResult != null) {
+            if(data.getException() == null) {
+                // Append the page to the loaded movies, in a new result so that it's delivered.
+                mLoaderResult = mLoaderResult.appendPage(data);
+                mPageFailureCount = 0;
+            } else {
+                // Keep the loaded movies and deliver the failure along with them. The page is
+                // requested again on a scroll once the retry delay has elapsed.
+                Log.e(LOG_TAG, "Error: deliverResult(): failed to load page " + data.getPage());
+                mPageFailureCount++;
+                mPageRetryTime = SystemClock.elapsedRealtime() + Math.min(
+                        PAGE_RETRY_DELAY_MS << Math.min(mPageFailureCount - 1, 4),
+                        PAGE_RETRY_MAX_DELAY_MS);
+                mLoaderResult = mLoaderResult.withPageException(data.getException());
+            }
+        } else if(data.getException() != null && mLoaderResult != null
+                && mLoaderResult.isSnapshot()) {
+            // Refresh failed, most likely offline. Keep displaying the persisted list.
+            Log.e(LOG_TAG, "Error: deliverResult(): failed to refresh the discover list");
+            return;
+        } else {
+            mLoaderResult = data;
+        }
 
         // Loader is in started state so deliver the result.
         if(isStarted()) {
-            super.deliverResult(data);
+            super.deliverResult(mLoaderResult);
+
+            // Refresh the persisted list from the server.
+            if(mLoaderResult.isSnapshot() && !mIsLoadingPage) {
+                loadPage(1);
+            }
         }
     }
 
@@ -226,13 +355,15 @@ public class DiscoverLoader extends AsyncTaskLoader<DiscoverLoaderResult> {
         if(mLoaderResult != null) {
             deliverResult(mLoaderResult);
         } else {
-            forceLoad();
+            loadPage(1);
         }
     }
 
     @Override
     protected void onStopLoading() {
+        // Cancel the page in flight, it's requested again once the loader is restarted.
         cancelLoad();
+        mIsLoadingPage = false;
     }
 
     @Override
@@ -249,5 +380,6 @@ public class DiscoverLoader extends AsyncTaskLoader<DiscoverLoaderResult> {
         if(mLoaderResult != null) {
             mLoaderResult = null;
         }
+        mPageFailureCount = 0;
     }
 }
@@ -16,6 +16,7 @@
 
 package com.ravi.apps.android.popularmovies;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -27,9 +28,19 @@ public class DiscoverLoaderResult {
     // List of movie data.
     private List<Movie> mMovieList;
 
+    // Last page of results loaded and the total number of pages available.
+    private int mPage;
+    private int mTotalPages;
+
+    // Whether the data is the persisted discover list, yet to be refreshed from the server.
+    private boolean mIsSnapshot;
+
     // Stores the error that occurred during the load operation. Null if no errors.
     private Exception mException;
 
+    // Error of the last load of the next page, the movies loaded so far are kept. Null if none.
+    private Exception mPageException;
+
     // Returns the list of movie data.
     public List<Movie> getData() {
         return mMovieList;
@@ -40,6 +51,31 @@ public class DiscoverLoaderResult {
         return mException;
     }
 
+    // Returns the error of the last load of the next page.
+    public Exception getPageException() {
+        return mPageException;
+    }
+
+    // Returns the last page of results loaded.
+    public int getPage() {
+        return mPage;
+    }
+
+    // Returns the total number of pages available.
+    public int getTotalPages() {
+        return mTotalPages;
+    }
+
+    // Returns true if there are more pages available to load.
+    public boolean hasMorePages() {
+        return mPage < mTotalPages;
+    }
+
+    // Returns true if the data is the persisted discover list, yet to be refreshed.
+    public boolean isSnapshot() {
+        return mIsSnapshot;
+    }
+
     // Sets the list of movie data.
     public void setData(List<Movie> data) {
         mMovieList = data;
@@ -49,4 +85,56 @@ public class DiscoverLoaderResult {
     public void setException(Exception exception) {
         mException = exception;
     }
+
+    // Sets the last page of results loaded.
+    public void setPage(int page) {
+        mPage = page;
+    }
+
+    // Sets the total number of pages available.
+    public void setTotalPages(int totalPages) {
+        mTotalPages = totalPages;
+    }
+
+    // Sets whether the data is the persisted discover list.
+    public void setSnapshot(boolean isSnapshot) {
+        mIsSnapshot = isSnapshot;
+    }
+
+    /**
+     * Returns a new result holding the movie data of this result followed by the one of the
+     * next page of results. This result is left unchanged, as the loader manager ignores a
+     * result it has already delivered.
+     *
+     * @param nextPage result of the next page
+     * @return         result of all the pages
+     */
+    public DiscoverLoaderResult appendPage(DiscoverLoaderResult nextPage) {
+        // Copy the movies loaded so far and add the ones of the page.
+        List<Movie> movieList = new ArrayList<>(mMovieList.size() + nextPage.getData().size());
+        movieList.addAll(mMovieList);
+        movieList.addAll(nextPage.getData());
+
+        DiscoverLoaderResult result = new DiscoverLoaderResult();
+        result.setData(movieList);
+        result.setPage(nextPage.getPage());
+        result.setTotalPages(nextPage.getTotalPages());
+        return result;
+    }
+
+    /**
+     * Returns a new result holding the movie data of this result along with the error of the
+     * failed load of the next page, so that the failure is delivered to the loader callbacks.
+     *
+     * @param pageException error of the load of the next page
+     * @return              result of the pages loaded so far, with the error
+     */
+    public DiscoverLoaderResult withPageException(Exception pageException) {
+        DiscoverLoaderResult result = new DiscoverLoaderResult();
+        result.setData(mMovieList);
+        result.setPage(mPage);
+        result.setTotalPages(mTotalPages);
+        result.mPageException = pageException;
+        return result;
+    }
 }
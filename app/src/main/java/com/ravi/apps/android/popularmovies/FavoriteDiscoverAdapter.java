@@ -18,8 +18,6 @@ package com.ravi.apps.android.popularmovies;
 
 import android.content.Context;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -31,8 +29,12 @@ import android.widget.ImageView;
  */
 public class FavoriteDiscoverAdapter extends CursorAdapter {
 
+    // Minimum width of the grid columns, used till the cells are laid out.
+    private final int mColumnWidth;
+
     public FavoriteDiscoverAdapter(Context context, Cursor c, int flags) {
         super(context, c, flags);
+        mColumnWidth = context.getResources().getDimensionPixelSize(R.dimen.discover_column_width);
     }
 
     @Override
@@ -45,7 +47,7 @@ public class FavoriteDiscoverAdapter extends CursorAdapter {
         int movieId = cursor.getInt(DiscoverFragment.COL_MOVIE_ID);
 
         // Create a movie object with the extracted movie id and return it.
-        Movie movie = new Movie(movieId, null, null, null, null, 0, 0, null, null, null);
+        Movie movie = new Movie(movieId, null, null, null, 0, 0, null, null, null);
 
         return movie;
     }
@@ -64,14 +66,15 @@ public class FavoriteDiscoverAdapter extends CursorAdapter {
         // Get the image view.
         ImageView posterImage = (ImageView) view;
 
-        // Get the poster image blob from cursor.
-        byte[] posterByteStream = cursor.getBlob(DiscoverFragment.COL_POSTER_IMAGE);
-
-        // Get the poster image bitmap from byte array.
-        Bitmap posterBitmap = BitmapFactory.decodeByteArray(posterByteStream, 0, posterByteStream.length);
+        // Determine the size of the grid cell, the recycled cells are already laid out.
+        int cellWidth = posterImage.getWidth() > 0 ? posterImage.getWidth() : mColumnWidth;
+        int cellHeight = posterImage.getLayoutParams().height;
 
-        // Set the poster image bitmap into the image view.
-        posterImage.setImageBitmap(posterBitmap);
+        // Decode the poster thumbnail in the background, downsampled to the grid cell.
         posterImage.setScaleType(ImageView.ScaleType.FIT_XY);
+        PosterDecoder.getInstance(context).load(
+                cursor.getLong(DiscoverFragment.COL_MOVIE_ID),
+                cursor.getString(DiscoverFragment.COL_THUMBNAIL_FILE),
+                posterImage, cellWidth, cellHeight);
     }
 }
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+
+import com.squareup.okhttp.Cache;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.picasso.NetworkPolicy;
+import com.squareup.picasso.OkHttpDownloader;
+import com.squareup.picasso.Picasso;
+import com.squareup.picasso.RequestCreator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Application scoped image pipeline loading the posters, in place of the default Picasso
+ * singleton and its default cache sizes.
+ *
+ * Decoded posters are kept in a memory cache sized as a share of the memory class of the
+ * device, so that scrolling back through the grid neither refetches nor decodes them again.
+ * Downloaded posters are kept in a size bounded disk cache, which evicts the least recently
+ * used ones once it exceeds its quota. Hits, misses and evictions of the memory cache and
+ * hits and misses of the disk cache are tracked.
+ *
+ * The url and size of the posters displayed by the grid are remembered, so that the details
+ * screen and the favorites can take a poster straight from the caches, by the same key the
+ * grid cached it under, instead of requesting it again.
+ *
+ * The memory cache is trimmed under memory pressure. It holds the posters on screen, so it's
+ * only shed in part while the application is visible.
+ */
+public class ImagePipeline implements MemoryPressureManager.Trimmable {
+
+    // Connect and read timeouts of the poster downloads, in seconds.
+    private static final long CONNECT_TIMEOUT = 10;
+    private static final long READ_TIMEOUT = 20;
+
+    // Name of the directory holding the poster cache.
+    private static final String CACHE_DIRECTORY = "posters-http";
+
+    // Number of displayed grid posters remembered.
+    private static final int DISPLAYED_POSTER_COUNT = 200;
+
+    // Share of the memory cache kept under memory pressure.
+    private static final MemoryPressureManager.TrimPolicy TRIM_POLICY =
+            new MemoryPressureManager.TrimPolicy()
+                    .retain(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW, 50)
+                    .retain(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL, 25)
+                    .retain(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN, 50)
+                    .retain(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND, 25)
+                    .retain(ComponentCallbacks2.TRIM_MEMORY_MODERATE, 0);
+
+    // Single instance shared across the application.
+    private static ImagePipeline sInstance;
+
+    // Picasso instance loading the posters through the caches.
+    private final Picasso mPicasso;
+
+    // Memory cache of the decoded posters.
+    private final PosterMemoryCache mMemoryCache;
+
+    // Disk cache of the downloaded posters.
+    private final Cache mDiskCache;
+
+    // Posters displayed by the grid, keyed by poster path, in access order.
+    private final Map<String, DisplayedPoster> mDisplayedPosters =
+            new LinkedHashMap<String, DisplayedPoster>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, DisplayedPoster> eldest) {
+                    return size() > DISPLAYED_POSTER_COUNT;
+                }
+            };
+
+    /**
+     * Url of a poster displayed by the grid along with the size it was resized to, which
+     * together make up its key in the caches.
+     */
+    private static final class DisplayedPoster {
+
+        // Url of the poster.
+        private final String mUrl;
+
+        // Size the poster was resized to, in pixels.
+        private final int mWidth;
+        private final int mHeight;
+
+        DisplayedPoster(String url, int width, int height) {
+            mUrl = url;
+            mWidth = width;
+            mHeight = height;
+        }
+    }
+
+    /**
+     * Returns the single instance of the image pipeline, creating it if required.
+     *
+     * @param context the context
+     * @return        the shared image pipeline
+     */
+    public static synchronized ImagePipeline getInstance(Context context) {
+        if(sInstance == null) {
+            Context appContext = context.getApplicationContext();
+
+            // Size the memory cache from the memory available to the application.
+            int memoryClass = ((ActivityManager) appContext.getSystemService(
+                    Context.ACTIVITY_SERVICE)).getMemoryClass();
+            int memoryCacheSize = getMemoryCacheSize(memoryClass,
+                    appContext.getResources().getInteger(R.integer.image_memory_cache_percent));
+
+            // Create the disk cache with the configured quota.
+            long diskCacheSize =
+                    appContext.getResources().getInteger(R.integer.image_disk_cache_size_kb) * 1024L;
+            Cache diskCache = new Cache(new File(appContext.getCacheDir(), CACHE_DIRECTORY),
+                    diskCacheSize);
+
+            sInstance = new ImagePipeline(appContext, memoryCacheSize, diskCache);
+            MemoryPressureManager.getInstance(appContext).register(sInstance);
+        }
+        return sInstance;
+    }
+
+    // Package private constructor, also used by the tests to get a pipeline with caches of
+    // their own.
+    ImagePipeline(Context context, int memoryCacheSize, Cache diskCache) {
+        mMemoryCache = new PosterMemoryCache(memoryCacheSize);
+        mDiskCache = diskCache;
+
+        // Download the posters through the disk cache.
+        OkHttpClient okHttpClient = new OkHttpClient();
+        okHttpClient.setCache(diskCache);
+        okHttpClient.setConnectTimeout(CONNECT_TIMEOUT, TimeUnit.SECONDS);
+        okHttpClient.setReadTimeout(READ_TIMEOUT, TimeUnit.SECONDS);
+
+        mPicasso = new Picasso.Builder(context)
+                .memoryCache(mMemoryCache)
+                .downloader(new OkHttpDownloader(okHttpClient))
+                .build();
+    }
+
+    /**
+     * Returns the size of the memory cache, in bytes, for the memory class of the device.
+     *
+     * @param memoryClass memory class of the device, in megabytes
+     * @param percent     share of the memory class given to the cache, in percent
+     * @return            size of the memory cache, in bytes
+     */
+    static int getMemoryCacheSize(int memoryClass, int percent) {
+        return (int) (memoryClass * 1024L * 1024L * percent / 100);
+    }
+
+    @Override
+    public long trimMemory(int level) {
+        int size = mMemoryCache.size();
+        mMemoryCache.trimToSize(TRIM_POLICY.getRetainedSize(level, mMemoryCache.maxSize()));
+        return size - mMemoryCache.size();
+    }
+
+    // Returns the Picasso instance loading the posters.
+    public Picasso getPicasso() {
+        return mPicasso;
+    }
+
+    /**
+     * Remembers the poster displayed by the grid for the poster path. Called once the poster
+     * is loaded, so that it's in the caches.
+     *
+     * @param posterPath the poster path of the movie
+     * @param url        url of the displayed poster
+     * @param width      width the poster was resized to, in pixels
+     * @param height     height the poster was resized to, in pixels
+     */
+    public void putDisplayedPoster(String posterPath, String url, int width, int height) {
+        synchronized(mDisplayedPosters) {
+            mDisplayedPosters.put(posterPath, new DisplayedPoster(url, width, height));
+        }
+    }
+
+    /**
+     * Returns a request for the poster the grid displayed for the poster path, served from
+     * the memory cache by the key the grid cached it under, or else from the disk cache. The
+     * request never goes to the network and fails if the poster is no longer cached.
+     *
+     * @param posterPath the poster path of the movie, may be null
+     * @return           the request, or null if the grid didn't display the poster
+     */
+    public RequestCreator loadDisplayedPoster(String posterPath) {
+        DisplayedPoster displayedPoster;
+        synchronized(mDisplayedPosters) {
+            displayedPoster = mDisplayedPosters.get(posterPath);
+        }
+        if(displayedPoster == null) {
+            return null;
+        }
+
+        return mPicasso.load(displayedPoster.mUrl)
+                .resize(displayedPoster.mWidth, displayedPoster.mHeight)
+                .networkPolicy(NetworkPolicy.OFFLINE);
+    }
+
+    // Returns the number of posters found in the memory cache.
+    public int getMemoryHitCount() {
+        return mMemoryCache.hitCount();
+    }
+
+    // Returns the number of posters not found in the memory cache.
+    public int getMemoryMissCount() {
+        return mMemoryCache.missCount();
+    }
+
+    // Returns the number of posters evicted from the memory cache.
+    public int getMemoryEvictionCount() {
+        return mMemoryCache.evictionCount();
+    }
+
+    // Returns the size of the posters in the memory cache, in bytes.
+    public int getMemorySize() {
+        return mMemoryCache.size();
+    }
+
+    // Returns the quota of the memory cache, in bytes.
+    public int getMemoryMaxSize() {
+        return mMemoryCache.maxSize();
+    }
+
+    // Returns the number of posters served from the disk cache without the network.
+    public int getDiskHitCount() {
+        return mDiskCache.getHitCount();
+    }
+
+    // Returns the number of posters downloaded from the network.
+    public int getDiskMissCount() {
+        return mDiskCache.getNetworkCount();
+    }
+
+    // Returns the size of the posters in the disk cache, in bytes.
+    public long getDiskSize() {
+        try {
+            return mDiskCache.getSize();
+        } catch (IOException e) {
+            // Size is unknown till the cache is initialized.
+            return 0;
+        }
+    }
+
+    // Returns the quota of the disk cache, in bytes.
+    public long getDiskMaxSize() {
+        return mDiskCache.getMaxSize();
+    }
+
+    /**
+     * Returns a summary of the cache statistics, for logging.
+     *
+     * @return the statistics summary
+     */
+    public String getStatsSummary() {
+        return "Poster memory cache: " + getMemoryHitCount() + " hits, "
+                + getMemoryMissCount() + " misses, " + getMemoryEvictionCount() + " evictions, "
+                + getMemorySize() / 1024 + "/" + getMemoryMaxSize() / 1024 + " KB; "
+                + "disk cache: " + getDiskHitCount() + " hits, " + getDiskMissCount() + " misses, "
+                + getDiskSize() / 1024 + "/" + getDiskMaxSize() / 1024 + " KB";
+    }
+}
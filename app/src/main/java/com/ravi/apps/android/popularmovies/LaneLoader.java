@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.content.Context;
+import android.content.Loader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loader that performs its load in the background on a lane of the loader executor. It
+ * follows the AsyncTaskLoader contract: a single load runs at a time, forcing a load
+ * cancels the current one, and the result of a cancelled load is passed to onCanceled()
+ * instead of being delivered, followed by the cancellation being delivered to the loader
+ * manager, which waits for it before starting a restarted loader. The framework AsyncTaskLoader always runs on the shared
+ * AsyncTask pool, which is why this class exists.
+ *
+ * Each load has a cancellation token, which loadInBackground() passes on to its network
+ * calls. The token is cancelled when the load is cancelled, aborting the calls in flight,
+ * and when the load exceeds its deadline, in which case the load fails with a timeout.
+ */
+public abstract class LaneLoader<D> extends Loader<D> {
+
+    // Lane the loads run on.
+    private final int mLane;
+
+    // Time a load may take before it's aborted, in seconds.
+    private final long mDeadline;
+
+    // Handler posting the load results to the main thread.
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Current load, queued or running.
+    private LoadTask mTask;
+
+    // Cancelled load still running, which the next load waits for.
+    private LoadTask mCancellingTask;
+
+    // Cancellation token of the load running in the background.
+    private volatile CancellationToken mRunningToken;
+
+    public LaneLoader(Context context, int lane) {
+        super(context);
+        mLane = lane;
+        mDeadline = context.getResources().getInteger(R.integer.loader_deadline_s);
+    }
+
+    /**
+     * Performs the load on a lane thread and returns the result.
+     *
+     * @return result of the load
+     */
+    public abstract D loadInBackground();
+
+    /**
+     * Called on the main thread with the result of a load that was cancelled.
+     *
+     * @param data result of the cancelled load, may be null
+     */
+    public void onCanceled(D data) {
+    }
+
+    /**
+     * Returns the cancellation token of the load running in the background. Must only be
+     * called from loadInBackground().
+     *
+     * @return the cancellation token
+     */
+    protected CancellationToken getCancellationToken() {
+        return mRunningToken;
+    }
+
+    /**
+     * Returns the exception to report for a failed load, replacing the failure of a load
+     * aborted on reaching its deadline with a timeout. Must only be called from
+     * loadInBackground().
+     *
+     * @param exception the exception the load failed with
+     * @return          the exception to report
+     */
+    protected Exception getLoadException(Exception exception) {
+        if(mRunningToken.isDeadlineExceeded()) {
+            return new InterruptedIOException(getContext().getString(R.string.err_deadline_exceeded));
+        }
+        return exception;
+    }
+
+    @Override
+    protected void onForceLoad() {
+        super.onForceLoad();
+
+        // Cancel the current load and start a new one.
+        cancelLoad();
+        mTask = new LoadTask();
+        executePendingTask();
+    }
+
+    /**
+     * Cancels the current load. A queued load is dropped and a running one completes, then
+     * the result of either, null for the dropped one, is passed to onCanceled() and the
+     * cancellation is delivered.
+     *
+     * @return true if there was a load to cancel, in which case the cancellation follows
+     */
+    @Override
+    public boolean cancelLoad() {
+        if(mTask == null) {
+            return false;
+        }
+
+        if(mTask.mFuture == null) {
+            // Load is waiting for the cancelled one to complete, just drop it.
+            mTask = null;
+            return false;
+        }
+
+        // Cancel the load, aborting its network calls if it's already running. The load can't
+        // start once cancelled, so a load that didn't start is completed here, without a
+        // result, and a running one completes on its lane.
+        final LoadTask task = mTask;
+        boolean isRunning = task.cancel();
+        task.mToken.cancel();
+        task.mFuture.cancel(false);
+        mCancellingTask = task;
+        mTask = null;
+
+        if(!isRunning) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    dispatchOnLoadComplete(task, null);
+                }
+            });
+        }
+
+        return true;
+    }
+
+    /*
+     * Queues the pending load on the lane, unless a cancelled load is still running.
+     */
+    private void executePendingTask() {
+        if(mCancellingTask == null && mTask != null) {
+            mTask.mFuture = LoaderExecutor.getInstance(getContext()).submit(mLane, mTask);
+        }
+    }
+
+    /*
+     * Handles a load that completed on the main thread.
+     */
+    private void dispatchOnLoadComplete(LoadTask task, D data) {
+        if(task == mCancellingTask) {
+            // Cancelled load completed. Let the loader manager know, as it holds a restarted
+            // loader back till then, and start the pending load.
+            mCancellingTask = null;
+            onCanceled(data);
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                deliverCancellation();
+            }
+            executePendingTask();
+        } else if(task != mTask || task.isCancelled()) {
+            onCanceled(data);
+        } else if(isAbandoned()) {
+            mTask = null;
+            onCanceled(data);
+        } else {
+            // Clear the load before delivering, so that a new load can be forced from
+            // deliverResult().
+            mTask = null;
+            deliverResult(data);
+        }
+    }
+
+    /**
+     * Runs a single load and posts its result to the main thread.
+     */
+    private final class LoadTask implements Runnable {
+
+        // Future of the load once queued on the lane.
+        private Future<?> mFuture;
+
+        // Cancellation token passed on to the network calls of the load.
+        private final CancellationToken mToken = new CancellationToken();
+
+        // Whether the load was cancelled, and whether it has started running. Both are
+        // guarded by the task, so that the load starts and gets cancelled in a single order
+        // the main thread and the lane thread agree on.
+        private boolean mIsCancelled;
+        private boolean mIsRunning;
+
+        /*
+         * Cancels the load. Returns true if it has already started running.
+         */
+        synchronized boolean cancel() {
+            mIsCancelled = true;
+            return mIsRunning;
+        }
+
+        /*
+         * Starts running the load. Returns false if it was cancelled first.
+         */
+        synchronized boolean start() {
+            if(mIsCancelled) {
+                return false;
+            }
+            mIsRunning = true;
+            return true;
+        }
+
+        // Returns true if the load was cancelled.
+        synchronized boolean isCancelled() {
+            return mIsCancelled;
+        }
+
+        @Override
+        public void run() {
+            // A load cancelled before it started was already completed by cancelLoad().
+            if(!start()) {
+                return;
+            }
+
+            // Abort the load if it's still running once the deadline passes.
+            mRunningToken = mToken;
+            mToken.setDeadline(mDeadline, TimeUnit.SECONDS);
+            final D data;
+            try {
+                data = loadInBackground();
+            } finally {
+                mToken.clearDeadline();
+            }
+
+            // Hand the result over to the main thread.
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    dispatchOnLoadComplete(LoadTask.this, data);
+                }
+            });
+        }
+    }
+}
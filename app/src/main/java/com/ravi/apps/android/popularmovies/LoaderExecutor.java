@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.content.Context;
+import android.os.Process;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the background work of the application on prioritized lanes, instead of the shared
+ * AsyncTask pool, so that slow work on one lane never holds up the others.
+ *
+ * Loads of the data visible to the user run on the UI lane, speculative work such as
+ * prefetching on the prefetch lane and housekeeping on the maintenance lane. Downloads
+ * shared by several waiting loads run on the fetch lane, which no task waits on from
+ * within, so that the loads waiting for them can't take up the threads they need. Poster
+ * decodes run on the decode lane, so that a fling through the favorites grid doesn't queue
+ * the loads behind them. Each lane has its own threads, at a thread priority matching the
+ * lane, and its own concurrency limit. The time tasks spend queued before they start is
+ * tracked per lane.
+ */
+public class LoaderExecutor {
+
+    // Lanes of the loads, in order of priority, then the lanes of the shared downloads and of
+    // the poster decodes.
+    public static final int LANE_UI = 0;
+    public static final int LANE_PREFETCH = 1;
+    public static final int LANE_MAINTENANCE = 2;
+    public static final int LANE_FETCH = 3;
+    public static final int LANE_DECODE = 4;
+
+    // Lane names, used to name the threads.
+    private static final String[] LANE_NAMES =
+            {"ui", "prefetch", "maintenance", "fetch", "decode"};
+
+    // Thread priority of each lane.
+    private static final int[] LANE_THREAD_PRIORITIES = {
+            Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE,
+            Process.THREAD_PRIORITY_BACKGROUND,
+            Process.THREAD_PRIORITY_LOWEST,
+            Process.THREAD_PRIORITY_BACKGROUND,
+            Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE
+    };
+
+    // Time for which idle lane threads are kept alive, in seconds.
+    private static final long KEEP_ALIVE_TIME = 30;
+
+    // Single instance shared across the application.
+    private static LoaderExecutor sInstance;
+
+    // Executor of each lane.
+    private final ThreadPoolExecutor[] mExecutors;
+
+    // Number of tasks started on each lane.
+    private final AtomicLong[] mStartedCounts;
+
+    // Total and longest time spent queued by the tasks of each lane, in nanoseconds.
+    private final AtomicLong[] mTotalQueueWaits;
+    private final AtomicLong[] mMaxQueueWaits;
+
+    /**
+     * Returns the single instance of the loader executor, creating it if required.
+     *
+     * @param context the context
+     * @return        the shared loader executor
+     */
+    public static synchronized LoaderExecutor getInstance(Context context) {
+        if(sInstance == null) {
+            sInstance = new LoaderExecutor(new int[] {
+                    context.getResources().getInteger(R.integer.loader_ui_lane_threads),
+                    context.getResources().getInteger(R.integer.loader_prefetch_lane_threads),
+                    context.getResources().getInteger(R.integer.loader_maintenance_lane_threads),
+                    context.getResources().getInteger(R.integer.loader_fetch_lane_threads),
+                    context.getResources().getInteger(R.integer.loader_decode_lane_threads)
+            });
+        }
+        return sInstance;
+    }
+
+    // Package private constructor, also used by the tests to get lanes of their own.
+    LoaderExecutor(int[] laneThreads) {
+        mExecutors = new ThreadPoolExecutor[LANE_NAMES.length];
+        mStartedCounts = new AtomicLong[LANE_NAMES.length];
+        mTotalQueueWaits = new AtomicLong[LANE_NAMES.length];
+        mMaxQueueWaits = new AtomicLong[LANE_NAMES.length];
+
+        for(int lane = 0; lane < LANE_NAMES.length; lane++) {
+            // Each lane runs at most its number of threads at a time and queues the rest.
+            mExecutors[lane] = new ThreadPoolExecutor(laneThreads[lane], laneThreads[lane],
+                    KEEP_ALIVE_TIME, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new LaneThreadFactory(lane));
+            mExecutors[lane].allowCoreThreadTimeOut(true);
+
+            mStartedCounts[lane] = new AtomicLong();
+            mTotalQueueWaits[lane] = new AtomicLong();
+            mMaxQueueWaits[lane] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Queues the task on the lane.
+     *
+     * @param lane the lane to run the task on
+     * @param task the task to run
+     * @return     future that can be used to cancel the task
+     */
+    public Future<?> submit(int lane, Runnable task) {
+        FutureTask<Void> future = new TimedTask(lane, task);
+        mExecutors[lane].execute(future);
+        return future;
+    }
+
+    /**
+     * Removes the cancelled tasks from the queue of the lane.
+     *
+     * @param lane the lane
+     */
+    public void purge(int lane) {
+        mExecutors[lane].purge();
+    }
+
+    // Returns the number of tasks waiting in the queue of the lane.
+    public int getQueuedCount(int lane) {
+        return mExecutors[lane].getQueue().size();
+    }
+
+    // Returns the number of tasks started on the lane.
+    public long getStartedCount(int lane) {
+        return mStartedCounts[lane].get();
+    }
+
+    // Returns the average time the tasks of the lane spent queued, in milliseconds.
+    public long getAverageQueueWaitMs(int lane) {
+        long started = mStartedCounts[lane].get();
+        if(started == 0) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(mTotalQueueWaits[lane].get() / started);
+    }
+
+    // Returns the longest time a task of the lane spent queued, in milliseconds.
+    public long getMaxQueueWaitMs(int lane) {
+        return TimeUnit.NANOSECONDS.toMillis(mMaxQueueWaits[lane].get());
+    }
+
+    /**
+     * Task that records the time it spent queued before running.
+     */
+    private final class TimedTask extends FutureTask<Void> {
+
+        // Lane the task was queued on.
+        private final int mLane;
+
+        // Time at which the task was queued.
+        private final long mQueuedTime = System.nanoTime();
+
+        TimedTask(int lane, Runnable task) {
+            super(task, null);
+            mLane = lane;
+        }
+
+        @Override
+        public void run() {
+            // Record the queue wait, unless the task was cancelled while queued.
+            if(!isCancelled()) {
+                long wait = System.nanoTime() - mQueuedTime;
+                mStartedCounts[mLane].incrementAndGet();
+                mTotalQueueWaits[mLane].addAndGet(wait);
+
+                long maxWait = mMaxQueueWaits[mLane].get();
+                while(wait > maxWait && !mMaxQueueWaits[mLane].compareAndSet(maxWait, wait)) {
+                    maxWait = mMaxQueueWaits[mLane].get();
+                }
+            }
+
+            super.run();
+        }
+    }
+
+    /**
+     * Creates the named threads of a lane, running at the lane thread priority.
+     */
+    private static final class LaneThreadFactory implements ThreadFactory {
+
+        // Lane of the threads.
+        private final int mLane;
+
+        // Number of threads created, used to name them.
+        private final AtomicInteger mThreadCount = new AtomicInteger();
+
+        LaneThreadFactory(int lane) {
+            mLane = lane;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(LANE_THREAD_PRIORITIES[mLane]);
+                    runnable.run();
+                }
+            }, "loader-" + LANE_NAMES[mLane] + "-" + mThreadCount.incrementAndGet());
+        }
+    }
+}
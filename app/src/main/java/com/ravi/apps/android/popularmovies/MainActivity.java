@@ -37,6 +37,9 @@ public class MainActivity extends AppCompatActivity implements
         // Set default values only the first time.
         PreferenceManager.setDefaultValues(this, R.xml.preferences, false);
 
+        // Move the favorite posters stored as blobs into files and clean up the poster files.
+        PosterStore.getInstance(this).scheduleMaintenance();
+
         // Check if the layout has two panes and set the flag accordingly.
         if(findViewById(R.id.movie_details_container) != null) {
             mIsTwoPaneMode = true;
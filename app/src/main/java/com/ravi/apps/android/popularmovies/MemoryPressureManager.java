@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.util.Log;
+
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Sheds the in-memory caches of the application when the system runs short of memory.
+ *
+ * Every cache registers with the manager as a trimmable, along with its own trim policy: the
+ * share of its quota it keeps at each of the TRIM_MEMORY_* levels it declares. Caches of what
+ * is on screen give way only once the process is in the background, while caches that merely
+ * save allocations give way first. The bytes released by each trim are logged, as keeping the
+ * process small in the background makes it less likely to be killed.
+ */
+public class MemoryPressureManager implements ComponentCallbacks2 {
+
+    // Tag for logging messages.
+    private static final String LOG_TAG = MemoryPressureManager.class.getSimpleName();
+
+    // Single instance shared across the application.
+    private static MemoryPressureManager sInstance;
+
+    // Caches registered with the manager.
+    private final List<Trimmable> mTrimmables = new CopyOnWriteArrayList<>();
+
+    // Total number of bytes released by the trims.
+    private long mReleasedBytes;
+
+    /**
+     * Cache which releases memory on request.
+     */
+    public interface Trimmable {
+
+        /**
+         * Trims the cache as its trim policy declares for the level.
+         *
+         * @param level the TRIM_MEMORY_* level
+         * @return      number of bytes released, or zero if the cache isn't sized in bytes
+         */
+        long trimMemory(int level);
+    }
+
+    /**
+     * Share of its quota a cache keeps at each TRIM_MEMORY_* level. A level not declared
+     * uses the share of the closest lower level declared, and the whole quota is kept below
+     * the lowest one.
+     */
+    public static final class TrimPolicy {
+
+        // Share of the quota kept, in percent, by level.
+        private final TreeMap<Integer, Integer> mRetainedPercents = new TreeMap<>();
+
+        /**
+         * Declares the share of its quota the cache keeps from the level on.
+         *
+         * @param level   the TRIM_MEMORY_* level
+         * @param percent share of the quota kept, in percent
+         * @return        this policy
+         */
+        public TrimPolicy retain(int level, int percent) {
+            mRetainedPercents.put(level, percent);
+            return this;
+        }
+
+        /**
+         * Returns the share of its quota the cache keeps at the level.
+         *
+         * @param level the TRIM_MEMORY_* level
+         * @return      share of the quota kept, in percent
+         */
+        public int getRetainedPercent(int level) {
+            Integer declaredLevel = mRetainedPercents.floorKey(level);
+            return declaredLevel != null ? mRetainedPercents.get(declaredLevel) : 100;
+        }
+
+        /**
+         * Returns the size the cache keeps at the level.
+         *
+         * @param level   the TRIM_MEMORY_* level
+         * @param maxSize quota of the cache
+         * @return        size to trim the cache to
+         */
+        public int getRetainedSize(int level, int maxSize) {
+            return (int) ((long) maxSize * getRetainedPercent(level) / 100);
+        }
+    }
+
+    /**
+     * Returns the single instance of the memory pressure manager, creating it and registering
+     * it for the memory callbacks of the application if required.
+     *
+     * @param context the context
+     * @return        the shared memory pressure manager
+     */
+    public static synchronized MemoryPressureManager getInstance(Context context) {
+        if(sInstance == null) {
+            sInstance = new MemoryPressureManager();
+            context.getApplicationContext().registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    // Package private constructor, also used by the tests to get a manager of their own.
+    MemoryPressureManager() {
+    }
+
+    /**
+     * Registers a cache to be trimmed when the system runs short of memory.
+     *
+     * @param trimmable the cache
+     */
+    public void register(Trimmable trimmable) {
+        mTrimmables.add(trimmable);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        // Trim every registered cache as its policy declares.
+        long releasedBytes = 0;
+        for(Trimmable trimmable : mTrimmables) {
+            releasedBytes += trimmable.trimMemory(level);
+        }
+
+        synchronized(this) {
+            mReleasedBytes += releasedBytes;
+        }
+        Log.d(LOG_TAG, "Trim memory level " + level + ": released " + releasedBytes / 1024
+                + " KB, " + getReleasedBytes() / 1024 + " KB in total");
+    }
+
+    @Override
+    public void onLowMemory() {
+        // Older platforms only report that memory is exhausted.
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    // Returns the total number of bytes released by the trims.
+    public synchronized long getReleasedBytes() {
+        return mReleasedBytes;
+    }
+}
@@ -20,11 +20,13 @@ import android.os.Parcel;
 import android.os.Parcelable;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
  * Stores the detailed information about a specific movie and implements the parcelable
- * interface to enable it to be passed to other activities through intents.
+ * interface to enable it to be passed to other activities through intents. Movie objects
+ * are immutable, so a single instance can be shared by all the loaders fetching it.
  */
 public class Movie implements Parcelable {
 
@@ -32,13 +34,12 @@ public class Movie implements Parcelable {
     private final int mId;
     private final String mOriginalTitle;
     private final String mPosterPath;
-    private byte[] mPosterByteArray;
     private final String mReleaseDate;
     private final int mRuntime;
     private final double mVoteAverage;
     private final String mOverview;
-    private final List<Trailer> mTrailerList = new ArrayList<>();
-    private final List<Review> mReviewList = new ArrayList<>();
+    private final List<Trailer> mTrailerList;
+    private final List<Review> mReviewList;
 
     /**
      * Stores the movie trailer information and implements the parcelable interface.
@@ -181,29 +182,20 @@ public class Movie implements Parcelable {
     }
 
     // Public constructor.
-    public Movie(int id, String title, String url, byte[] poster, String date, int runtime, double rating,
+    public Movie(int id, String title, String url, String date, int runtime, double rating,
                  String synopsis, List<Trailer> trailerList, List<Review> reviewList) {
         // Store the movie details data into respective member variables.
         mId = id;
         mOriginalTitle = title;
         mPosterPath = url;
-        if(poster != null) {
-            mPosterByteArray = poster;
-        } else {
-            mPosterByteArray = new byte[0];
-        }
         mReleaseDate = date;
         mRuntime = runtime;
         mVoteAverage = rating;
         mOverview = synopsis;
 
-        if(trailerList != null) {
-            mTrailerList.addAll(trailerList);
-        }
-
-        if(reviewList != null) {
-            mReviewList.addAll(reviewList);
-        }
+        // Store unmodifiable copies of the lists.
+        mTrailerList = copyOf(trailerList);
+        mReviewList = copyOf(reviewList);
     }
 
     // Private constructor used to re-create the object from the parcel.
@@ -213,14 +205,22 @@ public class Movie implements Parcelable {
         mId = source.readInt();
         mOriginalTitle = source.readString();
         mPosterPath = source.readString();
-        mPosterByteArray = new byte[source.readInt()];
-        source.readByteArray(mPosterByteArray);
         mReleaseDate = source.readString();
         mRuntime = source.readInt();
         mVoteAverage = source.readDouble();
         mOverview = source.readString();
-        source.readTypedList(mTrailerList, Trailer.CREATOR);
-        source.readTypedList(mReviewList, Review.CREATOR);
+        mTrailerList = Collections.unmodifiableList(source.createTypedArrayList(Trailer.CREATOR));
+        mReviewList = Collections.unmodifiableList(source.createTypedArrayList(Review.CREATOR));
+    }
+
+    /*
+     * Returns an unmodifiable copy of the list, or an empty list if it's null.
+     */
+    private static <T> List<T> copyOf(List<T> list) {
+        if(list == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(new ArrayList<>(list));
     }
 
     // Reference used to recreate the object from the parcel.
@@ -248,8 +248,6 @@ public class Movie implements Parcelable {
         dest.writeInt(mId);
         dest.writeString(mOriginalTitle);
         dest.writeString(mPosterPath);
-        dest.writeInt(mPosterByteArray.length);
-        dest.writeByteArray(mPosterByteArray);
         dest.writeString(mReleaseDate);
         dest.writeInt(mRuntime);
         dest.writeDouble(mVoteAverage);
@@ -273,16 +271,6 @@ public class Movie implements Parcelable {
         return mPosterPath;
     }
 
-    // Returns the movie poster stored as a byte array.
-    public byte[] getPosterByteArray() {
-        return mPosterByteArray;
-    }
-
-    // Sets the movie poster as a byte array.
-    public void setPosterByteArray(byte[] poster) {
-        mPosterByteArray = poster;
-    }
-
     // Returns the movie release date.
     public String getReleaseDate() {
         return mReleaseDate;
@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Decodes the favorite poster files off the main thread, downsampled to the size of the view
+ * displaying them, and keeps the decoded posters in a memory cache keyed by file name. The
+ * thumbnail and the full size poster of a movie are therefore cached apart, the grid never
+ * holding the full size ones.
+ *
+ * Each image view is tagged with the movie it's bound to, so that a decode completing after
+ * the view was recycled for another movie is dropped instead of showing a stale poster, and
+ * a decode whose view was rebound before it started is skipped altogether. The decodes run
+ * on their own lane of the loader executor, so that a fling through the grid never queues
+ * the loads of the visible data behind them.
+ *
+ * Decodes draw their bitmaps from a bitmap pool through inBitmap. A decoded poster returns
+ * to the pool once it's out of the cache and no view displays it anymore, which happens as
+ * the grid recycles the views scrolled out of sight.
+ *
+ * The cache is trimmed under memory pressure. The posters still displayed stay in memory
+ * with their views, the others return to the bitmap pool, which is trimmed on its own.
+ */
+public class PosterDecoder implements MemoryPressureManager.Trimmable {
+
+    // Share of the cache kept under memory pressure.
+    private static final MemoryPressureManager.TrimPolicy TRIM_POLICY =
+            new MemoryPressureManager.TrimPolicy()
+                    .retain(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW, 50)
+                    .retain(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL, 25)
+                    .retain(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN, 50)
+                    .retain(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND, 0);
+
+    // Single instance shared across the application.
+    private static PosterDecoder sInstance;
+
+    // Poster store holding the poster files.
+    private final PosterStore mPosterStore;
+
+    // Executor running the decodes.
+    private final LoaderExecutor mExecutor;
+
+    // Decoded posters, keyed by file name.
+    private final LruCache<String, DecodedPoster> mCache;
+
+    // Pool of the bitmaps the decodes draw from.
+    private final BitmapPool mBitmapPool;
+
+    // Handler posting the decoded posters to the main thread.
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Returns the single instance of the poster decoder, creating it if required.
+     *
+     * @param context the context
+     * @return        the shared poster decoder
+     */
+    public static synchronized PosterDecoder getInstance(Context context) {
+        if(sInstance == null) {
+            Context appContext = context.getApplicationContext();
+
+            // Size the cache from the memory available to the application.
+            int memoryClass = ((ActivityManager) appContext.getSystemService(
+                    Context.ACTIVITY_SERVICE)).getMemoryClass();
+            int cacheSize = ImagePipeline.getMemoryCacheSize(memoryClass,
+                    appContext.getResources().getInteger(R.integer.favorite_poster_cache_percent));
+            int poolSize = ImagePipeline.getMemoryCacheSize(memoryClass,
+                    appContext.getResources().getInteger(R.integer.bitmap_pool_percent));
+
+            sInstance = new PosterDecoder(PosterStore.getInstance(appContext),
+                    LoaderExecutor.getInstance(appContext), cacheSize, new BitmapPool(poolSize));
+
+            // Trim the cache and the pool under memory pressure. The pool is trimmed last so
+            // that it also sheds the bitmaps of the posters removed from the cache.
+            MemoryPressureManager memoryPressureManager =
+                    MemoryPressureManager.getInstance(appContext);
+            memoryPressureManager.register(sInstance);
+            memoryPressureManager.register(sInstance.mBitmapPool);
+        }
+        return sInstance;
+    }
+
+    // Package private constructor, also used by the tests.
+    PosterDecoder(PosterStore posterStore, LoaderExecutor executor, int cacheSize,
+                  BitmapPool bitmapPool) {
+        mPosterStore = posterStore;
+        mExecutor = executor;
+        mBitmapPool = bitmapPool;
+        mCache = new LruCache<String, DecodedPoster>(cacheSize) {
+            @Override
+            protected int sizeOf(String posterFile, DecodedPoster poster) {
+                return poster.mBitmap.getRowBytes() * poster.mBitmap.getHeight();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String posterFile,
+                                        DecodedPoster oldPoster, DecodedPoster newPoster) {
+                oldPoster.uncache();
+            }
+        };
+    }
+
+    /**
+     * Decoded poster along with whether it was decoded at full size. Tracks the views
+     * displaying it, so that its bitmap returns to the pool once it's out of the cache and
+     * no longer displayed.
+     */
+    private final class DecodedPoster {
+
+        // Decoded poster bitmap.
+        private final Bitmap mBitmap;
+
+        // Whether the poster was decoded without downsampling.
+        private final boolean mIsFullSize;
+
+        // Number of views displaying the poster.
+        private int mDisplayCount;
+
+        // Whether the poster is in the cache.
+        private boolean mIsCached = true;
+
+        // Whether the bitmap was returned to the pool.
+        private boolean mIsPooled;
+
+        DecodedPoster(Bitmap bitmap, boolean isFullSize) {
+            mBitmap = bitmap;
+            mIsFullSize = isFullSize;
+        }
+
+        // Returns true if the poster covers a view of the given size as well as it can.
+        boolean covers(int width, int height) {
+            return mIsFullSize || (mBitmap.getWidth() >= width && mBitmap.getHeight() >= height);
+        }
+
+        // Marks the poster displayed by one more view. Returns false if it's been pooled.
+        synchronized boolean display() {
+            if(mIsPooled) {
+                return false;
+            }
+            mDisplayCount++;
+            return true;
+        }
+
+        // Marks the poster displayed by one view less.
+        synchronized void undisplay() {
+            mDisplayCount--;
+            poolIfUnused();
+        }
+
+        // Marks the poster removed from the cache.
+        synchronized void uncache() {
+            mIsCached = false;
+            poolIfUnused();
+        }
+
+        // Returns the bitmap to the pool once it's neither cached nor displayed.
+        private void poolIfUnused() {
+            if(!mIsCached && mDisplayCount == 0 && !mIsPooled) {
+                mIsPooled = true;
+                mBitmapPool.put(mBitmap);
+            }
+        }
+    }
+
+    /**
+     * Displays the poster of the movie in the image view, decoding it in the background if
+     * it isn't cached at a large enough size. Must be called on the main thread.
+     *
+     * @param movieId    the movie id
+     * @param posterFile name of the poster file in the poster store, may be null
+     * @param imageView  the image view
+     * @param width      width of the image view, in pixels
+     * @param height     height of the image view, in pixels
+     */
+    public void load(final long movieId, final String posterFile, ImageView imageView,
+                     final int width, final int height) {
+        // Release the poster of the movie the view was previously bound to.
+        release(imageView);
+
+        // Tag the view with the movie it's now bound to.
+        imageView.setTag(R.id.poster_movie_id, movieId);
+
+        if(posterFile == null) {
+            return;
+        }
+
+        // Display the cached poster right away if it's large enough for the view.
+        DecodedPoster poster = mCache.get(posterFile);
+        if(poster != null && poster.covers(width, height) && display(imageView, poster)) {
+            return;
+        }
+
+        // Decode the poster in the background.
+        final WeakReference<ImageView> viewReference = new WeakReference<>(imageView);
+        mExecutor.submit(LoaderExecutor.LANE_DECODE, new Runnable() {
+            @Override
+            public void run() {
+                // Skip the decode if the view was rebound in the meantime.
+                if(!isBoundTo(viewReference.get(), movieId)) {
+                    return;
+                }
+
+                final DecodedPoster poster = decode(posterFile, width, height);
+                if(poster == null) {
+                    return;
+                }
+                mCache.put(posterFile, poster);
+
+                // Display the poster, unless the view was rebound in the meantime.
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        ImageView imageView = viewReference.get();
+                        if(isBoundTo(imageView, movieId)
+                                && imageView.getTag(R.id.poster_bitmap) == null) {
+                            display(imageView, poster);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Clears the poster displayed by the image view, letting its bitmap return to the pool.
+     * Called as the grid recycles the view. Must be called on the main thread.
+     *
+     * @param imageView the image view
+     */
+    public void release(ImageView imageView) {
+        imageView.setTag(R.id.poster_movie_id, null);
+
+        DecodedPoster poster = (DecodedPoster) imageView.getTag(R.id.poster_bitmap);
+        if(poster != null) {
+            imageView.setTag(R.id.poster_bitmap, null);
+            imageView.setImageDrawable(null);
+            poster.undisplay();
+        }
+    }
+
+    @Override
+    public long trimMemory(int level) {
+        int size = mCache.size();
+        mCache.trimToSize(TRIM_POLICY.getRetainedSize(level, mCache.maxSize()));
+        return size - mCache.size();
+    }
+
+    // Returns the pool the decodes draw their bitmaps from.
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /*
+     * Displays the poster in the image view. Returns false if the poster was pooled.
+     */
+    private static boolean display(ImageView imageView, DecodedPoster poster) {
+        if(!poster.display()) {
+            return false;
+        }
+        imageView.setTag(R.id.poster_bitmap, poster);
+        imageView.setImageBitmap(poster.mBitmap);
+        return true;
+    }
+
+    /*
+     * Returns true if the image view is still bound to the movie.
+     */
+    private static boolean isBoundTo(ImageView imageView, long movieId) {
+        return imageView != null
+                && Long.valueOf(movieId).equals(imageView.getTag(R.id.poster_movie_id));
+    }
+
+    /*
+     * Decodes the poster file, downsampled to the size of the view. Returns null if the file
+     * couldn't be decoded.
+     */
+    private DecodedPoster decode(String posterFile, int width, int height) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        Bitmap bitmap = decodeSampled(mPosterStore.getFile(posterFile).getPath(), width, height,
+                mBitmapPool, options);
+        if(bitmap == null) {
+            return null;
+        }
+        return new DecodedPoster(bitmap, options.inSampleSize == 1);
+    }
+
+    /**
+     * Decodes the image file at the largest sample size still covering the view, reusing a
+     * pooled bitmap of the decoded size if there's one.
+     *
+     * @param path       path of the image file
+     * @param width      width of the view, in pixels
+     * @param height     height of the view, in pixels
+     * @param bitmapPool pool to draw the bitmap from, may be null
+     * @param options    options of the decode, holding the sample size used once decoded
+     * @return           the decoded bitmap, or null if the file couldn't be decoded
+     */
+    static Bitmap decodeSampled(String path, int width, int height, BitmapPool bitmapPool,
+                                BitmapFactory.Options options) {
+        // Read the dimensions of the image without decoding it.
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if(options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inSampleSize = calculateSampleSize(options.outWidth, options.outHeight, width, height);
+
+        // Decoded bitmaps are kept mutable so that they can be reused.
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        // Reuse a pooled bitmap of the decoded size. Before KitKat, only images decoded
+        // without downsampling can reuse a bitmap.
+        if(bitmapPool != null
+                && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT || options.inSampleSize == 1)) {
+            // Read the downsampled dimensions the image decodes to.
+            BitmapFactory.decodeFile(path, options);
+            options.inBitmap = bitmapPool.get(options.outWidth, options.outHeight,
+                    options.inPreferredConfig);
+        }
+        options.inJustDecodeBounds = false;
+
+        try {
+            return BitmapFactory.decodeFile(path, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap can't be reused for this image, decode into a new one.
+            if(options.inBitmap == null) {
+                throw e;
+            }
+            bitmapPool.put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(path, options);
+        }
+    }
+
+    /**
+     * Returns the largest power of two by which the image can be downsampled while still
+     * covering the view in both dimensions.
+     *
+     * @param imageWidth  width of the image, in pixels
+     * @param imageHeight height of the image, in pixels
+     * @param width       width of the view, in pixels, or zero if unknown
+     * @param height      height of the view, in pixels, or zero if unknown
+     * @return            the sample size
+     */
+    static int calculateSampleSize(int imageWidth, int imageHeight, int width, int height) {
+        // Don't downsample if the view size is unknown.
+        if(width <= 0 && height <= 0) {
+            return 1;
+        }
+
+        int sampleSize = 1;
+        while(imageWidth / (sampleSize * 2) >= width && imageHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import com.squareup.picasso.Cache;
+
+/**
+ * Memory cache of the posters decoded by Picasso, sized in bytes. Unlike the cache bundled
+ * with Picasso, it can be trimmed to any size, so that it only sheds part of the posters
+ * under moderate memory pressure.
+ */
+public class PosterMemoryCache extends LruCache<String, Bitmap> implements Cache {
+
+    // Separator between the uri and the options in the keys built by Picasso.
+    private static final char KEY_SEPARATOR = '\n';
+
+    public PosterMemoryCache(int maxSize) {
+        super(maxSize);
+    }
+
+    @Override
+    protected int sizeOf(String key, Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    @Override
+    public void set(String key, Bitmap bitmap) {
+        put(key, bitmap);
+    }
+
+    @Override
+    public void clear() {
+        evictAll();
+    }
+
+    @Override
+    public void clearKeyUri(String uri) {
+        // Remove the posters of the uri, whatever the options they were decoded with.
+        int uriLength = uri.length();
+        for(String key : snapshot().keySet()) {
+            if(key.startsWith(uri) && key.length() > uriLength
+                    && key.charAt(uriLength) == KEY_SEPARATOR) {
+                remove(key);
+            }
+        }
+    }
+}
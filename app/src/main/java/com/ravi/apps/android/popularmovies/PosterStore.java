@@ -0,0 +1,573 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.ravi.apps.android.popularmovies.data.MovieContract.MovieEntry;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Stores the posters of the favorite movies as compressed image files in the application
+ * storage. The movie table only keeps the name of the file and its checksum, so that the
+ * favorites queries don't drag the images through the cursor window.
+ *
+ * Files are written to a temporary file first and renamed once complete, so a poster file
+ * is either absent or whole. The maintenance pass moves the posters stored as blobs by
+ * earlier versions into files, and deletes the files no favorite movie refers to anymore.
+ *
+ * Each poster is stored along with a thumbnail sized for the favorites grid, so that the grid
+ * neither reads nor decodes the full size posters, which only the details screen displays.
+ * The maintenance pass creates the thumbnails missing from the posters stored by earlier
+ * versions.
+ */
+public class PosterStore {
+
+    // Tag for logging messages.
+    private static final String LOG_TAG = PosterStore.class.getSimpleName();
+
+    // Name of the directory holding the poster files.
+    private static final String POSTER_DIRECTORY = "posters";
+
+    // Extension of the poster files and of the files being written.
+    private static final String POSTER_EXTENSION = ".jpg";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    // Suffix of the thumbnail file names.
+    private static final String THUMBNAIL_SUFFIX = "_thumb";
+
+    // Quality of the compressed posters.
+    public static final int POSTER_QUALITY = 90;
+
+    // Age below which unreferenced files are kept, as their movie may be being stored.
+    private static final long ORPHAN_GRACE_PERIOD_MS = TimeUnit.HOURS.toMillis(1);
+
+    // Size of the buffer used to checksum the files.
+    private static final int BUFFER_SIZE = 8192;
+
+    // Selection of a movie by its movie id.
+    private static final String MOVIE_ID_SELECTION = MovieEntry.COLUMN_MOVIE_ID + " = ? ";
+
+    // Single instance shared across the application.
+    private static PosterStore sInstance;
+
+    // Application context.
+    private final Context mContext;
+
+    // Directory holding the poster files.
+    private final File mDirectory;
+
+    // Width of the poster thumbnails, in pixels.
+    private final int mThumbnailWidth;
+
+    // Whether the maintenance pass was scheduled in this process.
+    private final AtomicBoolean mIsMaintenanceScheduled = new AtomicBoolean();
+
+    /**
+     * Name and checksum of a stored poster file.
+     */
+    public static final class PosterFile {
+
+        // Name of the file in the poster directory.
+        private final String mName;
+
+        // CRC32 checksum of the file contents.
+        private final long mChecksum;
+
+        public PosterFile(String name, long checksum) {
+            mName = name;
+            mChecksum = checksum;
+        }
+
+        // Returns the name of the file in the poster directory.
+        public String getName() {
+            return mName;
+        }
+
+        // Returns the CRC32 checksum of the file contents.
+        public long getChecksum() {
+            return mChecksum;
+        }
+    }
+
+    /**
+     * Returns the single instance of the poster store, creating it if required.
+     *
+     * @param context the context
+     * @return        the shared poster store
+     */
+    public static synchronized PosterStore getInstance(Context context) {
+        if(sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new PosterStore(appContext,
+                    new File(appContext.getFilesDir(), POSTER_DIRECTORY));
+        }
+        return sInstance;
+    }
+
+    // Package private constructor, also used by the tests to get a directory of their own.
+    PosterStore(Context context, File directory) {
+        mContext = context;
+        mDirectory = directory;
+        mThumbnailWidth =
+                context.getResources().getDimensionPixelSize(R.dimen.favorite_thumbnail_width);
+    }
+
+    /**
+     * Stores the compressed poster image of the movie, replacing its previous poster.
+     *
+     * @param movieId the movie id
+     * @param image   the compressed poster image
+     * @return        name and checksum of the poster file
+     * @throws IOException if the file couldn't be written
+     */
+    public PosterFile save(long movieId, byte[] image) throws IOException {
+        return write(movieId + POSTER_EXTENSION, image);
+    }
+
+    /**
+     * Compresses and stores the poster bitmap of the movie, replacing its previous poster.
+     *
+     * @param movieId the movie id
+     * @param bitmap  the poster bitmap
+     * @return        name and checksum of the poster file
+     * @throws IOException if the file couldn't be written
+     */
+    public PosterFile saveBitmap(long movieId, Bitmap bitmap) throws IOException {
+        return save(movieId, compress(bitmap));
+    }
+
+    /**
+     * Scales down, compresses and stores the poster bitmap of the movie as its thumbnail,
+     * replacing its previous thumbnail. A poster no wider than the thumbnail already is its
+     * own thumbnail, so no second file is written and its poster file is returned instead.
+     *
+     * @param movieId    the movie id
+     * @param bitmap     the poster bitmap, left untouched
+     * @param posterFile the poster file the bitmap was stored in
+     * @return           name and checksum of the thumbnail file, or the poster file
+     * @throws IOException if the file couldn't be written
+     */
+    public PosterFile saveThumbnail(long movieId, Bitmap bitmap, PosterFile posterFile)
+            throws IOException {
+        if(bitmap.getWidth() <= mThumbnailWidth) {
+            return posterFile;
+        }
+        return writeThumbnail(movieId, bitmap);
+    }
+
+    /*
+     * Scales down the bitmap to the thumbnail width if it's wider, compresses it and stores
+     * it as the thumbnail of the movie. Returns the name and checksum of the thumbnail file.
+     */
+    private PosterFile writeThumbnail(long movieId, Bitmap bitmap) throws IOException {
+        Bitmap thumbnail = createThumbnail(bitmap, mThumbnailWidth);
+        try {
+            return write(movieId + THUMBNAIL_SUFFIX + POSTER_EXTENSION, compress(thumbnail));
+        } finally {
+            if(thumbnail != bitmap) {
+                thumbnail.recycle();
+            }
+        }
+    }
+
+    /**
+     * Returns the bitmap scaled down to the given width, keeping its aspect ratio. Bitmaps
+     * no wider than the width are returned as they are.
+     *
+     * @param bitmap the bitmap
+     * @param width  the width of the thumbnail, in pixels
+     * @return       the thumbnail, or the bitmap itself
+     */
+    static Bitmap createThumbnail(Bitmap bitmap, int width) {
+        if(bitmap.getWidth() <= width) {
+            return bitmap;
+        }
+
+        int height = Math.max(1, Math.round((float) bitmap.getHeight() * width / bitmap.getWidth()));
+        return Bitmap.createScaledBitmap(bitmap, width, height, true);
+    }
+
+    /*
+     * Writes the image into the named file of the poster directory, replacing the previous
+     * one. Returns the name and checksum of the file.
+     */
+    private PosterFile write(String name, byte[] image) throws IOException {
+        if(!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Error: Failed to create " + mDirectory);
+        }
+
+        // Write the image to a temporary file first.
+        File tempFile = new File(mDirectory, name + TEMP_EXTENSION);
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            out.write(image);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        // Move the complete file in place of the previous poster.
+        if(!tempFile.renameTo(new File(mDirectory, name))) {
+            tempFile.delete();
+            throw new IOException("Error: Failed to rename " + tempFile);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(image);
+        return new PosterFile(name, crc.getValue());
+    }
+
+    /*
+     * Compresses the bitmap the way the posters are stored.
+     */
+    private static byte[] compress(Bitmap bitmap) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, POSTER_QUALITY, stream);
+        return stream.toByteArray();
+    }
+
+    /**
+     * Returns the poster file with the given name.
+     *
+     * @param name name of the file in the poster directory
+     * @return     the poster file
+     */
+    public File getFile(String name) {
+        return new File(mDirectory, name);
+    }
+
+    /**
+     * Returns true if the poster file exists and its contents match the checksum.
+     *
+     * @param name     name of the file in the poster directory
+     * @param checksum the expected CRC32 checksum
+     * @return         true if the file is intact
+     */
+    public boolean verify(String name, long checksum) {
+        File file = getFile(name);
+        if(!file.isFile()) {
+            return false;
+        }
+
+        try {
+            CRC32 crc = new CRC32();
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while((count = in.read(buffer)) != -1) {
+                    crc.update(buffer, 0, count);
+                }
+            } finally {
+                in.close();
+            }
+            return crc.getValue() == checksum;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error: verify(): " + e.getLocalizedMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Schedules the maintenance pass on the maintenance lane, once per process. It migrates
+     * the posters stored as blobs into files, deletes the orphaned files, then creates the
+     * missing thumbnails.
+     */
+    public void scheduleMaintenance() {
+        if(!mIsMaintenanceScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        LoaderExecutor.getInstance(mContext).submit(LoaderExecutor.LANE_MAINTENANCE,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        int migratedCount = migrateBlobs();
+                        int deletedCount = collectGarbage();
+                        int thumbnailCount = createThumbnails();
+                        Log.d(LOG_TAG, "Posters migrated: " + migratedCount
+                                + ", orphaned files deleted: " + deletedCount
+                                + ", thumbnails created: " + thumbnailCount);
+                    }
+                });
+    }
+
+    /**
+     * Moves the posters stored as blobs in the movie table into files, one movie at a time
+     * so that a single blob is held in memory at once.
+     *
+     * @return number of posters migrated
+     */
+    int migrateBlobs() {
+        ContentResolver contentResolver = mContext.getContentResolver();
+
+        // Find the movies still having a poster blob.
+        List<Long> movieIds = new ArrayList<>();
+        Cursor cursor = contentResolver.query(MovieEntry.CONTENT_URI,
+                new String[] {MovieEntry.COLUMN_MOVIE_ID},
+                MovieEntry.COLUMN_POSTER_IMAGE + " IS NOT NULL", null, null);
+        if(cursor == null) {
+            return 0;
+        }
+        try {
+            while(cursor.moveToNext()) {
+                movieIds.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        int migratedCount = 0;
+        for(long movieId : movieIds) {
+            String[] selectionArgs = {Long.toString(movieId)};
+
+            // Read the poster blob of the movie.
+            byte[] blob = null;
+            cursor = contentResolver.query(MovieEntry.CONTENT_URI,
+                    new String[] {MovieEntry.COLUMN_POSTER_IMAGE},
+                    MOVIE_ID_SELECTION, selectionArgs, null);
+            if(cursor != null) {
+                try {
+                    if(cursor.moveToFirst()) {
+                        blob = cursor.getBlob(0);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+
+            ContentValues values = new ContentValues();
+            values.putNull(MovieEntry.COLUMN_POSTER_IMAGE);
+
+            // Recompress the lossless blob into the poster file and its thumbnail.
+            Bitmap bitmap = blob != null ? BitmapFactory.decodeByteArray(blob, 0, blob.length) : null;
+            if(bitmap != null) {
+                try {
+                    PosterFile posterFile = saveBitmap(movieId, bitmap);
+                    values.put(MovieEntry.COLUMN_POSTER_FILE, posterFile.getName());
+                    values.put(MovieEntry.COLUMN_POSTER_CHECKSUM, posterFile.getChecksum());
+                    PosterFile thumbnailFile = saveThumbnail(movieId, bitmap, posterFile);
+                    values.put(MovieEntry.COLUMN_THUMBNAIL_FILE, thumbnailFile.getName());
+                    values.put(MovieEntry.COLUMN_THUMBNAIL_CHECKSUM, thumbnailFile.getChecksum());
+                } catch (IOException e) {
+                    // Keep the blob, the migration is retried on the next launch.
+                    Log.e(LOG_TAG, "Error: migrateBlobs(): " + e.getLocalizedMessage());
+                    continue;
+                } finally {
+                    bitmap.recycle();
+                }
+            }
+
+            // Drop the blob, even if it couldn't be decoded as there's nothing to keep.
+            contentResolver.update(MovieEntry.CONTENT_URI, values, MOVIE_ID_SELECTION, selectionArgs);
+            migratedCount++;
+        }
+
+        return migratedCount;
+    }
+
+    /**
+     * Creates the thumbnails missing from the poster files, stored before version 6 or
+     * dropped as damaged. Posters are decoded one at a time, downsampled close to the
+     * thumbnail size.
+     *
+     * @return number of thumbnails created
+     */
+    int createThumbnails() {
+        ContentResolver contentResolver = mContext.getContentResolver();
+
+        // Find the movies having a poster file but no thumbnail.
+        List<Long> movieIds = new ArrayList<>();
+        List<PosterFile> posterFiles = new ArrayList<>();
+        Cursor cursor = contentResolver.query(MovieEntry.CONTENT_URI,
+                new String[] {MovieEntry.COLUMN_MOVIE_ID, MovieEntry.COLUMN_POSTER_FILE,
+                        MovieEntry.COLUMN_POSTER_CHECKSUM},
+                MovieEntry.COLUMN_POSTER_FILE + " IS NOT NULL AND "
+                        + MovieEntry.COLUMN_THUMBNAIL_FILE + " IS NULL", null, null);
+        if(cursor == null) {
+            return 0;
+        }
+        try {
+            while(cursor.moveToNext()) {
+                movieIds.add(cursor.getLong(0));
+                posterFiles.add(new PosterFile(cursor.getString(1), cursor.getLong(2)));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        int createdCount = 0;
+        for(int i = 0; i < movieIds.size(); i++) {
+            long movieId = movieIds.get(i);
+
+            // Decode the poster no larger than needed for the thumbnail.
+            PosterFile posterFile = posterFiles.get(i);
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            Bitmap bitmap = PosterDecoder.decodeSampled(getFile(posterFile.getName()).getPath(),
+                    mThumbnailWidth, 0, null, options);
+            if(bitmap == null) {
+                continue;
+            }
+
+            try {
+                // A downsampled poster was wider than the thumbnail, so store it even if
+                // the downsampling alone brought it down to the thumbnail width.
+                PosterFile thumbnailFile = options.inSampleSize > 1
+                        ? writeThumbnail(movieId, bitmap)
+                        : saveThumbnail(movieId, bitmap, posterFile);
+                ContentValues values = new ContentValues();
+                values.put(MovieEntry.COLUMN_THUMBNAIL_FILE, thumbnailFile.getName());
+                values.put(MovieEntry.COLUMN_THUMBNAIL_CHECKSUM, thumbnailFile.getChecksum());
+                contentResolver.update(MovieEntry.CONTENT_URI, values, MOVIE_ID_SELECTION,
+                        new String[] {Long.toString(movieId)});
+                createdCount++;
+            } catch (IOException e) {
+                // The thumbnail is created again on the next launch.
+                Log.e(LOG_TAG, "Error: createThumbnails(): " + e.getLocalizedMessage());
+            } finally {
+                bitmap.recycle();
+            }
+        }
+
+        return createdCount;
+    }
+
+    /**
+     * Deletes the poster and thumbnail files no favorite movie refers to. Files found damaged
+     * are dropped from their movie as well, which then shows no poster rather than a broken
+     * one till the thumbnail is created again.
+     *
+     * @return number of files deleted
+     */
+    int collectGarbage() {
+        ContentResolver contentResolver = mContext.getContentResolver();
+
+        // Collect the names of the intact poster and thumbnail files referred to by the
+        // movie table.
+        Set<String> referencedNames = new HashSet<>();
+        List<Long> damagedPosterMovieIds = new ArrayList<>();
+        List<Long> damagedThumbnailMovieIds = new ArrayList<>();
+        Cursor cursor = contentResolver.query(MovieEntry.CONTENT_URI,
+                new String[] {MovieEntry.COLUMN_MOVIE_ID,
+                        MovieEntry.COLUMN_POSTER_FILE, MovieEntry.COLUMN_POSTER_CHECKSUM,
+                        MovieEntry.COLUMN_THUMBNAIL_FILE, MovieEntry.COLUMN_THUMBNAIL_CHECKSUM},
+                MovieEntry.COLUMN_POSTER_FILE + " IS NOT NULL OR "
+                        + MovieEntry.COLUMN_THUMBNAIL_FILE + " IS NOT NULL", null, null);
+        if(cursor == null) {
+            return 0;
+        }
+        try {
+            while(cursor.moveToNext()) {
+                if(!collectFile(cursor, 1, 2, referencedNames)) {
+                    damagedPosterMovieIds.add(cursor.getLong(0));
+                }
+                if(!collectFile(cursor, 3, 4, referencedNames)) {
+                    damagedThumbnailMovieIds.add(cursor.getLong(0));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // Drop the damaged files from their movies.
+        dropDamagedFiles(damagedPosterMovieIds, MovieEntry.COLUMN_POSTER_FILE,
+                MovieEntry.COLUMN_POSTER_CHECKSUM);
+        dropDamagedFiles(damagedThumbnailMovieIds, MovieEntry.COLUMN_THUMBNAIL_FILE,
+                MovieEntry.COLUMN_THUMBNAIL_CHECKSUM);
+
+        return deleteOrphans(referencedNames, System.currentTimeMillis() - ORPHAN_GRACE_PERIOD_MS);
+    }
+
+    /*
+     * Adds the file named in the cursor column to the referenced names if it's intact.
+     * Returns false if the file is damaged, true if it's intact or there's none.
+     */
+    private boolean collectFile(Cursor cursor, int nameColumn, int checksumColumn,
+                                Set<String> referencedNames) {
+        String name = cursor.getString(nameColumn);
+        if(name == null) {
+            return true;
+        }
+        if(!verify(name, cursor.getLong(checksumColumn))) {
+            return false;
+        }
+        referencedNames.add(name);
+        return true;
+    }
+
+    /*
+     * Clears the file and checksum columns of the movies whose file is damaged.
+     */
+    private void dropDamagedFiles(List<Long> movieIds, String fileColumn, String checksumColumn) {
+        ContentResolver contentResolver = mContext.getContentResolver();
+        for(long movieId : movieIds) {
+            Log.e(LOG_TAG, "Error: collectGarbage(): Damaged " + fileColumn + " of movie " + movieId);
+
+            ContentValues values = new ContentValues();
+            values.putNull(fileColumn);
+            values.putNull(checksumColumn);
+            contentResolver.update(MovieEntry.CONTENT_URI, values, MOVIE_ID_SELECTION,
+                    new String[] {Long.toString(movieId)});
+        }
+    }
+
+    /**
+     * Deletes the files of the poster directory not in the referenced names and last
+     * modified before the given time.
+     *
+     * @param referencedNames names of the files in use
+     * @param modifiedBefore  time before which unreferenced files are deleted
+     * @return                number of files deleted
+     */
+    int deleteOrphans(Set<String> referencedNames, long modifiedBefore) {
+        File[] files = mDirectory.listFiles();
+        if(files == null) {
+            return 0;
+        }
+
+        int deletedCount = 0;
+        for(File file : files) {
+            if(!referencedNames.contains(file.getName())
+                    && file.lastModified() < modifiedBefore
+                    && file.delete()) {
+                deletedCount++;
+            }
+        }
+        return deletedCount;
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.content.Context;
+import android.net.Uri;
+
+import com.squareup.okhttp.Cache;
+import com.squareup.okhttp.CacheControl;
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Application scoped HTTP client shared by all the loaders fetching data from the TMDB server.
+ * Keeps connections alive in a pool so that consecutive requests skip the TCP and TLS
+ * handshakes, and negotiates HTTP/2 with the server where available.
+ *
+ * Responses are stored in a size bounded disk cache keyed by the request url without the
+ * api key, which is only added to the request once it goes out on the network. The cache
+ * honors Cache-Control and revalidates stale responses with conditional requests, so a 304
+ * from the server reuses the cached body. Least recently used responses are evicted once
+ * the cache exceeds its quota.
+ *
+ * Every request the cache can't serve is paced by the request scheduler before it takes a
+ * connection, which keeps the client within the server's rate limit without holding sockets
+ * while it waits. Waiting requests give up as soon as they're cancelled. Rate
+ * limited responses are retried once the server allows it, instead of failing the load.
+ */
+public class TmdbClient {
+
+    // Connect and read timeouts, in seconds.
+    private static final long CONNECT_TIMEOUT = 10;
+    private static final long READ_TIMEOUT = 20;
+
+    // Maximum number of idle connections kept alive and how long they are kept alive.
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_DURATION_MS = TimeUnit.MINUTES.toMillis(5);
+
+    // Name of the directory holding the response cache.
+    private static final String CACHE_DIRECTORY = "tmdb-http";
+
+    // Cache control serving a response only if it's fresh in the cache.
+    private static final CacheControl ONLY_IF_CACHED =
+            new CacheControl.Builder().onlyIfCached().build();
+
+    // Api key query parameter.
+    private static final String TMDB_API_KEY_PARAM = "api_key";
+
+    // Message of the exception thrown for a cancelled request.
+    private static final String CANCELED_MESSAGE = "Canceled";
+
+    // Maximum number of times a rate limited request is retried.
+    private static final int MAX_RATE_LIMIT_RETRIES = 3;
+
+    // Single instance shared across the application.
+    private static TmdbClient sInstance;
+
+    // Application context.
+    private final Context mContext;
+
+    // Underlying HTTP client holding the connection pool and the response cache.
+    private final OkHttpClient mOkHttpClient;
+
+    // Api key added to every request sent to the server.
+    private final String mApiKey;
+
+    // Scheduler pacing the requests sent to the server.
+    private final TmdbRequestScheduler mScheduler;
+
+    // Responses served from the cache without contacting the server.
+    private final AtomicLong mCacheHitCount = new AtomicLong();
+
+    // Cached responses revalidated with a conditional request.
+    private final AtomicLong mCacheRevalidationCount = new AtomicLong();
+
+    // Responses downloaded in full from the server.
+    private final AtomicLong mCacheMissCount = new AtomicLong();
+
+    /**
+     * Returns the single instance of the TMDB client, creating it if required.
+     *
+     * @param context the context
+     * @return        the shared TMDB client
+     */
+    public static synchronized TmdbClient getInstance(Context context) {
+        if(sInstance == null) {
+            Context appContext = context.getApplicationContext();
+
+            // Create the response cache with the configured quota.
+            long cacheSize = appContext.getResources().getInteger(R.integer.tmdb_cache_size_kb) * 1024L;
+            Cache cache = new Cache(new File(appContext.getCacheDir(), CACHE_DIRECTORY), cacheSize);
+
+            sInstance = new TmdbClient(appContext,
+                    new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION_MS), cache);
+        }
+        return sInstance;
+    }
+
+    // Package private constructor, also used by the tests to get a client with its own pool
+    // and cache. The cache may be null to disable caching.
+    TmdbClient(Context context, ConnectionPool connectionPool, Cache cache) {
+        this(context, connectionPool, cache, new TmdbRequestScheduler(
+                context.getResources().getInteger(R.integer.tmdb_rate_limit_requests),
+                context.getResources().getInteger(R.integer.tmdb_rate_limit_period_s),
+                TimeUnit.SECONDS));
+    }
+
+    // Package private constructor used by the tests to get a client with its own scheduler.
+    TmdbClient(Context context, ConnectionPool connectionPool, Cache cache,
+               TmdbRequestScheduler scheduler) {
+        mContext = context;
+        mApiKey = context.getString(R.string.tmdb_api_key);
+        mScheduler = scheduler;
+
+        // Configure the HTTP client.
+        mOkHttpClient = new OkHttpClient();
+        mOkHttpClient.setConnectionPool(connectionPool);
+        mOkHttpClient.setCache(cache);
+        mOkHttpClient.setConnectTimeout(CONNECT_TIMEOUT, TimeUnit.SECONDS);
+        mOkHttpClient.setReadTimeout(READ_TIMEOUT, TimeUnit.SECONDS);
+        mOkHttpClient.setProtocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+
+        // Retry the rate limited requests, queueing them behind the scheduler, and pace the
+        // requests the cache can't serve before they take a connection, so that a throttled
+        // request holds no socket.
+        mOkHttpClient.interceptors().add(new RateLimitRetryInterceptor());
+        mOkHttpClient.interceptors().add(new RateLimitInterceptor());
+
+        // Add the api key to the requests going out on the network, after the cache.
+        mOkHttpClient.networkInterceptors().add(new ApiKeyInterceptor());
+    }
+
+    /**
+     * Performs a foreground GET request on the url and returns the successful response.
+     * The caller must close the response body, which returns the connection to the pool.
+     *
+     * @param url the url to fetch
+     * @return    the response from the server
+     * @throws IOException if the request failed or the server returned an error
+     */
+    public Response get(String url) throws IOException {
+        return get(url, TmdbRequestScheduler.PRIORITY_FOREGROUND);
+    }
+
+    /**
+     * Performs a GET request with the given priority on the url and returns the successful
+     * response. The caller must close the response body, which returns the connection to
+     * the pool.
+     *
+     * @param url      the url to fetch
+     * @param priority the request priority, one of the TmdbRequestScheduler priorities
+     * @return         the response from the server
+     * @throws IOException if the request failed or the server returned an error
+     */
+    public Response get(String url, int priority) throws IOException {
+        return get(url, priority, null);
+    }
+
+    /**
+     * Performs a cancellable GET request with the given priority on the url and returns the
+     * successful response. Cancelling the token aborts the call, closing its connection, so
+     * both the request and the reading of the response body fail with an IOException. The
+     * caller must close the response body, which returns the connection to the pool.
+     *
+     * @param url      the url to fetch
+     * @param priority the request priority, one of the TmdbRequestScheduler priorities
+     * @param token    the cancellation token of the request, may be null
+     * @return         the response from the server
+     * @throws IOException if the request failed, was cancelled or the server returned an error
+     */
+    public Response get(String url, int priority, CancellationToken token) throws IOException {
+        // Create the request, tagged with its priority and token for the scheduler.
+        Request request = new Request.Builder()
+                .url(url)
+                .get()
+                .tag(new RequestTag(priority, token))
+                .build();
+        final Call call = mOkHttpClient.newCall(request);
+        Runnable cancelListener = new Runnable() {
+            @Override
+            public void run() {
+                call.cancel();
+            }
+        };
+
+        // Abort the call once the token is cancelled.
+        if(token != null) {
+            if(token.isCancelled()) {
+                throw new InterruptedIOException(CANCELED_MESSAGE);
+            }
+
+            token.addOnCancelListener(cancelListener);
+        }
+
+        // Execute the request on the calling thread.
+        Response response;
+        try {
+            response = call.execute();
+        } catch (IOException e) {
+            // The request is over, drop its listener.
+            if(token != null) {
+                token.removeOnCancelListener(cancelListener);
+            }
+            throw e;
+        }
+
+        // Drop the listener once the response body is closed, so that the listeners of
+        // finished requests don't build up on a token.
+        if(token != null) {
+            response = removeListenerOnClose(response, token, cancelListener);
+        }
+
+        // Track where the response came from.
+        if(response.networkResponse() == null) {
+            mCacheHitCount.incrementAndGet();
+        } else if(response.networkResponse().code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            mCacheRevalidationCount.incrementAndGet();
+        } else {
+            mCacheMissCount.incrementAndGet();
+        }
+
+        // Check if the server returned an error.
+        if(!response.isSuccessful()) {
+            // Release the connection.
+            response.body().close();
+
+            // Throw an exception with a message understood by Utility.getErrorMessage().
+            if(response.code() == HttpURLConnection.HTTP_UNAUTHORIZED) {
+                throw new IOException(mContext.getString(R.string.err_authentication_failed));
+            } else if(response.code() == TmdbRequestScheduler.HTTP_TOO_MANY_REQUESTS) {
+                throw new IOException(mContext.getString(R.string.err_rate_limited));
+            } else {
+                throw new IOException(mContext.getString(R.string.err_http_status) + response.code());
+            }
+        }
+
+        return response;
+    }
+
+    /*
+     * Returns the response with a body which removes the cancel listener from the token once
+     * it's closed, whether directly or through its streams.
+     */
+    private static Response removeListenerOnClose(Response response,
+                                                  final CancellationToken token,
+                                                  final Runnable cancelListener)
+            throws IOException {
+        final ResponseBody body = response.body();
+        final BufferedSource source = Okio.buffer(new ForwardingSource(body.source()) {
+            @Override
+            public void close() throws IOException {
+                token.removeOnCancelListener(cancelListener);
+                super.close();
+            }
+        });
+
+        return response.newBuilder()
+                .body(new ResponseBody() {
+                    @Override
+                    public MediaType contentType() {
+                        return body.contentType();
+                    }
+
+                    @Override
+                    public long contentLength() throws IOException {
+                        return body.contentLength();
+                    }
+
+                    @Override
+                    public BufferedSource source() throws IOException {
+                        return source;
+                    }
+                })
+                .build();
+    }
+
+    // Returns the number of responses served from the cache without contacting the server.
+    public long getCacheHitCount() {
+        return mCacheHitCount.get();
+    }
+
+    // Returns the number of cached responses revalidated with a conditional request.
+    public long getCacheRevalidationCount() {
+        return mCacheRevalidationCount.get();
+    }
+
+    // Returns the number of responses downloaded in full from the server.
+    public long getCacheMissCount() {
+        return mCacheMissCount.get();
+    }
+
+    // Returns the request scheduler.
+    public TmdbRequestScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    // Returns the connection pool, used by the tests.
+    ConnectionPool getConnectionPool() {
+        return mOkHttpClient.getConnectionPool();
+    }
+
+    /**
+     * Network interceptor that adds the api key to the requests sent to the server. Being
+     * a network interceptor, it runs after the cache, so the key never becomes part of
+     * the cache key.
+     */
+    private final class ApiKeyInterceptor implements Interceptor {
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+
+            // Append the api key to the request url.
+            String url = Uri.parse(request.urlString()).buildUpon()
+                    .appendQueryParameter(TMDB_API_KEY_PARAM, mApiKey)
+                    .build()
+                    .toString();
+
+            return chain.proceed(request.newBuilder().url(url).build());
+        }
+    }
+
+    /**
+     * Priority and cancellation token of a request, carried by its tag to the scheduler.
+     */
+    private static final class RequestTag {
+
+        // Priority of the request.
+        private final int mPriority;
+
+        // Cancellation token of the request, may be null.
+        private final CancellationToken mToken;
+
+        RequestTag(int priority, CancellationToken token) {
+            mPriority = priority;
+            mToken = token;
+        }
+    }
+
+    /**
+     * Application interceptor that waits for the scheduler to allow each request out and
+     * feeds the rate limit headers of the network response back to it. Being an application
+     * interceptor, it waits before a connection is taken from the pool, so a throttled
+     * request doesn't hold a socket. A fresh response in the cache is served first, without
+     * waiting for the scheduler, as it never reaches the server.
+     */
+    private final class RateLimitInterceptor implements Interceptor {
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+
+            // Requests without a tag are treated as foreground ones that can't be cancelled.
+            int priority = TmdbRequestScheduler.PRIORITY_FOREGROUND;
+            CancellationToken token = null;
+            if(request.tag() instanceof RequestTag) {
+                priority = ((RequestTag) request.tag()).mPriority;
+                token = ((RequestTag) request.tag()).mToken;
+            }
+
+            // Serve the response from the cache if it's fresh there. Otherwise the cache
+            // answers with a 504 without going out on the network.
+            if(mOkHttpClient.getCache() != null) {
+                Response cachedResponse = chain.proceed(request.newBuilder()
+                        .cacheControl(ONLY_IF_CACHED)
+                        .build());
+                if(cachedResponse.code() != HttpURLConnection.HTTP_GATEWAY_TIMEOUT) {
+                    return cachedResponse;
+                }
+                cachedResponse.body().close();
+            }
+
+            // Wait for the scheduler, giving up once the request is cancelled.
+            mScheduler.acquire(priority, token);
+            Response response = chain.proceed(request);
+
+            // Only the responses from the server count against the rate limit.
+            if(response.networkResponse() != null) {
+                mScheduler.onResponse(response.networkResponse());
+            }
+
+            return response;
+        }
+    }
+
+    /**
+     * Application interceptor that retries the rate limited requests. The scheduler holds
+     * the retry back till the server allows it.
+     */
+    private static final class RateLimitRetryInterceptor implements Interceptor {
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            Response response = chain.proceed(request);
+
+            for(int retry = 0; retry < MAX_RATE_LIMIT_RETRIES
+                    && response.code() == TmdbRequestScheduler.HTTP_TOO_MANY_REQUESTS; retry++) {
+                // Release the connection before retrying.
+                response.body().close();
+                response = chain.proceed(request);
+            }
+
+            return response;
+        }
+    }
+}
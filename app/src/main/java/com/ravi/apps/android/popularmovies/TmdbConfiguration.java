@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.squareup.okhttp.Response;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Holds the image configuration of the TMDB server, used to build the poster urls.
+ *
+ * The configuration is fetched from the configuration endpoint in the background and kept
+ * in shared preferences for a few days, as the server rarely changes it. Till it's first
+ * fetched, the well known defaults are used. Poster urls are built at bind time for the
+ * smallest poster size covering the view the poster is displayed in.
+ */
+public class TmdbConfiguration {
+
+    // Tag for logging messages.
+    private static final String LOG_TAG = TmdbConfiguration.class.getSimpleName();
+
+    // URL of the configuration endpoint.
+    private static final String TMDB_CONFIGURATION_URL = "http://api.themoviedb.org/3/configuration";
+
+    // Name of the shared preferences holding the configuration and their keys.
+    private static final String PREFERENCES_NAME = "tmdb_configuration";
+    private static final String PREF_IMAGE_BASE_URL = "image_base_url";
+    private static final String PREF_POSTER_SIZES = "poster_sizes";
+    private static final String PREF_FETCH_TIME = "fetch_time";
+
+    // Time for which the configuration is used before it's fetched again.
+    private static final long CONFIGURATION_TTL_MS = TimeUnit.DAYS.toMillis(3);
+
+    // Minimum time between two attempts to fetch the configuration.
+    private static final long RETRY_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+    // Configuration used till it's fetched from the server.
+    private static final String DEFAULT_IMAGE_BASE_URL = "http://image.tmdb.org/t/p/";
+    private static final String DEFAULT_POSTER_SIZES = "w92,w154,w185,w342,w500,w780,original";
+
+    // Separator of the poster sizes stored in the shared preferences.
+    private static final String POSTER_SIZE_SEPARATOR = ",";
+
+    // Poster size for the original image.
+    private static final String ORIGINAL_POSTER_SIZE = "original";
+
+    // Aspect ratio of the posters, width over height.
+    private static final float POSTER_ASPECT_RATIO = 2f / 3f;
+
+    // Single instance shared across the application.
+    private static TmdbConfiguration sInstance;
+
+    // Application context.
+    private final Context mContext;
+
+    // Shared preferences holding the configuration.
+    private final SharedPreferences mPreferences;
+
+    // Current image configuration.
+    private volatile Images mImages;
+
+    // Time at which the configuration was fetched.
+    private volatile long mFetchTime;
+
+    // Time of the last attempt to fetch the configuration.
+    private volatile long mLastAttemptTime;
+
+    // Whether the configuration is being fetched.
+    private final AtomicBoolean mIsFetching = new AtomicBoolean();
+
+    /**
+     * Image configuration of the TMDB server.
+     */
+    public static final class Images {
+
+        // Base url of the images.
+        private final String mBaseUrl;
+
+        // Available poster sizes, such as w185 or original.
+        private final List<String> mPosterSizes;
+
+        public Images(String baseUrl, List<String> posterSizes) {
+            mBaseUrl = baseUrl;
+            mPosterSizes = Collections.unmodifiableList(posterSizes);
+        }
+
+        // Returns the base url of the images.
+        public String getBaseUrl() {
+            return mBaseUrl;
+        }
+
+        // Returns the available poster sizes.
+        public List<String> getPosterSizes() {
+            return mPosterSizes;
+        }
+    }
+
+    /**
+     * Returns the single instance of the TMDB configuration, creating it if required.
+     *
+     * @param context the context
+     * @return        the shared TMDB configuration
+     */
+    public static synchronized TmdbConfiguration getInstance(Context context) {
+        if(sInstance == null) {
+            sInstance = new TmdbConfiguration(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    // Private constructor, loads the stored configuration.
+    private TmdbConfiguration(Context context) {
+        mContext = context;
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+
+        String baseUrl = mPreferences.getString(PREF_IMAGE_BASE_URL, DEFAULT_IMAGE_BASE_URL);
+        String posterSizes = mPreferences.getString(PREF_POSTER_SIZES, DEFAULT_POSTER_SIZES);
+        mImages = new Images(baseUrl,
+                Arrays.asList(TextUtils.split(posterSizes, POSTER_SIZE_SEPARATOR)));
+        mFetchTime = mPreferences.getLong(PREF_FETCH_TIME, 0);
+    }
+
+    /**
+     * Returns the url of the smallest poster covering a view of the given size, or null if
+     * there's no poster. Fetches the configuration in the background if it's stale.
+     *
+     * @param posterPath the poster path of the movie
+     * @param width      width of the view, in pixels
+     * @param height     height of the view, in pixels
+     * @return           the poster url, or null
+     */
+    public String getPosterUrl(String posterPath, int width, int height) {
+        if(posterPath == null) {
+            return null;
+        }
+
+        fetchIfStale();
+
+        // The poster has to cover the view both horizontally and vertically.
+        int requiredWidth = Math.max(width, Math.round(height * POSTER_ASPECT_RATIO));
+
+        Images images = mImages;
+        return images.getBaseUrl() + selectPosterSize(images.getPosterSizes(), requiredWidth)
+                + posterPath;
+    }
+
+    /**
+     * Returns the smallest of the poster sizes at least as wide as the required width. Falls
+     * back to the original size, or else the widest size, if none is wide enough.
+     *
+     * @param posterSizes   the available poster sizes
+     * @param requiredWidth the required width, in pixels
+     * @return              the poster size
+     */
+    static String selectPosterSize(List<String> posterSizes, int requiredWidth) {
+        String selectedSize = null;
+        int selectedWidth = Integer.MAX_VALUE;
+        String widestSize = null;
+        int widestWidth = 0;
+
+        for(String posterSize : posterSizes) {
+            int width = getPosterWidth(posterSize);
+            if(width <= 0) {
+                continue;
+            }
+
+            if(width >= requiredWidth && width < selectedWidth) {
+                selectedSize = posterSize;
+                selectedWidth = width;
+            }
+            if(width > widestWidth) {
+                widestSize = posterSize;
+                widestWidth = width;
+            }
+        }
+
+        if(selectedSize != null) {
+            return selectedSize;
+        } else if(posterSizes.contains(ORIGINAL_POSTER_SIZE) || widestSize == null) {
+            return ORIGINAL_POSTER_SIZE;
+        }
+        return widestSize;
+    }
+
+    /*
+     * Returns the width of a poster size such as w185, or zero if it isn't a width.
+     */
+    private static int getPosterWidth(String posterSize) {
+        if(posterSize.length() < 2 || posterSize.charAt(0) != 'w') {
+            return 0;
+        }
+
+        try {
+            return Integer.parseInt(posterSize.substring(1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /*
+     * Fetches the configuration on the maintenance lane if it's stale, unless it's already
+     * being fetched or the last attempt failed recently.
+     */
+    private void fetchIfStale() {
+        long now = System.currentTimeMillis();
+        if(now - mFetchTime < CONFIGURATION_TTL_MS || now - mLastAttemptTime < RETRY_INTERVAL_MS) {
+            return;
+        }
+
+        if(!mIsFetching.compareAndSet(false, true)) {
+            return;
+        }
+        mLastAttemptTime = now;
+
+        LoaderExecutor.getInstance(mContext).submit(LoaderExecutor.LANE_MAINTENANCE,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            fetch();
+                        } finally {
+                            mIsFetching.set(false);
+                        }
+                    }
+                });
+    }
+
+    /*
+     * Fetches the configuration from the server and stores it.
+     */
+    private void fetch() {
+        try {
+            Response response = TmdbClient.getInstance(mContext).get(TMDB_CONFIGURATION_URL,
+                    TmdbRequestScheduler.PRIORITY_BACKGROUND);
+
+            Images images;
+            try {
+                images = TmdbJsonParser.parseConfiguration(response.body().charStream());
+            } finally {
+                // Close the response body, which releases the connection back to the pool.
+                response.body().close();
+            }
+
+            // Store the configuration for the next launches.
+            long fetchTime = System.currentTimeMillis();
+            mPreferences.edit()
+                    .putString(PREF_IMAGE_BASE_URL, images.getBaseUrl())
+                    .putString(PREF_POSTER_SIZES,
+                            TextUtils.join(POSTER_SIZE_SEPARATOR, images.getPosterSizes()))
+                    .putLong(PREF_FETCH_TIME, fetchTime)
+                    .apply();
+
+            mImages = images;
+            mFetchTime = fetchTime;
+        } catch (IOException | JSONException e) {
+            // Keep using the current configuration, it's fetched again later.
+            Log.e(LOG_TAG, "Error: fetch(): " + e.getLocalizedMessage());
+        }
+    }
+}
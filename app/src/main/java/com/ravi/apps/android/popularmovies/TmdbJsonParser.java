@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import android.content.Context;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming parser for the TMDB responses. Reads the JSON directly from the response
+ * stream, skips every field the app doesn't use and builds the movie data objects on
+ * the fly, so the complete payload is never held in memory.
+ */
+public class TmdbJsonParser {
+
+    // JSON fields in the discover and details responses.
+    private static final String JSON_ID = "id";
+    private static final String JSON_ORIGINAL_TITLE = "original_title";
+    private static final String JSON_POSTER_PATH = "poster_path";
+    private static final String JSON_RELEASE_DATE = "release_date";
+    private static final String JSON_RUNTIME = "runtime";
+    private static final String JSON_VOTE_AVERAGE = "vote_average";
+    private static final String JSON_OVERVIEW = "overview";
+    private static final String JSON_VIDEOS = "videos";
+    private static final String JSON_REVIEWS = "reviews";
+    private static final String JSON_RESULTS = "results";
+    private static final String JSON_KEY = "key";
+    private static final String JSON_NAME = "name";
+    private static final String JSON_SITE = "site";
+    private static final String JSON_AUTHOR = "author";
+    private static final String JSON_CONTENT = "content";
+    private static final String JSON_TOTAL_PAGES = "total_pages";
+
+    // JSON fields in the configuration response.
+    private static final String JSON_IMAGES = "images";
+    private static final String JSON_BASE_URL = "base_url";
+    private static final String JSON_POSTER_SIZES = "poster_sizes";
+
+    // Base URL for YouTube trailer.
+    private static final String YOU_TUBE_BASE_URL = "https://www.youtube.com/watch?v=";
+
+    /**
+     * Parses a page of the discover movies response and stores the list of movie data and
+     * the total number of pages into the result. Throws a JSON exception if the response is
+     * malformed or contains no results.
+     *
+     * @param context the context
+     * @param in      reader over the response body
+     * @param result  the result to store the parsed data into
+     */
+    public static void parseMovieList(Context context, Reader in, DiscoverLoaderResult result)
+            throws IOException, JSONException {
+        JsonReader reader = new JsonReader(in);
+        List<Movie> movieList = new ArrayList<>();
+
+        try {
+            reader.beginObject();
+            while(reader.hasNext()) {
+                String name = reader.nextName();
+                if(name.equals(JSON_RESULTS)) {
+                    // Traverse each result.
+                    reader.beginArray();
+                    while(reader.hasNext()) {
+                        movieList.add(readDiscoverMovie(reader));
+                    }
+                    reader.endArray();
+                } else if(name.equals(JSON_TOTAL_PAGES)) {
+                    result.setTotalPages(reader.nextInt());
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            // Unexpected token in the response.
+            throw new JSONException(e.getMessage());
+        }
+
+        // Check if any results were found in the response.
+        if(movieList.isEmpty()) {
+            throw new JSONException(context.getString(R.string.err_zero_results));
+        }
+
+        result.setData(movieList);
+    }
+
+    /**
+     * Parses the movie details response, including trailers and reviews, and returns the
+     * movie data. Throws a JSON exception if the response is malformed.
+     *
+     * @param context the context
+     * @param in      reader over the response body
+     * @return        the movie data
+     */
+    public static Movie parseMovieDetails(Context context, Reader in)
+            throws IOException, JSONException {
+        JsonReader reader = new JsonReader(in);
+
+        // Movie data extracted from the response.
+        int id = 0;
+        String title = null;
+        String poster = null;
+        String date = null;
+        int runtime = 0;
+        double vote = 0;
+        String overview = null;
+        List<Movie.Trailer> trailerList = null;
+        List<Movie.Review> reviewList = null;
+
+        try {
+            reader.beginObject();
+            while(reader.hasNext()) {
+                String name = reader.nextName();
+                if(name.equals(JSON_ID)) {
+                    id = reader.nextInt();
+                } else if(name.equals(JSON_ORIGINAL_TITLE)) {
+                    title = nextStringOrNull(reader);
+                } else if(name.equals(JSON_POSTER_PATH)) {
+                    poster = nextStringOrNull(reader);
+                } else if(name.equals(JSON_RELEASE_DATE)) {
+                    date = nextStringOrNull(reader);
+                } else if(name.equals(JSON_RUNTIME)) {
+                    runtime = nextIntOrZero(reader);
+                } else if(name.equals(JSON_VOTE_AVERAGE)) {
+                    vote = reader.nextDouble();
+                } else if(name.equals(JSON_OVERVIEW)) {
+                    overview = nextStringOrNull(reader);
+                } else if(name.equals(JSON_VIDEOS)) {
+                    trailerList = readTrailers(context, reader);
+                } else if(name.equals(JSON_REVIEWS)) {
+                    reviewList = readReviews(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            // Unexpected token in the response.
+            throw new JSONException(e.getMessage());
+        }
+
+        // Create the movie data object.
+        return new Movie(id, title, poster, date, runtime, vote, overview, trailerList, reviewList);
+    }
+
+    /**
+     * Parses the configuration response and returns the image configuration. Throws a JSON
+     * exception if the response is malformed or has no image configuration.
+     *
+     * @param in reader over the response body
+     * @return   the image configuration
+     */
+    public static TmdbConfiguration.Images parseConfiguration(Reader in)
+            throws IOException, JSONException {
+        JsonReader reader = new JsonReader(in);
+        String baseUrl = null;
+        List<String> posterSizes = new ArrayList<>();
+
+        try {
+            reader.beginObject();
+            while(reader.hasNext()) {
+                if(!reader.nextName().equals(JSON_IMAGES)) {
+                    reader.skipValue();
+                    continue;
+                }
+
+                // Extract the base url and poster sizes from the images object.
+                reader.beginObject();
+                while(reader.hasNext()) {
+                    String name = reader.nextName();
+                    if(name.equals(JSON_BASE_URL)) {
+                        baseUrl = nextStringOrNull(reader);
+                    } else if(name.equals(JSON_POSTER_SIZES)) {
+                        reader.beginArray();
+                        while(reader.hasNext()) {
+                            posterSizes.add(reader.nextString());
+                        }
+                        reader.endArray();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            }
+            reader.endObject();
+        } catch (IllegalStateException e) {
+            // Unexpected token in the response.
+            throw new JSONException(e.getMessage());
+        }
+
+        // Check if the image configuration was found in the response.
+        if(baseUrl == null || posterSizes.isEmpty()) {
+            throw new JSONException(JSON_IMAGES);
+        }
+
+        return new TmdbConfiguration.Images(baseUrl, posterSizes);
+    }
+
+    /*
+     * Reads a movie object from the discover results array.
+     */
+    private static Movie readDiscoverMovie(JsonReader reader) throws IOException {
+        int id = 0;
+        String title = null;
+        String poster = null;
+        String date = null;
+        double vote = 0;
+        String overview = null;
+
+        reader.beginObject();
+        while(reader.hasNext()) {
+            String name = reader.nextName();
+            if(name.equals(JSON_ID)) {
+                id = reader.nextInt();
+            } else if(name.equals(JSON_ORIGINAL_TITLE)) {
+                title = nextStringOrNull(reader);
+            } else if(name.equals(JSON_POSTER_PATH)) {
+                poster = nextStringOrNull(reader);
+            } else if(name.equals(JSON_RELEASE_DATE)) {
+                date = nextStringOrNull(reader);
+            } else if(name.equals(JSON_VOTE_AVERAGE)) {
+                vote = reader.nextDouble();
+            } else if(name.equals(JSON_OVERVIEW)) {
+                overview = nextStringOrNull(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        // Keep the header data of the movie, so that the details can render it right away.
+        return new Movie(id, title, poster, date, 0, vote, overview, null, null);
+    }
+
+    /*
+     * Reads the YouTube trailers from the videos object. Returns null if there are none.
+     */
+    private static List<Movie.Trailer> readTrailers(Context context, JsonReader reader)
+            throws IOException {
+        List<Movie.Trailer> trailerList = null;
+        String youTubeSite = context.getString(R.string.trailer_site_youtube);
+
+        reader.beginObject();
+        while(reader.hasNext()) {
+            if(!reader.nextName().equals(JSON_RESULTS)) {
+                reader.skipValue();
+                continue;
+            }
+
+            // Extract each trailer from the array.
+            reader.beginArray();
+            while(reader.hasNext()) {
+                String trailerId = null;
+                String trailerKey = null;
+                String trailerName = null;
+                String trailerSite = null;
+
+                reader.beginObject();
+                while(reader.hasNext()) {
+                    String name = reader.nextName();
+                    if(name.equals(JSON_ID)) {
+                        trailerId = nextStringOrNull(reader);
+                    } else if(name.equals(JSON_KEY)) {
+                        trailerKey = nextStringOrNull(reader);
+                    } else if(name.equals(JSON_NAME)) {
+                        trailerName = nextStringOrNull(reader);
+                    } else if(name.equals(JSON_SITE)) {
+                        trailerSite = nextStringOrNull(reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+
+                // Keep the trailer only if it's hosted on YouTube.
+                if(youTubeSite.equals(trailerSite)) {
+                    if(trailerList == null) {
+                        trailerList = new ArrayList<>();
+                    }
+                    trailerList.add(new Movie.Trailer(trailerId, YOU_TUBE_BASE_URL + trailerKey,
+                            trailerName));
+                }
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+
+        return trailerList;
+    }
+
+    /*
+     * Reads the reviews from the reviews object. Returns null if there are none.
+     */
+    private static List<Movie.Review> readReviews(JsonReader reader) throws IOException {
+        List<Movie.Review> reviewList = null;
+
+        reader.beginObject();
+        while(reader.hasNext()) {
+            if(!reader.nextName().equals(JSON_RESULTS)) {
+                reader.skipValue();
+                continue;
+            }
+
+            // Extract each review from the array.
+            reader.beginArray();
+            while(reader.hasNext()) {
+                String reviewId = null;
+                String reviewAuthor = null;
+                String reviewContent = null;
+
+                reader.beginObject();
+                while(reader.hasNext()) {
+                    String name = reader.nextName();
+                    if(name.equals(JSON_ID)) {
+                        reviewId = nextStringOrNull(reader);
+                    } else if(name.equals(JSON_AUTHOR)) {
+                        reviewAuthor = nextStringOrNull(reader);
+                    } else if(name.equals(JSON_CONTENT)) {
+                        reviewContent = nextStringOrNull(reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+
+                if(reviewList == null) {
+                    reviewList = new ArrayList<>();
+                }
+                reviewList.add(new Movie.Review(reviewId, reviewAuthor, reviewContent));
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+
+        return reviewList;
+    }
+
+    /*
+     * Returns the next string value, or null if the value is a JSON null.
+     */
+    private static String nextStringOrNull(JsonReader reader) throws IOException {
+        if(reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    /*
+     * Returns the next int value, or zero if the value is a JSON null.
+     */
+    private static int nextIntOrZero(JsonReader reader) throws IOException {
+        if(reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return 0;
+        }
+        return reader.nextInt();
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2015 Ravi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ravi.apps.android.popularmovies;
+
+import com.squareup.okhttp.Response;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules the requests sent to the TMDB server so that they stay within its rate limit.
+ *
+ * Requests take a token from a token bucket before going out on the network and wait for
+ * one to be refilled when the bucket is empty, so bursts from pagination and prefetching
+ * are queued rather than rejected by the server. The bucket is also drained when the server
+ * reports the limit as reached, through a 429 with Retry-After or an exhausted
+ * X-RateLimit-Remaining, till the time the server asked for. Waiting foreground requests
+ * are always served before background ones.
+ */
+public class TmdbRequestScheduler {
+
+    // Request priorities.
+    public static final int PRIORITY_FOREGROUND = 0;
+    public static final int PRIORITY_BACKGROUND = 1;
+
+    // HTTP status code returned when the rate limit is exceeded.
+    public static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    // Rate limit response headers.
+    private static final String HEADER_RETRY_AFTER = "Retry-After";
+    private static final String HEADER_RATE_LIMIT_REMAINING = "X-RateLimit-Remaining";
+    private static final String HEADER_RATE_LIMIT_RESET = "X-RateLimit-Reset";
+
+    // Message of the exception thrown to a cancelled request.
+    private static final String CANCELED_MESSAGE = "Canceled";
+
+    // Wait used when a 429 comes without a usable Retry-After, in seconds.
+    private static final long DEFAULT_RETRY_AFTER = 1;
+
+    // Longest wait honored from the rate limit headers, in seconds.
+    private static final long MAX_RETRY_AFTER = 30;
+
+    // Maximum number of tokens in the bucket.
+    private final int mCapacity;
+
+    // Time taken to refill a single token, in nanoseconds.
+    private final long mRefillIntervalNanos;
+
+    // Tokens currently available.
+    private int mTokens;
+
+    // Time at which the tokens were last refilled.
+    private long mLastRefillTime;
+
+    // Time till which the server asked not to be sent any request.
+    private long mBlockedUntilTime;
+
+    // Number of foreground requests waiting for a token.
+    private int mWaitingForegroundCount;
+
+    // Number of rate limited responses received from the server.
+    private long mRateLimitedCount;
+
+    /**
+     * Creates a scheduler allowing the specified number of requests per period, in bursts
+     * of up to the same number of requests.
+     *
+     * @param requests number of requests allowed per period
+     * @param period   length of the period
+     * @param unit     unit of the period
+     */
+    public TmdbRequestScheduler(int requests, long period, TimeUnit unit) {
+        mCapacity = requests;
+        mRefillIntervalNanos = Math.max(1, unit.toNanos(period) / requests);
+        mTokens = requests;
+        mLastRefillTime = System.nanoTime();
+        mBlockedUntilTime = mLastRefillTime;
+    }
+
+    /**
+     * Blocks till the request is allowed to go out on the network and takes its token.
+     *
+     * @param priority priority of the request
+     * @throws InterruptedIOException if the calling thread was interrupted while waiting
+     */
+    public void acquire(int priority) throws InterruptedIOException {
+        acquire(priority, null);
+    }
+
+    /**
+     * Blocks till the request is allowed to go out on the network and takes its token, or
+     * till the request is cancelled, in which case no token is taken.
+     *
+     * @param priority priority of the request
+     * @param token    the cancellation token of the request, may be null
+     * @throws InterruptedIOException if the request was cancelled or the calling thread was
+     *                                interrupted while waiting
+     */
+    public synchronized void acquire(int priority, CancellationToken token)
+            throws InterruptedIOException {
+        boolean isForeground = priority == PRIORITY_FOREGROUND;
+        if(isForeground) {
+            mWaitingForegroundCount++;
+        }
+
+        // Wake up the waiting requests once this one is cancelled, so that it stops waiting.
+        Runnable cancelListener = new Runnable() {
+            @Override
+            public void run() {
+                synchronized(TmdbRequestScheduler.this) {
+                    TmdbRequestScheduler.this.notifyAll();
+                }
+            }
+        };
+        if(token != null) {
+            token.addOnCancelListener(cancelListener);
+        }
+
+        try {
+            while(true) {
+                // Give up waiting once cancelled, even in the middle of a back off.
+                if(token != null && token.isCancelled()) {
+                    throw new InterruptedIOException(CANCELED_MESSAGE);
+                }
+
+                long now = System.nanoTime();
+                refill(now);
+
+                // Determine how long to wait, or take a token if the request may proceed.
+                long waitNanos;
+                if(now - mBlockedUntilTime < 0) {
+                    // Server asked to back off.
+                    waitNanos = mBlockedUntilTime - now;
+                } else if(mTokens == 0) {
+                    // Wait for the next token to be refilled.
+                    waitNanos = mRefillIntervalNanos - (now - mLastRefillTime);
+                } else if(!isForeground && mWaitingForegroundCount > 0) {
+                    // Let the foreground requests go first.
+                    waitNanos = 0;
+                } else {
+                    mTokens--;
+                    return;
+                }
+
+                if(waitNanos > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+                } else {
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Preserve the interrupt and give up waiting.
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } finally {
+            if(token != null) {
+                token.removeOnCancelListener(cancelListener);
+            }
+
+            if(isForeground) {
+                mWaitingForegroundCount--;
+
+                // Wake up the background requests waiting for the foreground ones.
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Updates the scheduler from the rate limit headers of a network response.
+     *
+     * @param response the network response
+     */
+    public synchronized void onResponse(Response response) {
+        long waitSeconds = 0;
+
+        if(response.code() == HTTP_TOO_MANY_REQUESTS) {
+            // Rate limit exceeded, back off for as long as the server asked.
+            mRateLimitedCount++;
+            waitSeconds = getRetryAfter(response);
+        } else if("0".equals(response.header(HEADER_RATE_LIMIT_REMAINING))) {
+            // Rate limit reached, back off till the server resets it.
+            long resetTime = parseLong(response.header(HEADER_RATE_LIMIT_RESET), 0);
+            waitSeconds = resetTime - TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+            waitSeconds = Math.max(DEFAULT_RETRY_AFTER, Math.min(waitSeconds, MAX_RETRY_AFTER));
+        }
+
+        if(waitSeconds > 0) {
+            // Drain the bucket and block the requests till the wait is over.
+            long now = System.nanoTime();
+            long blockedUntilTime = now + TimeUnit.SECONDS.toNanos(waitSeconds);
+            if(blockedUntilTime - mBlockedUntilTime > 0) {
+                mBlockedUntilTime = blockedUntilTime;
+            }
+            mTokens = 0;
+            mLastRefillTime = mBlockedUntilTime;
+        }
+    }
+
+    /**
+     * Returns how long to wait before retrying a rate limited response, in seconds.
+     *
+     * @param response the rate limited response
+     * @return         the wait in seconds, at most the longest wait honored
+     */
+    public static long getRetryAfter(Response response) {
+        long retryAfter = parseLong(response.header(HEADER_RETRY_AFTER), DEFAULT_RETRY_AFTER);
+        return Math.max(0, Math.min(retryAfter, MAX_RETRY_AFTER));
+    }
+
+    // Returns the number of rate limited responses received from the server.
+    public synchronized long getRateLimitedCount() {
+        return mRateLimitedCount;
+    }
+
+    /*
+     * Adds the tokens refilled since the last refill, up to the capacity of the bucket.
+     */
+    private void refill(long now) {
+        long elapsed = now - mLastRefillTime;
+        if(elapsed < mRefillIntervalNanos) {
+            return;
+        }
+
+        long refilled = elapsed / mRefillIntervalNanos;
+        if(mTokens + refilled >= mCapacity) {
+            mTokens = mCapacity;
+            mLastRefillTime = now;
+        } else {
+            mTokens += refilled;
+            mLastRefillTime += refilled * mRefillIntervalNanos;
+        }
+    }
+
+    /*
+     * Parses the header value as a number of seconds, returning the default if it isn't one.
+     */
+    private static long parseLong(String value, long defaultValue) {
+        if(value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            // Header holds an HTTP date or garbage.
+            return defaultValue;
+        }
+    }
+}
@@ -63,6 +63,10 @@ public class Utility {
             errMessage = context.getString(R.string.msg_err_unknown_host);
         } else if(exceptionMessage.contains(context.getString(R.string.err_authentication_failed))) {
             errMessage = context.getString(R.string.msg_err_authentication_failed);
+        } else if(exceptionMessage.contains(context.getString(R.string.err_deadline_exceeded))) {
+            errMessage = context.getString(R.string.msg_err_deadline_exceeded);
+        } else if(exceptionMessage.contains(context.getString(R.string.err_rate_limited))) {
+            errMessage = context.getString(R.string.msg_err_rate_limited);
         } else {
             errMessage = context.getString(R.string.msg_err_default);
         }
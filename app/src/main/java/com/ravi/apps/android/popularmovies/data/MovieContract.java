@@ -35,6 +35,15 @@ public class MovieContract {
     public static final String PATH_MOVIE = "movie";
     public static final String PATH_TRAILER = "trailer";
     public static final String PATH_REVIEW = "review";
+    public static final String PATH_DISCOVER = "discover";
+
+    // Method of the content provider call returning the number of rows the inserts into the
+    // movie, trailer and review tables added, updated and left unchanged since the provider
+    // started, and the keys of the counts in the returned bundle, stored as long.
+    public static final String METHOD_GET_WRITE_COUNTS = "get_write_counts";
+    public static final String KEY_INSERTED_COUNT = "inserted_count";
+    public static final String KEY_UPDATED_COUNT = "updated_count";
+    public static final String KEY_UNCHANGED_COUNT = "unchanged_count";
 
     /**
      * Defines the movie table contents.
@@ -49,12 +58,29 @@ public class MovieContract {
         // Original title, stored as string.
         public static final String COLUMN_ORIGINAL_TITLE = "original_title";
 
-        // Poster image, stored as blob.
+        // Poster image, stored as blob. Only set on the rows stored before version 5, till
+        // their posters are migrated into files.
         public static final String COLUMN_POSTER_IMAGE = "poster_image";
 
+        // Name of the poster image file in the poster store, stored as string.
+        public static final String COLUMN_POSTER_FILE = "poster_file";
+
+        // CRC32 checksum of the poster image file, stored as int.
+        public static final String COLUMN_POSTER_CHECKSUM = "poster_checksum";
+
+        // Name of the poster thumbnail file in the poster store, sized for the favorites
+        // grid, stored as string.
+        public static final String COLUMN_THUMBNAIL_FILE = "thumbnail_file";
+
+        // CRC32 checksum of the poster thumbnail file, stored as int.
+        public static final String COLUMN_THUMBNAIL_CHECKSUM = "thumbnail_checksum";
+
         // Release date, stored as string.
         public static final String COLUMN_RELEASE_DATE = "release_date";
 
+        // Release date as a yyyymmdd number for sorting, stored as int.
+        public static final String COLUMN_RELEASE_DAY = "release_day";
+
         // Runtime, stored as int.
         public static final String COLUMN_RUNTIME = "runtime";
 
@@ -89,6 +115,31 @@ public class MovieContract {
         public static int getMovieIdFromUri(Uri uri) {
             return Integer.parseInt(uri.getPathSegments().get(1));
         }
+
+        // Convert a release date such as 2015-05-15 into its yyyymmdd number, or null if
+        // it isn't a valid date.
+        public static Integer getReleaseDayFromDate(String releaseDate) {
+            if(releaseDate == null) {
+                return null;
+            }
+
+            String[] fields = releaseDate.split("-");
+            if(fields.length != 3) {
+                return null;
+            }
+
+            try {
+                int year = Integer.parseInt(fields[0]);
+                int month = Integer.parseInt(fields[1]);
+                int day = Integer.parseInt(fields[2]);
+                if(month < 1 || month > 12 || day < 1 || day > 31) {
+                    return null;
+                }
+                return year * 10000 + month * 100 + day;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
     }
 
     /**
@@ -162,4 +213,63 @@ public class MovieContract {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
     }
+
+    /**
+     * Defines the discover table contents, holding the last discover list loaded from the
+     * TMDB server for each sort order.
+     */
+    public static final class DiscoverEntry implements BaseColumns {
+        // Discover table name.
+        public static final String TABLE_NAME = "discover";
+
+        // Sort order of the discover list, stored as string.
+        public static final String COLUMN_SORT_ORDER = "sort_order";
+
+        // Position of the movie in the discover list, stored as int.
+        public static final String COLUMN_POSITION = "position";
+
+        // Movie id, stored as int.
+        public static final String COLUMN_MOVIE_ID = "movie_id";
+
+        // Poster path, stored as string.
+        public static final String COLUMN_POSTER_PATH = "poster_path";
+
+        // Original title, stored as string.
+        public static final String COLUMN_ORIGINAL_TITLE = "original_title";
+
+        // Release date, stored as string.
+        public static final String COLUMN_RELEASE_DATE = "release_date";
+
+        // Average rating, stored as real.
+        public static final String COLUMN_VOTE_AVERAGE = "vote_average";
+
+        // Plot synopsis, stored as string.
+        public static final String COLUMN_OVERVIEW = "overview";
+
+        // Build the base discover URI.
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_DISCOVER).build();
+
+        // Directory content type.
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_DISCOVER;
+
+        // Item content type.
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_DISCOVER;
+
+        public static Uri buildDiscoverUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id);
+        }
+
+        // Append the sort order to the URI.
+        public static Uri appendSortOrderToUri(String sortOrder) {
+            return CONTENT_URI.buildUpon().appendPath(sortOrder).build();
+        }
+
+        // Extract the sort order from the URI.
+        public static String getSortOrderFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+    }
 }
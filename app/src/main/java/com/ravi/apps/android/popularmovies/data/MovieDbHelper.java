@@ -16,36 +16,52 @@
 
 package com.ravi.apps.android.popularmovies.data;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.text.TextUtils;
 
+import com.ravi.apps.android.popularmovies.data.MovieContract.DiscoverEntry;
 import com.ravi.apps.android.popularmovies.data.MovieContract.MovieEntry;
 import com.ravi.apps.android.popularmovies.data.MovieContract.ReviewEntry;
 import com.ravi.apps.android.popularmovies.data.MovieContract.TrailerEntry;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
- * Creates, upgrades and deletes the local movie database.
+ * Creates, upgrades and deletes the local movie database. The database is opened in
+ * write-ahead logging mode, which lets the readers run alongside a writer.
  */
 public class MovieDbHelper extends SQLiteOpenHelper {
     // Database schema version.
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 8;
 
     // Database name.
     public static final String DATABASE_NAME = "movie.db";
 
-    // SQL statement for creating the movie table.
+    // SQL statement for creating the movie table. Since version 8 the unique keys of the
+    // movie, trailer and review tables don't replace the conflicting rows, the provider
+    // updates them in place instead.
     private static final String SQL_CREATE_MOVIE_TABLE =
             "CREATE TABLE " + MovieEntry.TABLE_NAME + " (" +
             MovieEntry._ID + " INTEGER PRIMARY KEY, " +
             MovieEntry.COLUMN_MOVIE_ID + " INTEGER NOT NULL, " +
             MovieEntry.COLUMN_ORIGINAL_TITLE + " TEXT, " +
             MovieEntry.COLUMN_POSTER_IMAGE + " BLOB, " +
+            MovieEntry.COLUMN_POSTER_FILE + " TEXT, " +
+            MovieEntry.COLUMN_POSTER_CHECKSUM + " INTEGER, " +
+            MovieEntry.COLUMN_THUMBNAIL_FILE + " TEXT, " +
+            MovieEntry.COLUMN_THUMBNAIL_CHECKSUM + " INTEGER, " +
             MovieEntry.COLUMN_RELEASE_DATE + " TEXT, " +
+            MovieEntry.COLUMN_RELEASE_DAY + " INTEGER, " +
             MovieEntry.COLUMN_RUNTIME + " INTEGER, " +
             MovieEntry.COLUMN_VOTE_AVERAGE + " REAL, " +
             MovieEntry.COLUMN_OVERVIEW + " TEXT, " +
-            "UNIQUE (" + MovieEntry.COLUMN_MOVIE_ID + ") ON CONFLICT REPLACE);";
+            "UNIQUE (" + MovieEntry.COLUMN_MOVIE_ID + "));";
 
     // SQL statement for creating the trailer table.
     private static final String SQL_CREATE_TRAILER_TABLE =
@@ -57,7 +73,7 @@ public class MovieDbHelper extends SQLiteOpenHelper {
             TrailerEntry.COLUMN_NAME + " TEXT, " +
             " FOREIGN KEY (" + TrailerEntry.COLUMN_MOVIE_KEY + ") REFERENCES " +
             MovieEntry.TABLE_NAME + " (" + MovieEntry.COLUMN_MOVIE_ID + ") " +
-            "UNIQUE (" + TrailerEntry.COLUMN_TRAILER_ID + ") ON CONFLICT REPLACE);";
+            "UNIQUE (" + TrailerEntry.COLUMN_TRAILER_ID + "));";
 
     // SQL statement for creating the review table.
     private static final String SQL_CREATE_REVIEW_TABLE =
@@ -69,7 +85,45 @@ public class MovieDbHelper extends SQLiteOpenHelper {
             ReviewEntry.COLUMN_CONTENT + " TEXT, " +
             " FOREIGN KEY (" + ReviewEntry.COLUMN_MOVIE_KEY + ") REFERENCES " +
             MovieEntry.TABLE_NAME + " (" + MovieEntry.COLUMN_MOVIE_ID + ") " +
-            "UNIQUE (" + ReviewEntry.COLUMN_REVIEW_ID + ") ON CONFLICT REPLACE);";
+            "UNIQUE (" + ReviewEntry.COLUMN_REVIEW_ID + "));";
+
+    // SQL statements for creating the indexes of the favorites queries, added in version 7:
+    // the trailers and reviews of a favorite by movie key, and the favorites by release day.
+    private static final String SQL_CREATE_TRAILER_MOVIE_KEY_INDEX =
+            "CREATE INDEX " + TrailerEntry.TABLE_NAME + "_" + TrailerEntry.COLUMN_MOVIE_KEY +
+            "_index ON " + TrailerEntry.TABLE_NAME + " (" + TrailerEntry.COLUMN_MOVIE_KEY + ");";
+    private static final String SQL_CREATE_REVIEW_MOVIE_KEY_INDEX =
+            "CREATE INDEX " + ReviewEntry.TABLE_NAME + "_" + ReviewEntry.COLUMN_MOVIE_KEY +
+            "_index ON " + ReviewEntry.TABLE_NAME + " (" + ReviewEntry.COLUMN_MOVIE_KEY + ");";
+    private static final String SQL_CREATE_MOVIE_RELEASE_DAY_INDEX =
+            "CREATE INDEX " + MovieEntry.TABLE_NAME + "_" + MovieEntry.COLUMN_RELEASE_DAY +
+            "_index ON " + MovieEntry.TABLE_NAME + " (" + MovieEntry.COLUMN_RELEASE_DAY + ");";
+
+    // SQL statement for creating the discover table, added in version 2.
+    private static final String SQL_CREATE_DISCOVER_TABLE =
+            "CREATE TABLE " + DiscoverEntry.TABLE_NAME + " (" +
+            DiscoverEntry._ID + " INTEGER PRIMARY KEY, " +
+            DiscoverEntry.COLUMN_SORT_ORDER + " TEXT NOT NULL, " +
+            DiscoverEntry.COLUMN_POSITION + " INTEGER NOT NULL, " +
+            DiscoverEntry.COLUMN_MOVIE_ID + " INTEGER NOT NULL, " +
+            DiscoverEntry.COLUMN_POSTER_PATH + " TEXT, " +
+            DiscoverEntry.COLUMN_ORIGINAL_TITLE + " TEXT, " +
+            DiscoverEntry.COLUMN_RELEASE_DATE + " TEXT, " +
+            DiscoverEntry.COLUMN_VOTE_AVERAGE + " REAL, " +
+            DiscoverEntry.COLUMN_OVERVIEW + " TEXT, " +
+            "UNIQUE (" + DiscoverEntry.COLUMN_SORT_ORDER + ", " +
+            DiscoverEntry.COLUMN_POSITION + ") ON CONFLICT REPLACE);";
+
+    // SQL statements for deleting the indexes of the favorites queries.
+    private static final String SQL_DELETE_TRAILER_MOVIE_KEY_INDEX =
+            "DROP INDEX IF EXISTS " + TrailerEntry.TABLE_NAME + "_" +
+            TrailerEntry.COLUMN_MOVIE_KEY + "_index";
+    private static final String SQL_DELETE_REVIEW_MOVIE_KEY_INDEX =
+            "DROP INDEX IF EXISTS " + ReviewEntry.TABLE_NAME + "_" +
+            ReviewEntry.COLUMN_MOVIE_KEY + "_index";
+    private static final String SQL_DELETE_MOVIE_RELEASE_DAY_INDEX =
+            "DROP INDEX IF EXISTS " + MovieEntry.TABLE_NAME + "_" +
+            MovieEntry.COLUMN_RELEASE_DAY + "_index";
 
     // SQL statement for deleting the movie table.
     private static final String SQL_DELETE_MOVIE_TABLE =
@@ -83,31 +137,192 @@ public class MovieDbHelper extends SQLiteOpenHelper {
     private static final String SQL_DELETE_REVIEW_TABLE =
             "DROP TABLE IF EXISTS " + ReviewEntry.TABLE_NAME;
 
+    // SQL statement for deleting the discover table.
+    private static final String SQL_DELETE_DISCOVER_TABLE =
+            "DROP TABLE IF EXISTS " + DiscoverEntry.TABLE_NAME;
+
+    // Whether the database is opened in write-ahead logging mode.
+    private final boolean mIsWriteAheadLogging;
+
     public MovieDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME, true);
+    }
+
+    // Package private constructor, also used by the tests to open a database of their own,
+    // with or without write-ahead logging.
+    MovieDbHelper(Context context, String name, boolean isWriteAheadLogging) {
+        super(context, name, null, DATABASE_VERSION);
+        mIsWriteAheadLogging = isWriteAheadLogging;
+
+        // Enable write-ahead logging as the database is configured.
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(isWriteAheadLogging);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+
+        // Before Jelly Bean, write-ahead logging can only be enabled on the opened database.
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && mIsWriteAheadLogging
+                && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        // Create the movie, trailer and review tables.
+        // Create the movie, trailer, review and discover tables.
         db.execSQL(SQL_CREATE_MOVIE_TABLE);
         db.execSQL(SQL_CREATE_TRAILER_TABLE);
         db.execSQL(SQL_CREATE_REVIEW_TABLE);
+        db.execSQL(SQL_CREATE_DISCOVER_TABLE);
+
+        // Create the indexes of the favorites queries.
+        db.execSQL(SQL_CREATE_TRAILER_MOVIE_KEY_INDEX);
+        db.execSQL(SQL_CREATE_REVIEW_MOVIE_KEY_INDEX);
+        db.execSQL(SQL_CREATE_MOVIE_RELEASE_DAY_INDEX);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // Delete the data on upgrade as it's a cache for web data.
+        // Upgrade the schema one version at a time, keeping the favorite movies.
+        if(oldVersion < 2) {
+            // Version 2 added the discover table.
+            db.execSQL(SQL_CREATE_DISCOVER_TABLE);
+        }
+
+        if(oldVersion < 3) {
+            // Version 3 stores the poster path instead of the complete poster url, so drop
+            // the discover lists persisted with the urls. They're loaded again on launch.
+            db.delete(DiscoverEntry.TABLE_NAME, null, null);
+        }
+
+        if(oldVersion < 4) {
+            // Version 4 stores the header data of the movies with the discover lists. The
+            // lists are only a cache, so recreate the table instead of altering it.
+            db.execSQL(SQL_DELETE_DISCOVER_TABLE);
+            db.execSQL(SQL_CREATE_DISCOVER_TABLE);
+        }
+
+        if(oldVersion < 5) {
+            // Version 5 stores the posters as files. The poster blobs are moved into files
+            // by the poster store in the background.
+            db.execSQL("ALTER TABLE " + MovieEntry.TABLE_NAME + " ADD COLUMN " +
+                    MovieEntry.COLUMN_POSTER_FILE + " TEXT");
+            db.execSQL("ALTER TABLE " + MovieEntry.TABLE_NAME + " ADD COLUMN " +
+                    MovieEntry.COLUMN_POSTER_CHECKSUM + " INTEGER");
+        }
+
+        if(oldVersion < 6) {
+            // Version 6 stores a thumbnail of the posters for the favorites grid. The
+            // thumbnails are created from the poster files by the poster store in the
+            // background.
+            db.execSQL("ALTER TABLE " + MovieEntry.TABLE_NAME + " ADD COLUMN " +
+                    MovieEntry.COLUMN_THUMBNAIL_FILE + " TEXT");
+            db.execSQL("ALTER TABLE " + MovieEntry.TABLE_NAME + " ADD COLUMN " +
+                    MovieEntry.COLUMN_THUMBNAIL_CHECKSUM + " INTEGER");
+        }
+
+        if(oldVersion < 7) {
+            // Version 7 sorts the favorites by an integer release day. Derive it from the
+            // release dates stored by the earlier versions, as it's derived for new rows.
+            db.execSQL("ALTER TABLE " + MovieEntry.TABLE_NAME + " ADD COLUMN " +
+                    MovieEntry.COLUMN_RELEASE_DAY + " INTEGER");
+            backfillReleaseDays(db);
+
+            // Version 7 also indexes the favorites queries.
+            db.execSQL(SQL_CREATE_TRAILER_MOVIE_KEY_INDEX);
+            db.execSQL(SQL_CREATE_REVIEW_MOVIE_KEY_INDEX);
+            db.execSQL(SQL_CREATE_MOVIE_RELEASE_DAY_INDEX);
+        }
+
+        if(oldVersion < 8) {
+            // Version 8 drops the ON CONFLICT REPLACE clauses of the movie, trailer and review
+            // tables. SQLite can't alter the constraints of a table, so rebuild them, keeping
+            // their rows and row ids. The indexes move with the renamed tables, so drop them
+            // first and create them again on the rebuilt tables.
+            db.execSQL(SQL_DELETE_TRAILER_MOVIE_KEY_INDEX);
+            db.execSQL(SQL_DELETE_REVIEW_MOVIE_KEY_INDEX);
+            db.execSQL(SQL_DELETE_MOVIE_RELEASE_DAY_INDEX);
+
+            // Rebuild the movie table first, as renaming it points the foreign keys of the
+            // trailer and review tables to the old table till they're rebuilt too.
+            rebuildTable(db, MovieEntry.TABLE_NAME, SQL_CREATE_MOVIE_TABLE);
+            rebuildTable(db, TrailerEntry.TABLE_NAME, SQL_CREATE_TRAILER_TABLE);
+            rebuildTable(db, ReviewEntry.TABLE_NAME, SQL_CREATE_REVIEW_TABLE);
+
+            db.execSQL(SQL_CREATE_TRAILER_MOVIE_KEY_INDEX);
+            db.execSQL(SQL_CREATE_REVIEW_MOVIE_KEY_INDEX);
+            db.execSQL(SQL_CREATE_MOVIE_RELEASE_DAY_INDEX);
+        }
+    }
+
+    /*
+     * Sets the release day of every movie from its release date, one row at a time within
+     * the upgrade transaction. Movies without a valid release date are left without one.
+     */
+    private static void backfillReleaseDays(SQLiteDatabase db) {
+        Cursor cursor = db.query(MovieEntry.TABLE_NAME,
+                new String[] {MovieEntry._ID, MovieEntry.COLUMN_RELEASE_DATE},
+                MovieEntry.COLUMN_RELEASE_DATE + " IS NOT NULL", null, null, null, null);
+        try {
+            while(cursor.moveToNext()) {
+                Integer releaseDay = MovieEntry.getReleaseDayFromDate(cursor.getString(1));
+                if(releaseDay == null) {
+                    continue;
+                }
+
+                ContentValues values = new ContentValues();
+                values.put(MovieEntry.COLUMN_RELEASE_DAY, releaseDay);
+                db.update(MovieEntry.TABLE_NAME, values, MovieEntry._ID + " = ?",
+                        new String[] {Long.toString(cursor.getLong(0))});
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Creates the table again from its current create statement and copies its rows over.
+     * The columns are copied by name, as the columns added by the upgrades follow the others
+     * in the old table.
+     */
+    private static void rebuildTable(SQLiteDatabase db, String tableName, String sqlCreateTable) {
+        // Move the table aside and create it again.
+        String oldTableName = tableName + "_old";
+        db.execSQL("ALTER TABLE " + tableName + " RENAME TO " + oldTableName);
+        db.execSQL(sqlCreateTable);
+
+        // Read the column names of the old table.
+        List<String> columnNames = new ArrayList<>();
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + oldTableName + ")", null);
+        try {
+            int nameIndex = cursor.getColumnIndex("name");
+            while(cursor.moveToNext()) {
+                columnNames.add(cursor.getString(nameIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // Copy the rows over and drop the old table.
+        String columns = TextUtils.join(", ", columnNames);
+        db.execSQL("INSERT INTO " + tableName + " (" + columns + ") SELECT " + columns +
+                " FROM " + oldTableName);
+        db.execSQL("DROP TABLE " + oldTableName);
+    }
+
+    @Override
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Delete the data on downgrade as the older schema is unknown.
         db.execSQL(SQL_DELETE_MOVIE_TABLE);
         db.execSQL(SQL_DELETE_TRAILER_TABLE);
         db.execSQL(SQL_DELETE_REVIEW_TABLE);
+        db.execSQL(SQL_DELETE_DISCOVER_TABLE);
 
         // Create the database with new schema.
         onCreate(db);
     }
-
-    @Override
-    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
-    }
 }
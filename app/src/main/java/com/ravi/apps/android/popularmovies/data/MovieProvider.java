@@ -17,55 +17,141 @@
 package com.ravi.apps.android.popularmovies.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
+import android.provider.BaseColumns;
 
 import com.ravi.apps.android.popularmovies.R;
+import com.ravi.apps.android.popularmovies.data.MovieContract.DiscoverEntry;
 import com.ravi.apps.android.popularmovies.data.MovieContract.MovieEntry;
 import com.ravi.apps.android.popularmovies.data.MovieContract.TrailerEntry;
 import com.ravi.apps.android.popularmovies.data.MovieContract.ReviewEntry;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Movie content provider.
+ *
+ * The provider keeps a single connection to the database, opened on first use and held for
+ * the life of the process, rather than closing it after every write and opening it again on
+ * the next call. The database runs in write-ahead logging mode, so the cursor loaders reading
+ * it don't wait for the writes of the services and the poster store.
+ *
+ * A movie with its trailers and reviews is returned as its own row followed by a row per
+ * trailer and per review, read by separate queries on each table, instead of the product of
+ * the trailers and reviews a join would return. Each row only fills the columns of its own
+ * table, the others are null.
+ *
+ * A batch of operations is applied in a single transaction, so that a favorite is stored
+ * whole or not at all, and its observers are notified once the transaction commits.
+ *
+ * An insert into the movie, trailer or review table whose key is already stored updates the
+ * stored row in place, writing only the columns whose values changed, and skips the write
+ * and its notification when none did. The number of rows added, updated and left unchanged
+ * is returned by the METHOD_GET_WRITE_COUNTS call, to measure what a refresh writes.
  */
 public class MovieProvider extends ContentProvider {
 
     // URI matcher.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
 
-    // Movie db helper class.
+    // Movie db helper class, holding the connection for the life of the process.
     private MovieDbHelper mMovieDbHelper;
 
+    // Uris changed by the batch being applied on the calling thread, or null if none is.
+    private final ThreadLocal<Set<Uri>> mBatchChangedUris = new ThreadLocal<>();
+
+    // Number of rows the inserts added, updated and left unchanged.
+    private final AtomicLong mInsertedCount = new AtomicLong();
+    private final AtomicLong mUpdatedCount = new AtomicLong();
+    private final AtomicLong mUnchangedCount = new AtomicLong();
+
+    /**
+     * Outcome of an insert into the movie, trailer or review table.
+     */
+    private static final class UpsertResult {
+
+        // Row id of the row added or found, or -1 if the insert failed.
+        final long rowId;
+
+        // Whether the row was written.
+        final boolean isChanged;
+
+        UpsertResult(long rowId, boolean isChanged) {
+            this.rowId = rowId;
+            this.isChanged = isChanged;
+        }
+    }
+
     // Constants to match each of the URIs supported by this content provider.
     static final int MOVIE = 100;
     static final int MOVIE_WITH_TRAILERS_AND_REVIEWS = 101;
     static final int TRAILER = 200;
     static final int REVIEW = 300;
-
-    // Query builder for join on movie, trailer and review tables.
-    private static final SQLiteQueryBuilder sMovieWithTrailerAndReviewQueryBuilder;
+    static final int DISCOVER = 400;
+    static final int DISCOVER_WITH_SORT_ORDER = 401;
+
+    // Columns of the movie, trailer and review tables.
+    private static final Set<String> sMovieColumns = new HashSet<>(Arrays.asList(
+            MovieEntry._ID, MovieEntry.COLUMN_MOVIE_ID, MovieEntry.COLUMN_ORIGINAL_TITLE,
+            MovieEntry.COLUMN_POSTER_IMAGE, MovieEntry.COLUMN_POSTER_FILE,
+            MovieEntry.COLUMN_POSTER_CHECKSUM, MovieEntry.COLUMN_THUMBNAIL_FILE,
+            MovieEntry.COLUMN_THUMBNAIL_CHECKSUM, MovieEntry.COLUMN_RELEASE_DATE,
+            MovieEntry.COLUMN_RELEASE_DAY,
+            MovieEntry.COLUMN_RUNTIME, MovieEntry.COLUMN_VOTE_AVERAGE, MovieEntry.COLUMN_OVERVIEW));
+    private static final Set<String> sTrailerColumns = new HashSet<>(Arrays.asList(
+            TrailerEntry._ID, TrailerEntry.COLUMN_MOVIE_KEY, TrailerEntry.COLUMN_TRAILER_ID,
+            TrailerEntry.COLUMN_URI, TrailerEntry.COLUMN_NAME));
+    private static final Set<String> sReviewColumns = new HashSet<>(Arrays.asList(
+            ReviewEntry._ID, ReviewEntry.COLUMN_MOVIE_KEY, ReviewEntry.COLUMN_REVIEW_ID,
+            ReviewEntry.COLUMN_AUTHOR, ReviewEntry.COLUMN_CONTENT));
 
     // Movie id selection string.
     private static final String sMovieIdSelection =
             MovieEntry.TABLE_NAME + "." + MovieEntry.COLUMN_MOVIE_ID + " = ? ";
 
-    // Static constructor.
-    static {
-        sMovieWithTrailerAndReviewQueryBuilder = new SQLiteQueryBuilder();
-
-        // Inner join between movie, trailer and review tables on the movie id column.
-        sMovieWithTrailerAndReviewQueryBuilder.setTables(
-                MovieEntry.TABLE_NAME + " LEFT JOIN " + TrailerEntry.TABLE_NAME + " ON " +
-                        MovieEntry.TABLE_NAME + "." + MovieEntry.COLUMN_MOVIE_ID + " = " +
-                        TrailerEntry.TABLE_NAME + "." + TrailerEntry.COLUMN_MOVIE_KEY +
-                        " LEFT JOIN " + ReviewEntry.TABLE_NAME + " ON " +
-                        MovieEntry.TABLE_NAME + "." + MovieEntry.COLUMN_MOVIE_ID + " = " +
-                        ReviewEntry.TABLE_NAME + "." + ReviewEntry.COLUMN_MOVIE_KEY );
-    }
+    // Discover sort order selection string.
+    private static final String sDiscoverSortOrderSelection =
+            DiscoverEntry.TABLE_NAME + "." + DiscoverEntry.COLUMN_SORT_ORDER + " = ? ";
+
+    // Default projection of a movie with its trailers and reviews.
+    private static final String[] sMovieWithTrailersAndReviewsProjection = {
+            MovieEntry.TABLE_NAME + "." + MovieEntry._ID,
+            MovieEntry.COLUMN_MOVIE_ID,
+            MovieEntry.COLUMN_ORIGINAL_TITLE,
+            MovieEntry.COLUMN_POSTER_FILE,
+            MovieEntry.COLUMN_THUMBNAIL_FILE,
+            MovieEntry.COLUMN_RELEASE_DATE,
+            MovieEntry.COLUMN_RUNTIME,
+            MovieEntry.COLUMN_VOTE_AVERAGE,
+            MovieEntry.COLUMN_OVERVIEW,
+            TrailerEntry.COLUMN_TRAILER_ID,
+            TrailerEntry.COLUMN_URI,
+            TrailerEntry.COLUMN_NAME,
+            ReviewEntry.COLUMN_REVIEW_ID,
+            ReviewEntry.COLUMN_AUTHOR,
+            ReviewEntry.COLUMN_CONTENT
+    };
+
+    // Trailer and review movie key selection strings.
+    private static final String sTrailerMovieKeySelection =
+            TrailerEntry.TABLE_NAME + "." + TrailerEntry.COLUMN_MOVIE_KEY + " = ? ";
+    private static final String sReviewMovieKeySelection =
+            ReviewEntry.TABLE_NAME + "." + ReviewEntry.COLUMN_MOVIE_KEY + " = ? ";
 
     // Builds and returns the uri matcher.
     private static UriMatcher buildUriMatcher() {
@@ -78,6 +164,8 @@ public class MovieProvider extends ContentProvider {
         uriMatcher.addURI(authority, MovieContract.PATH_MOVIE + "/*", MOVIE_WITH_TRAILERS_AND_REVIEWS);
         uriMatcher.addURI(authority, MovieContract.PATH_TRAILER, TRAILER);
         uriMatcher.addURI(authority, MovieContract.PATH_REVIEW, REVIEW);
+        uriMatcher.addURI(authority, MovieContract.PATH_DISCOVER, DISCOVER);
+        uriMatcher.addURI(authority, MovieContract.PATH_DISCOVER + "/*", DISCOVER_WITH_SORT_ORDER);
 
         return uriMatcher;
     }
@@ -89,6 +177,13 @@ public class MovieProvider extends ContentProvider {
         return true;
     }
 
+    @Override
+    public void shutdown() {
+        // Only called by the tests, the connection is otherwise released with the process.
+        mMovieDbHelper.close();
+        super.shutdown();
+    }
+
     @Override
     public String getType(Uri uri) {
         // Determine the type of URI passed in.
@@ -104,6 +199,10 @@ public class MovieProvider extends ContentProvider {
                 return MovieContract.TrailerEntry.CONTENT_TYPE;
             case REVIEW:
                 return MovieContract.ReviewEntry.CONTENT_TYPE;
+            case DISCOVER:
+                return MovieContract.DiscoverEntry.CONTENT_TYPE;
+            case DISCOVER_WITH_SORT_ORDER:
+                return MovieContract.DiscoverEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException(getContext()
                         .getString(R.string.msg_err_unknown_uri) + uri);
@@ -127,16 +226,48 @@ public class MovieProvider extends ContentProvider {
             case MOVIE_WITH_TRAILERS_AND_REVIEWS: {
                 // Extract the movie id from the uri.
                 Integer movieId = MovieEntry.getMovieIdFromUri(uri);
+                String[] movieIdArgs = new String[]{movieId.toString()};
+                if(projection == null) {
+                    projection = sMovieWithTrailersAndReviewsProjection;
+                }
 
-                // Query the database.
-                resultCursor = sMovieWithTrailerAndReviewQueryBuilder.query(
-                        readDb,
-                        projection,
+                // Query the movie row.
+                Cursor movieCursor = readDb.query(
+                        MovieEntry.TABLE_NAME,
+                        getTableProjection(projection, MovieEntry.TABLE_NAME, sMovieColumns),
                         sMovieIdSelection,
-                        new String[]{movieId.toString()},
+                        movieIdArgs,
                         null,
                         null,
-                        sortOrder);
+                        null);
+
+                // Return the empty cursor if it's not a favorite.
+                if(movieCursor.getCount() == 0) {
+                    resultCursor = movieCursor;
+                    break;
+                }
+
+                // Query the trailer and review rows, in the order they were inserted.
+                Cursor trailerCursor = readDb.query(
+                        TrailerEntry.TABLE_NAME,
+                        getTableProjection(projection, TrailerEntry.TABLE_NAME, sTrailerColumns),
+                        sTrailerMovieKeySelection,
+                        movieIdArgs,
+                        null,
+                        null,
+                        TrailerEntry._ID);
+                Cursor reviewCursor = readDb.query(
+                        ReviewEntry.TABLE_NAME,
+                        getTableProjection(projection, ReviewEntry.TABLE_NAME, sReviewColumns),
+                        sReviewMovieKeySelection,
+                        movieIdArgs,
+                        null,
+                        null,
+                        ReviewEntry._ID);
+
+                // Return the movie row followed by the trailer and review rows.
+                resultCursor = new MergeCursor(
+                        new Cursor[]{movieCursor, trailerCursor, reviewCursor});
                 break;
             }
             case MOVIE: {
@@ -175,6 +306,21 @@ public class MovieProvider extends ContentProvider {
                         sortOrder);
                 break;
             }
+            case DISCOVER_WITH_SORT_ORDER: {
+                // Extract the discover sort order from the uri.
+                String discoverSortOrder = DiscoverEntry.getSortOrderFromUri(uri);
+
+                // Query the database.
+                resultCursor = readDb.query(
+                        DiscoverEntry.TABLE_NAME,
+                        projection,
+                        sDiscoverSortOrderSelection,
+                        new String[]{discoverSortOrder},
+                        null,
+                        null,
+                        sortOrder);
+                break;
+            }
             default: {
                 throw new UnsupportedOperationException(getContext()
                         .getString(R.string.msg_err_unknown_uri) + uri);
@@ -187,6 +333,197 @@ public class MovieProvider extends ContentProvider {
         return resultCursor;
     }
 
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        // Get a writable database.
+        final SQLiteDatabase writeDb = mMovieDbHelper.getWritableDatabase();
+
+        // Hold the change notifications of the operations till the batch commits.
+        Set<Uri> changedUris = new LinkedHashSet<>();
+        mBatchChangedUris.set(changedUris);
+
+        // Apply all the operations in a single db transaction.
+        ContentProviderResult[] results;
+        writeDb.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+
+            // Transaction successful.
+            writeDb.setTransactionSuccessful();
+        } finally {
+            // End the db transaction, rolling it back if an operation failed.
+            writeDb.endTransaction();
+            mBatchChangedUris.remove();
+        }
+
+        // Notify the observers once, of the uri changed or else of all the uris.
+        if(changedUris.size() == 1) {
+            getContext().getContentResolver().notifyChange(changedUris.iterator().next(), null);
+        } else if(!changedUris.isEmpty()) {
+            getContext().getContentResolver().notifyChange(MovieContract.BASE_CONTENT_URI, null);
+        }
+
+        return results;
+    }
+
+    /*
+     * Notifies the observers of the uri of a change, or holds the notification till the end
+     * of the batch being applied.
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> batchChangedUris = mBatchChangedUris.get();
+        if(batchChangedUris != null) {
+            batchChangedUris.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        // Return the write counts of the inserts.
+        if(MovieContract.METHOD_GET_WRITE_COUNTS.equals(method)) {
+            Bundle counts = new Bundle();
+            counts.putLong(MovieContract.KEY_INSERTED_COUNT, mInsertedCount.get());
+            counts.putLong(MovieContract.KEY_UPDATED_COUNT, mUpdatedCount.get());
+            counts.putLong(MovieContract.KEY_UNCHANGED_COUNT, mUnchangedCount.get());
+            return counts;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Inserts the values into the table, or if a row with the same key is already stored,
+     * updates only the columns of the row whose values changed, leaving it untouched if none
+     * did.
+     *
+     * @param writeDb   the writable database
+     * @param tableName the table name
+     * @param keyColumn the unique key column of the table
+     * @param values    the values to store
+     * @return          the row id of the row and whether it was written
+     */
+    private UpsertResult upsert(SQLiteDatabase writeDb, String tableName, String keyColumn,
+                                ContentValues values) {
+        // Insert the values outright if they have no key, the insert fails on its constraint.
+        String key = values.getAsString(keyColumn);
+        if(key == null) {
+            return insertRow(writeDb, tableName, values);
+        }
+
+        // Read the stored columns of the values from the row of the key, if any.
+        String[] projection = new String[values.size() + 1];
+        projection[0] = BaseColumns._ID;
+        int i = 1;
+        for(Map.Entry<String, Object> value : values.valueSet()) {
+            projection[i++] = value.getKey();
+        }
+        Cursor cursor = writeDb.query(tableName, projection, keyColumn + " = ?",
+                new String[]{key}, null, null, null);
+
+        ContentValues changedValues;
+        long rowId;
+        try {
+            if(!cursor.moveToFirst()) {
+                return insertRow(writeDb, tableName, values);
+            }
+
+            // Keep the values of the columns that changed.
+            rowId = cursor.getLong(0);
+            changedValues = new ContentValues(values);
+            for(i = 1; i < projection.length; i++) {
+                if(isStoredValue(cursor, i, values.get(projection[i]))) {
+                    changedValues.remove(projection[i]);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // Leave the row untouched if nothing changed.
+        if(changedValues.size() == 0) {
+            mUnchangedCount.incrementAndGet();
+            return new UpsertResult(rowId, false);
+        }
+
+        // Update the changed columns in place.
+        writeDb.update(tableName, changedValues, BaseColumns._ID + " = ?",
+                new String[]{Long.toString(rowId)});
+        mUpdatedCount.incrementAndGet();
+        return new UpsertResult(rowId, true);
+    }
+
+    // Inserts the values into the table as a new row.
+    private UpsertResult insertRow(SQLiteDatabase writeDb, String tableName,
+                                   ContentValues values) {
+        long rowId = writeDb.insert(tableName, null, values);
+        if(rowId != -1) {
+            mInsertedCount.incrementAndGet();
+        }
+        return new UpsertResult(rowId, rowId != -1);
+    }
+
+    /*
+     * Checks if the value equals the one stored in the column of the cursor. Values of a type
+     * the column doesn't hold are taken as changed, which only costs a needless write.
+     */
+    private static boolean isStoredValue(Cursor cursor, int columnIndex, Object value) {
+        switch(cursor.getType(columnIndex)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return value == null;
+            case Cursor.FIELD_TYPE_INTEGER:
+                if(value instanceof Boolean) {
+                    return cursor.getLong(columnIndex) == ((Boolean) value ? 1 : 0);
+                }
+                if(value instanceof Float || value instanceof Double) {
+                    return cursor.getDouble(columnIndex) == ((Number) value).doubleValue();
+                }
+                return value instanceof Number
+                        && cursor.getLong(columnIndex) == ((Number) value).longValue();
+            case Cursor.FIELD_TYPE_FLOAT:
+                return value instanceof Number
+                        && cursor.getDouble(columnIndex) == ((Number) value).doubleValue();
+            case Cursor.FIELD_TYPE_STRING:
+                return value != null && !(value instanceof byte[])
+                        && value.toString().equals(cursor.getString(columnIndex));
+            case Cursor.FIELD_TYPE_BLOB:
+                return value instanceof byte[]
+                        && Arrays.equals((byte[]) value, cursor.getBlob(columnIndex));
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the projection of one of the tables merged into a single cursor. Each column
+     * of the projection that isn't a column of the table, or is qualified with another table,
+     * is selected as null, so that all the merged cursors have the same columns.
+     *
+     * @param projection   the projection of the merged cursor
+     * @param tableName    the table name
+     * @param tableColumns the columns of the table
+     * @return             the projection of the table
+     */
+    private static String[] getTableProjection(String[] projection, String tableName,
+                                               Set<String> tableColumns) {
+        String[] tableProjection = new String[projection.length];
+        for(int i = 0; i < projection.length; i++) {
+            // Split the column into its table qualifier and its name.
+            String column = projection[i];
+            int separator = column.indexOf('.');
+            String qualifier = separator != -1 ? column.substring(0, separator) : null;
+            String name = column.substring(separator + 1);
+
+            if((qualifier == null || qualifier.equals(tableName)) && tableColumns.contains(name)) {
+                tableProjection[i] = column;
+            } else {
+                tableProjection[i] = "NULL AS " + name;
+            }
+        }
+        return tableProjection;
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues values) {
         // Get a writable database.
@@ -198,76 +535,83 @@ public class MovieProvider extends ContentProvider {
         // Uri to hold the result.
         Uri resultUri;
 
-        switch (uriMatch) {
-            case MOVIE: {
-                // Insert values into movie table.
-                long id = writeDb.insert(MovieEntry.TABLE_NAME, null, values);
-
-                // Check if insert was successful.
-                if (id > 0) {
-                    resultUri = MovieEntry.buildMovieUri(id);
-                } else {
-                    // Close the db.
-                    writeDb.close();
-
-                    // Throw sql exception.
-                    throw new android.database.SQLException(getContext()
-                            .getString(R.string.err_insert_failed) + uri);
-                }
+        // Whether a row was written.
+        boolean isChanged;
+
+        // Look up the stored row and write it in a single transaction, so that concurrent
+        // inserts of the same key can't both miss the stored row.
+        writeDb.beginTransaction();
+        try {
+            switch (uriMatch) {
+                case MOVIE: {
+                    // Insert values into movie table, or update its stored row.
+                    UpsertResult result = upsert(writeDb, MovieEntry.TABLE_NAME,
+                            MovieEntry.COLUMN_MOVIE_ID, values);
+                    isChanged = result.isChanged;
+
+                    // Check if insert was successful.
+                    if (result.rowId > 0) {
+                        resultUri = MovieEntry.buildMovieUri(result.rowId);
+                    } else {
+                        // Throw sql exception.
+                        throw new android.database.SQLException(getContext()
+                                .getString(R.string.err_insert_failed) + uri);
+                    }
 
-                break;
-            }
-            case TRAILER: {
-                // Insert values into trailer table.
-                long id = writeDb.insert(TrailerEntry.TABLE_NAME, null, values);
-
-                // Check if insert was successful.
-                if (id > 0) {
-                    resultUri = TrailerEntry.buildTrailerUri(id);
-                } else {
-                    // Close the db.
-                    writeDb.close();
-
-                    // Throw sql exception.
-                    throw new android.database.SQLException(getContext()
-                            .getString(R.string.err_insert_failed) + uri);
+                    break;
                 }
+                case TRAILER: {
+                    // Insert values into trailer table, or update its stored row.
+                    UpsertResult result = upsert(writeDb, TrailerEntry.TABLE_NAME,
+                            TrailerEntry.COLUMN_TRAILER_ID, values);
+                    isChanged = result.isChanged;
+
+                    // Check if insert was successful.
+                    if (result.rowId > 0) {
+                        resultUri = TrailerEntry.buildTrailerUri(result.rowId);
+                    } else {
+                        // Throw sql exception.
+                        throw new android.database.SQLException(getContext()
+                                .getString(R.string.err_insert_failed) + uri);
+                    }
 
-                break;
-            }
-            case REVIEW: {
-                // Insert values into review table.
-                long id = writeDb.insert(ReviewEntry.TABLE_NAME, null, values);
-
-                // Check if insert was successful.
-                if (id > 0) {
-                    resultUri = ReviewEntry.buildReviewUri(id);
-                } else {
-                    // Close the db.
-                    writeDb.close();
-
-                    // Throw sql exception.
-                    throw new android.database.SQLException(getContext()
-                            .getString(R.string.err_insert_failed) + uri);
+                    break;
                 }
+                case REVIEW: {
+                    // Insert values into review table, or update its stored row.
+                    UpsertResult result = upsert(writeDb, ReviewEntry.TABLE_NAME,
+                            ReviewEntry.COLUMN_REVIEW_ID, values);
+                    isChanged = result.isChanged;
+
+                    // Check if insert was successful.
+                    if (result.rowId > 0) {
+                        resultUri = ReviewEntry.buildReviewUri(result.rowId);
+                    } else {
+                        // Throw sql exception.
+                        throw new android.database.SQLException(getContext()
+                                .getString(R.string.err_insert_failed) + uri);
+                    }
 
-                break;
+                    break;
+                }
+                default: {
+                    // Throw unsupported operation exception.
+                    throw new UnsupportedOperationException(getContext()
+                            .getString(R.string.msg_err_unknown_uri) + uri);
+                }
             }
-            default: {
-                // Close the db.
-                writeDb.close();
 
-                // Throw unsupported operation exception.
-                throw new UnsupportedOperationException(getContext()
-                        .getString(R.string.msg_err_unknown_uri) + uri);
-            }
+            // Transaction successful.
+            writeDb.setTransactionSuccessful();
+        } finally {
+            // End the db transaction.
+            writeDb.endTransaction();
         }
 
-        // Notify any observers of the change.
-        getContext().getContentResolver().notifyChange(uri, null);
-
-        // Close the db.
-        writeDb.close();
+        // Notify any observers only if a row was written.
+        if(isChanged) {
+            notifyChange(uri);
+        }
 
         return resultUri;
     }
@@ -287,15 +631,20 @@ public class MovieProvider extends ContentProvider {
 
                 // Count the insertions made.
                 int insertCount = 0;
+
+                // Whether a row was written.
+                boolean isChanged = false;
                 try {
                     for(ContentValues value : values) {
-                        // Insert values into trailer table.
-                        long id = writeDb.insert(TrailerEntry.TABLE_NAME, null, value);
+                        // Insert values into trailer table, or update its stored row.
+                        UpsertResult result = upsert(writeDb, TrailerEntry.TABLE_NAME,
+                                TrailerEntry.COLUMN_TRAILER_ID, value);
 
                         // Check if insert was successful and increment count.
-                        if (id != -1) {
+                        if (result.rowId != -1) {
                             insertCount++;
                         }
+                        isChanged |= result.isChanged;
                     }
                     // Transaction successful.
                     writeDb.setTransactionSuccessful();
@@ -304,11 +653,10 @@ public class MovieProvider extends ContentProvider {
                     writeDb.endTransaction();
                 }
 
-                // Notify observers of change.
-                getContext().getContentResolver().notifyChange(uri, null);
-
-                // Close the db.
-                writeDb.close();
+                // Notify observers only if a row was written.
+                if(isChanged) {
+                    notifyChange(uri);
+                }
 
                 return insertCount;
             }
@@ -316,12 +664,54 @@ public class MovieProvider extends ContentProvider {
                 // Begin the db transaction.
                 writeDb.beginTransaction();
 
+                // Count the insertions made.
+                int insertCount = 0;
+
+                // Whether a row was written.
+                boolean isChanged = false;
+                try {
+                    for(ContentValues value : values) {
+                        // Insert values into review table, or update its stored row.
+                        UpsertResult result = upsert(writeDb, ReviewEntry.TABLE_NAME,
+                                ReviewEntry.COLUMN_REVIEW_ID, value);
+
+                        // Check if insert was successful and increment count.
+                        if (result.rowId != -1) {
+                            insertCount++;
+                        }
+                        isChanged |= result.isChanged;
+                    }
+                    // Transaction successful.
+                    writeDb.setTransactionSuccessful();
+                } finally {
+                    // End the db transaction.
+                    writeDb.endTransaction();
+                }
+
+                // Notify observers only if a row was written.
+                if(isChanged) {
+                    notifyChange(uri);
+                }
+
+                return insertCount;
+            }
+            case DISCOVER_WITH_SORT_ORDER: {
+                // Extract the discover sort order from the uri.
+                String discoverSortOrder = DiscoverEntry.getSortOrderFromUri(uri);
+
+                // Begin the db transaction.
+                writeDb.beginTransaction();
+
                 // Count the insertions made.
                 int insertCount = 0;
                 try {
+                    // Replace the discover list of the sort order as a whole.
+                    writeDb.delete(DiscoverEntry.TABLE_NAME, sDiscoverSortOrderSelection,
+                            new String[]{discoverSortOrder});
+
                     for(ContentValues value : values) {
-                        // Insert values into review table.
-                        long id = writeDb.insert(ReviewEntry.TABLE_NAME, null, value);
+                        // Insert values into discover table.
+                        long id = writeDb.insert(DiscoverEntry.TABLE_NAME, null, value);
 
                         // Check if insert was successful and increment count.
                         if (id != -1) {
@@ -336,10 +726,7 @@ public class MovieProvider extends ContentProvider {
                 }
 
                 // Notify observers of change.
-                getContext().getContentResolver().notifyChange(uri, null);
-
-                // Close the db.
-                writeDb.close();
+                notifyChange(uri);
 
                 return insertCount;
             }
@@ -384,10 +771,7 @@ public class MovieProvider extends ContentProvider {
 
         // Notify any observers only if any updates were made.
         if (rowsUpdated != 0)
-            getContext().getContentResolver().notifyChange(uri, null);
-
-        // Close the db.
-        writeDb.close();
+            notifyChange(uri);
 
         return rowsUpdated;
     }
@@ -421,6 +805,11 @@ public class MovieProvider extends ContentProvider {
                 rowsDeleted = writeDb.delete(ReviewEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             }
+            case DISCOVER: {
+                // Delete from discover table.
+                rowsDeleted = writeDb.delete(DiscoverEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            }
             default: {
                 throw new UnsupportedOperationException(getContext()
                         .getString(R.string.msg_err_unknown_uri) + uri);
@@ -429,10 +818,7 @@ public class MovieProvider extends ContentProvider {
 
         // Notify any observers only if any deletions were made.
         if (rowsDeleted != 0)
-            getContext().getContentResolver().notifyChange(uri, null);
-
-        // Close the db.
-        writeDb.close();
+            notifyChange(uri);
 
         return rowsDeleted;
     }